@@ -0,0 +1,185 @@
+package com.theta360.sample.livestreaming
+
+import android.content.Context
+import android.content.Intent
+import jp.shiguredo.sora.sdk.channel.option.SoraVideoOption
+import jp.shiguredo.sora.sdk.util.SoraLogger
+import org.json.JSONException
+import org.json.JSONObject
+import org.webrtc.ThetaHardwareVideoEncoderFactory
+import java.io.File
+
+/**
+ * 配信の映像パラメータ一式。
+ *
+ * 以前は各 Activity の private val だったもの。プリセットとして名前を付け、
+ * 設定ファイルや intent extra から APK を作り直さずに切り替えられるようにする。
+ */
+data class EncoderProfile(
+        val name: String,
+        val shootingMode: ShootingMode,
+        val frameRate: Int,
+        // kbps
+        val bitRate: Int,
+        val codec: SoraVideoOption.Codec,
+        val simulcast: Boolean,
+        val captureToTexture: Boolean
+)
+
+/**
+ * プロファイルを決める。
+ *
+ * 優先順位は intent extra, 設定ファイル, Activity のデフォルトの順。
+ * - intent extra "profile" でプリセット名を、"shootingMode" などのキーで個々の値を指定できる
+ *   例: adb shell am start -n ... --es profile 2k --ei bitRate 10000
+ * - 設定ファイルは外部ファイルディレクトリの encoder_profiles.json
+ *   {"profile": "<名前>", "profiles": {"<名前>": {"shootingMode": "...", "frameRate": 30, ...}}}
+ *   ファイルのプリセットで省略した値はデフォルトのものになる
+ * - "auto" はキャッシュされたコーデック能力から、維持できる最も高い組み合わせを選ぶ
+ *
+ * 選んだプロファイルはコーデック能力と照らし合わせ、コーデックが無ければデフォルトに戻す。
+ */
+class EncoderProfiles(
+        private val context: Context,
+        private val encoderFactory: ThetaHardwareVideoEncoderFactory
+) {
+    companion object {
+        private val TAG = EncoderProfiles::class.simpleName
+
+        const val PROFILE_FILE = "encoder_profiles.json"
+        const val AUTO = "auto"
+
+        const val EXTRA_PROFILE = "profile"
+        private const val KEY_PROFILES = "profiles"
+        private const val KEY_SHOOTING_MODE = "shootingMode"
+        private const val KEY_FRAME_RATE = "frameRate"
+        private const val KEY_BIT_RATE = "bitRate"
+        private const val KEY_CODEC = "codec"
+        private const val KEY_SIMULCAST = "simulcast"
+        private const val KEY_CAPTURE_TO_TEXTURE = "captureToTexture"
+
+        val BUILT_IN = listOf(
+                EncoderProfile("4k", ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI, 30, 30000,
+                        SoraVideoOption.Codec.H264, simulcast = false, captureToTexture = false),
+                EncoderProfile("4k-simulcast", ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI, 30, 30000,
+                        SoraVideoOption.Codec.H264, simulcast = true, captureToTexture = false),
+                EncoderProfile("2k", ShootingMode.RIC_MOVIE_RECORDING_2K_EQUI, 30, 15000,
+                        SoraVideoOption.Codec.H264, simulcast = false, captureToTexture = true),
+                EncoderProfile("1k", ShootingMode.RIC_MOVIE_PREVIEW_1024, 30, 5000,
+                        SoraVideoOption.Codec.H264, simulcast = false, captureToTexture = true),
+                EncoderProfile("640", ShootingMode.RIC_MOVIE_PREVIEW_640, 30, 2000,
+                        SoraVideoOption.Codec.H264, simulcast = false, captureToTexture = true)
+        )
+
+        // "auto" の候補。上から順に試す
+        private val AUTO_CANDIDATES = listOf(
+                Triple(ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI, 30, 30000),
+                Triple(ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI, 15, 20000),
+                Triple(ShootingMode.RIC_MOVIE_RECORDING_2K_EQUI, 30, 15000),
+                Triple(ShootingMode.RIC_MOVIE_PREVIEW_1024, 30, 5000),
+                Triple(ShootingMode.RIC_MOVIE_PREVIEW_640, 30, 2000)
+        )
+    }
+
+    /** [intent] と設定ファイルから、[default] を基にプロファイルを決める。 */
+    fun resolve(intent: Intent?, default: EncoderProfile): EncoderProfile {
+        val file = loadFile()
+        val presets = BUILT_IN.associateBy { it.name }.toMutableMap()
+        file?.optJSONObject(KEY_PROFILES)?.let { profiles ->
+            for (name in profiles.keys()) {
+                try {
+                    presets[name] = parse(name, profiles.getJSONObject(name), default)
+                } catch (e: Exception) {
+                    SoraLogger.e(TAG, "Invalid profile $name in $PROFILE_FILE: ${e.message}")
+                }
+            }
+        }
+
+        val name = intent?.getStringExtra(EXTRA_PROFILE) ?: file?.optString(EXTRA_PROFILE, null)
+        var profile = when (name) {
+            null -> default
+            AUTO -> selectAuto(default)
+            else -> presets[name] ?: default.also {
+                SoraLogger.e(TAG, "Unknown profile $name, using ${default.name}")
+            }
+        }
+        intent?.extras?.let { extras ->
+            try {
+                profile = override(profile, extras.keySet().associateWith { extras.get(it) })
+            } catch (e: IllegalArgumentException) {
+                SoraLogger.e(TAG, "Invalid profile extra: ${e.message}")
+            }
+        }
+        return validate(profile, default)
+    }
+
+    private fun loadFile(): JSONObject? {
+        val file = File(context.getExternalFilesDir(null), PROFILE_FILE)
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            JSONObject(file.readText())
+        } catch (e: Exception) {
+            when (e) {
+                is JSONException, is java.io.IOException -> {
+                    SoraLogger.e(TAG, "Cannot read $file: ${e.message}")
+                    null
+                }
+                else -> throw e
+            }
+        }
+    }
+
+    private fun parse(name: String, json: JSONObject, base: EncoderProfile): EncoderProfile {
+        val values = json.keys().asSequence().associateWith { json.get(it) }
+        return override(base.copy(name = name), values)
+    }
+
+    // 指定された値だけを置き換える。値が不正なら IllegalArgumentException
+    private fun override(base: EncoderProfile, values: Map<String, Any?>): EncoderProfile {
+        fun int(key: String, current: Int) =
+                values[key]?.let { it.toString().toIntOrNull()
+                        ?: throw IllegalArgumentException("$key: $it") } ?: current
+        fun bool(key: String, current: Boolean) =
+                values[key]?.let { it.toString().toBoolean() } ?: current
+        return base.copy(
+                shootingMode = values[KEY_SHOOTING_MODE]?.let { ShootingMode.valueOf(it.toString()) }
+                        ?: base.shootingMode,
+                frameRate = int(KEY_FRAME_RATE, base.frameRate),
+                bitRate = int(KEY_BIT_RATE, base.bitRate),
+                codec = values[KEY_CODEC]?.let { SoraVideoOption.Codec.valueOf(it.toString()) }
+                        ?: base.codec,
+                simulcast = bool(KEY_SIMULCAST, base.simulcast),
+                captureToTexture = bool(KEY_CAPTURE_TO_TEXTURE, base.captureToTexture))
+    }
+
+    // 維持できると分かっている最も高い組み合わせ。分からなければ最も低いもの
+    private fun selectAuto(default: EncoderProfile): EncoderProfile {
+        val (mode, frameRate, bitRate) = AUTO_CANDIDATES.firstOrNull { (mode, frameRate, _) ->
+            encoderFactory.getSustainableFramerate(default.codec.name, mode.width, mode.height) >=
+                    frameRate
+        } ?: AUTO_CANDIDATES.last()
+        return default.copy(name = AUTO, shootingMode = mode, frameRate = frameRate,
+                bitRate = bitRate)
+    }
+
+    private fun validate(profile: EncoderProfile, default: EncoderProfile): EncoderProfile {
+        if (profile.frameRate <= 0 || profile.bitRate <= 0) {
+            SoraLogger.e(TAG, "Invalid $profile, using ${default.name}")
+            return default
+        }
+        if (encoderFactory.supportedCodecs.none { it.name == profile.codec.name }) {
+            SoraLogger.e(TAG, "No hardware encoder for ${profile.codec}, using ${default.name}")
+            return default
+        }
+        val sustainable = encoderFactory.getSustainableFramerate(
+                profile.codec.name, profile.shootingMode.width, profile.shootingMode.height)
+        if (sustainable > 0 && sustainable < profile.frameRate) {
+            SoraLogger.w(TAG, "${profile.codec} sustains %.1f fps at ${profile.shootingMode.videoSize}"
+                    .format(sustainable) + ", requested ${profile.frameRate} fps")
+        }
+        SoraLogger.d(TAG, "Using $profile")
+        return profile
+    }
+}
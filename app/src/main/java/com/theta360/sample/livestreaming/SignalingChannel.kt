@@ -46,6 +46,7 @@ class SignalingChannel(
         VP8("VP8"),
         VP9("VP9"),
         H264("H264"),
+        H265("H265"),
     }
 
     enum class AudioCodec(val value: String) {
@@ -16,32 +16,40 @@ import jp.shiguredo.sora.sdk.channel.signaling.message.PushMessage
 import jp.shiguredo.sora.sdk.error.SoraErrorReason
 import jp.shiguredo.sora.sdk.util.SoraLogger
 import org.webrtc.*
+import java.io.File
 import android.content.IntentFilter
 import jp.shiguredo.sora.sdk.channel.option.SoraAudioOption
 
 class SoraAmbisonicsActivity : Activity() {
     companion object {
         private val TAG = SoraAmbisonicsActivity::class.simpleName
+        private const val CODEC_CAPABILITY_CACHE_FILE = "codec_capabilities.json"
+        // 4K のキーフレームは大きいため、視聴者の一斉参加による連続したキーフレームを抑える
+        private const val KEY_FRAME_COALESCING_WINDOW_MS = 500L
+        private const val MIN_KEY_FRAME_SPACING_MS = 1000L
+        // この間出力がなければエンコーダーが止まったとみなして作り直す
+        private const val STALL_FRAME_INTERVALS = 60
+        // intent extra や設定ファイルで指定がないときのプロファイル
+        private val DEFAULT_PROFILE = EncoderProfile("default",
+                ShootingMode.RIC_MOVIE_RECORDING_2K_EQUI, 30, 15000, SoraVideoOption.Codec.H264,
+                simulcast = false, captureToTexture = true)
     }
 
-    // Capture parameters
-    // private val shootingMode = ShootingMode.RIC_MOVIE_PREVIEW_3840
-    // private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI
-    // private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_4K_DUAL
-    private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_2K_EQUI
-    // private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_2K_DUAL
-    // private val shootingMode = ShootingMode.RIC_STILL_PREVIEW_1920
+    // Capture and signaling parameters for video, chosen by EncoderProfiles.  Simulcast is not
+    // used here.
+    private lateinit var profile: EncoderProfile
+    private val shootingMode get() = profile.shootingMode
+    private val frameRate get() = profile.frameRate
+    private val bitRate get() = profile.bitRate
+    private val codec get() = profile.codec
+    private val captureToTexture get() = profile.captureToTexture
 
-    private val frameRate = 30
     private val maintainsResolution = true
 
-    // signaling parameters for video
-    private val bitRate = 15000
-    private val codec = SoraVideoOption.Codec.H264
-
     private var localView: SurfaceViewRenderer? = null
     private var capturer: VideoCapturer? = null
     private var eglBase: EglBase? = null
+    private var calibrationThread: Thread? = null
 
     private var channel: SoraMediaChannel? = null
 
@@ -85,6 +93,25 @@ class SoraAmbisonicsActivity : Activity() {
 
         eglBase = EglBase.create()
         // localView!!.init(eglBase!!.eglBaseContext, null)
+
+        val capabilityFactory = ThetaHardwareVideoEncoderFactory.builder()
+                .setSharedContext(eglBase!!.eglBaseContext)
+                .setCapabilityCacheFile(File(cacheDir, CODEC_CAPABILITY_CACHE_FILE))
+                .createVideoEncoderFactory()
+        profile = EncoderProfiles(this, capabilityFactory).resolve(intent, DEFAULT_PROFILE)
+
+        // エンコーダーの選択に使うフレームレートを配信前に計測してキャッシュしておく。
+        // エンコーダーごとに数秒かかるため別スレッドで行う。配信を始めるときは計測を打ち切り、
+        // 計測できていないエンコーダーは公称値で選ぶ。onResume ですぐ配信するときは計測しない
+        if (!autoPublish) {
+            calibrationThread = Thread({ capabilityFactory.calibrate(shootingMode, frameRate) },
+                    "EncoderCalibration").apply { start() }
+        }
+    }
+
+    override fun onDestroy() {
+        stopCalibration()
+        super.onDestroy()
     }
 
     override fun onResume() {
@@ -162,6 +189,9 @@ class SoraAmbisonicsActivity : Activity() {
     private fun startChannel() {
         Log.d(TAG, "startChannel")
 
+        // 計測のエンコーダーは配信と同じ解像度で動くため、配信のエンコーダーと競合させない
+        stopCalibration()
+
         synchronized(publishingStateLock) {
             publishing = true
         }
@@ -174,15 +204,20 @@ class SoraAmbisonicsActivity : Activity() {
         val cameraName = deviceNames[0]
         capturer = ThetaCamera1Capturer(shootingMode, cameraName,
                /* CameraEventsHandler */ null,
-               /*captureToTexture*/ true,
+               /*captureToTexture*/ captureToTexture,
                 maintainsResolution)
 
         // capturer = ThetaCapturer(shootingMode, maintainsResolution)
 
-        val thetaVideoEncoderFactory = ThetaHardwareVideoEncoderFactory(
-                eglBase!!.eglBaseContext,
-                true /* enableIntelVp8Encoder */,
-                false /* enableH264HighProfile */)
+        val thetaVideoEncoderFactory = ThetaHardwareVideoEncoderFactory.builder()
+                .setSharedContext(eglBase!!.eglBaseContext)
+                .setEnableIntelVp8Encoder(true)
+                .setEnableH264HighProfile(false)
+                .setCapabilityCacheFile(File(cacheDir, CODEC_CAPABILITY_CACHE_FILE))
+                .setTargetShootingMode(shootingMode, frameRate)
+                .setKeyFrameRequestLimits(KEY_FRAME_COALESCING_WINDOW_MS, MIN_KEY_FRAME_SPACING_MS)
+                .setStallWatchdog(STALL_FRAME_INTERVALS)
+                .createVideoEncoderFactory()
         val option = SoraMediaOption().apply {
             enableAudioUpstream()
             audioCodec = SoraAudioOption.Codec.OPUS
@@ -203,6 +238,14 @@ class SoraAmbisonicsActivity : Activity() {
         channel!!.connect()
     }
 
+    private fun stopCalibration() {
+        calibrationThread?.let {
+            it.interrupt()
+            it.join()
+        }
+        calibrationThread = null
+    }
+
     private fun close() {
         synchronized(publishingStateLock) {
             publishing = false
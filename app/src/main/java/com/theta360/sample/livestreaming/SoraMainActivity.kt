@@ -16,39 +16,67 @@ import jp.shiguredo.sora.sdk.channel.signaling.message.PushMessage
 import jp.shiguredo.sora.sdk.error.SoraErrorReason
 import jp.shiguredo.sora.sdk.util.SoraLogger
 import org.webrtc.*
+import java.io.File
 import android.content.IntentFilter
 import jp.shiguredo.sora.sdk.channel.option.PeerConnectionOption
-import jp.shiguredo.sora.sdk.video.SimulcastVideoEncoderFactory
 import java.lang.IllegalArgumentException
 
 class SoraMainActivity : Activity() {
     companion object {
         private val TAG = SoraMainActivity::class.simpleName
+        private const val CODEC_CAPABILITY_CACHE_FILE = "codec_capabilities.json"
+        // 4K のキーフレームは大きいため、視聴者の一斉参加による連続したキーフレームを抑える
+        private const val KEY_FRAME_COALESCING_WINDOW_MS = 500L
+        private const val MIN_KEY_FRAME_SPACING_MS = 1000L
+        // この間出力がなければエンコーダーが止まったとみなして作り直す
+        private const val STALL_FRAME_INTERVALS = 60
+        // "low" レイヤーの sender encoding に渡す嘘のフレームレートと実際のフレームレート
+        private const val LOW_LAYER_FAKE_MAX_FRAMERATE = 5
+        private const val LOW_LAYER_ACTUAL_MAX_FRAMERATE = 1
+        // ローカル録画の書き込みを待てるフレーム数。超えたら次のキーフレームまで録画を間引く
+        private const val RECORDING_MAX_QUEUED_FRAMES = 60
+        // リプレイ用に残すエンコード結果の長さと、そのために確保するメモリ (30 Mbps で約 12 秒)
+        private const val REPLAY_MAX_DURATION_MS = 10_000L
+        private const val REPLAY_MAX_BYTES = 48 * 1024 * 1024
+        // リプレイの書き出しで書き込みを待つフレームのメモリ。超えたら書き込みを待つ
+        private const val REPLAY_MAX_QUEUED_BYTES = 8 * 1024 * 1024
+        // タイル分割エンコードの評価で使うエンコーダーインスタンスの数
+        private const val TILED_ENCODE_TILE_COUNT = 2
+        // intent extra や設定ファイルで指定がないときのプロファイル
+        private val DEFAULT_PROFILE = EncoderProfile("default",
+                ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI, 30, 30000, SoraVideoOption.Codec.H264,
+                simulcast = true, captureToTexture = false)
     }
 
-    // Capture parameters
-    // private val shootingMode = ShootingMode.RIC_MOVIE_PREVIEW_3840
-    private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_4K_EQUI
-    // private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_4K_DUAL
-    // private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_2K_EQUI
-    // private val shootingMode = ShootingMode.RIC_MOVIE_RECORDING_2K_DUAL
-    // private val shootingMode = ShootingMode.RIC_STILL_PREVIEW_1920
+    // Capture and signaling parameters for video, chosen by EncoderProfiles
+    private lateinit var profile: EncoderProfile
+    private val shootingMode get() = profile.shootingMode
+    private val frameRate get() = profile.frameRate
+    private val bitRate get() = profile.bitRate
+    private val codec get() = profile.codec
+    private val simulcast get() = profile.simulcast
+    private val captureToTexture get() = profile.captureToTexture
 
-    private val frameRate = 30
     private val maintainsResolution = true
 
-    // signaling parameters for video
-    private val bitRate = 30000
-    private val codec = SoraVideoOption.Codec.H264
-    private val simulcast = true
-    private val captureToTexture = false
+    // 配信中のエンコード結果を再エンコードせずに MP4 に録画する
+    private val recordLocally = false
+    // 配信中のエンコード結果の直近数秒をメモリに残し、モードボタンで MP4 に書き出す
+    private val keepReplayBuffer = false
+    // 配信とは別に、フレームをタイルに分けて複数のハードウェアエンコーダーでエンコードし、
+    // タイルごとのスループットをログに出す (評価用)
+    private val probeTiledEncoding = false
 
     private val getStatsIntervalMSec = 5000L
     private val statsCollector = VideoUpstreamLatencyStatsCollector()
 
     private var localView: SurfaceViewRenderer? = null
     private var capturer: VideoCapturer? = null
+    private var recordingSink: ThetaMp4RecordingSink? = null
+    private var replayRing: ThetaEncodedFrameRing? = null
+    private var tiledEncodeProbe: TiledEncodeProbe? = null
     private var eglBase: EglBase? = null
+    private var calibrationThread: Thread? = null
 
     private var channel: SoraMediaChannel? = null
 
@@ -67,6 +95,8 @@ class SoraMainActivity : Activity() {
                             startChannel()
                         }
                     }
+                KeyReceiver.KEYCODE_MEDIA_RECORD ->
+                    saveReplay()
             }
         }
 
@@ -92,6 +122,25 @@ class SoraMainActivity : Activity() {
 
         eglBase = EglBase.create()
         // localView!!.init(eglBase!!.eglBaseContext, null)
+
+        val capabilityFactory = ThetaHardwareVideoEncoderFactory.builder()
+                .setSharedContext(eglBase!!.eglBaseContext)
+                .setCapabilityCacheFile(File(cacheDir, CODEC_CAPABILITY_CACHE_FILE))
+                .createVideoEncoderFactory()
+        profile = EncoderProfiles(this, capabilityFactory).resolve(intent, DEFAULT_PROFILE)
+
+        // エンコーダーの選択に使うフレームレートを配信前に計測してキャッシュしておく。
+        // エンコーダーごとに数秒かかるため別スレッドで行う。配信を始めるときは計測を打ち切り、
+        // 計測できていないエンコーダーは公称値で選ぶ。onResume ですぐ配信するときは計測しない
+        if (!autoPublish) {
+            calibrationThread = Thread({ capabilityFactory.calibrate(shootingMode, frameRate) },
+                    "EncoderCalibration").apply { start() }
+        }
+    }
+
+    override fun onDestroy() {
+        stopCalibration()
+        super.onDestroy()
     }
 
     override fun onResume() {
@@ -142,12 +191,13 @@ class SoraMainActivity : Activity() {
                 encoding.scaleResolutionDownBy = 1.0
                 // sender encoding を 1 FPS にするとビットレートが上がらず画質が悪い。
                 // libwebrtc(BWE) や org.webrtc.HardwareVideoEncoder には嘘の値を渡し、
-                // 1 FPS に落とすロジックはフレームドロップ部分で処理する。
-                val actualMaxFramerate = 1
+                // 1 FPS に落とすロジックはフレームドロップ部分
+                // (ThetaHardwareVideoEncoderFactory.Builder.setDecimatedFramerate) で処理する。
+                val actualMaxFramerate = LOW_LAYER_ACTUAL_MAX_FRAMERATE
                 val lowBitrateBps = 5_000_000 + actualMaxFramerate * 1_000
                 when (encoding.rid) {
                     "low" -> {
-                        encoding.maxFramerate  = 5 // **FAKE**
+                        encoding.maxFramerate  = LOW_LAYER_FAKE_MAX_FRAMERATE // **FAKE**
                         encoding.maxBitrateBps = lowBitrateBps
                         encoding.minBitrateBps = lowBitrateBps
                     }
@@ -172,6 +222,7 @@ class SoraMainActivity : Activity() {
                 if (ms.videoTracks.size > 0) {
                     // val track = ms.videoTracks[0]
                     // track.addSink(this@SoraMainActivity.localView)
+                    tiledEncodeProbe?.let { ms.videoTracks[0].addSink(it) }
                 }
                 capturer?.startCapture(shootingMode.width, shootingMode.height, frameRate)
             }
@@ -195,6 +246,9 @@ class SoraMainActivity : Activity() {
     private fun startChannel() {
         Log.d(TAG, "startChannel")
 
+        // 計測のエンコーダーは配信と同じ解像度で動くため、配信のエンコーダーと競合させない
+        stopCalibration()
+
         synchronized(publishingStateLock) {
             publishing = true
         }
@@ -210,6 +264,30 @@ class SoraMainActivity : Activity() {
                 /*captureToTexture*/ captureToTexture,
                 maintainsResolution)
 
+        if (recordLocally) {
+            val file = File(getExternalFilesDir(null), "live_${System.currentTimeMillis()}.mp4")
+            recordingSink = ThetaMp4RecordingSink(file,
+                    shootingMode.width, shootingMode.height, RECORDING_MAX_QUEUED_FRAMES)
+        }
+
+        if (keepReplayBuffer) {
+            replayRing = ThetaEncodedFrameRing(shootingMode.width, shootingMode.height,
+                    REPLAY_MAX_BYTES, REPLAY_MAX_DURATION_MS)
+        }
+
+        if (probeTiledEncoding) {
+            // 配信用のエンコーダーとは別のファクトリーで作る
+            val probeEncoderFactory = ThetaHardwareVideoEncoderFactory.builder()
+                    .setCapabilityCacheFile(File(cacheDir, CODEC_CAPABILITY_CACHE_FILE))
+                    .createVideoEncoderFactory()
+            tiledEncodeProbe = probeEncoderFactory.supportedCodecs
+                    .firstOrNull { it.name == codec.name }
+                    ?.let {
+                        TiledEncodeProbe(probeEncoderFactory, it, TILED_ENCODE_TILE_COUNT,
+                                shootingMode.width, shootingMode.height, bitRate, frameRate)
+                    }
+        }
+
         val option = SoraMediaOption().apply {
             // enableAudioUpstream()
             // audioCodec = SoraAudioOption.Codec.OPUS
@@ -220,13 +298,37 @@ class SoraMainActivity : Activity() {
             enableCpuOveruseDetection = false
             if (simulcast) {
                 enableSimulcast()
-                val simulcastVideoEncoderFactory = SimulcastVideoEncoderFactory(eglBase!!.eglBaseContext)
+                // Every layer gets a Theta encoder.  With texture capture, the layers share one
+                // downscale of the capture texture.
+                val thetaVideoEncoderFactory = ThetaHardwareVideoEncoderFactory.builder()
+                        .setSharedContext(eglBase!!.eglBaseContext)
+                        .setEnableIntelVp8Encoder(true)
+                        .setEnableH264HighProfile(false)
+                        .setCapabilityCacheFile(File(cacheDir, CODEC_CAPABILITY_CACHE_FILE))
+                        .setTargetShootingMode(shootingMode, frameRate)
+                        .setKeyFrameRequestLimits(KEY_FRAME_COALESCING_WINDOW_MS, MIN_KEY_FRAME_SPACING_MS)
+                        .setStallWatchdog(STALL_FRAME_INTERVALS)
+                        .apply { recordingSink?.let { addEncodedFrameSink(it) } }
+                        .apply { replayRing?.let { addEncodedFrameSink(it) } }
+                        .setShareSimulcastScaling(true)
+                        .setDecimatedFramerate(
+                                LOW_LAYER_FAKE_MAX_FRAMERATE, LOW_LAYER_ACTUAL_MAX_FRAMERATE)
+                        .createVideoEncoderFactory()
+                val simulcastVideoEncoderFactory = org.webrtc.SimulcastVideoEncoderFactory(
+                        thetaVideoEncoderFactory, SoftwareVideoEncoderFactory())
                 videoEncoderFactory = simulcastVideoEncoderFactory
             } else {
-                val thetaVideoEncoderFactory = ThetaHardwareVideoEncoderFactory(
-                        eglBase!!.eglBaseContext,
-                        true /* enableIntelVp8Encoder */,
-                        false /* enableH264HighProfile */)
+                val thetaVideoEncoderFactory = ThetaHardwareVideoEncoderFactory.builder()
+                        .setSharedContext(eglBase!!.eglBaseContext)
+                        .setEnableIntelVp8Encoder(true)
+                        .setEnableH264HighProfile(false)
+                        .setCapabilityCacheFile(File(cacheDir, CODEC_CAPABILITY_CACHE_FILE))
+                        .setTargetShootingMode(shootingMode, frameRate)
+                        .setKeyFrameRequestLimits(KEY_FRAME_COALESCING_WINDOW_MS, MIN_KEY_FRAME_SPACING_MS)
+                        .setStallWatchdog(STALL_FRAME_INTERVALS)
+                        .apply { recordingSink?.let { addEncodedFrameSink(it) } }
+                        .apply { replayRing?.let { addEncodedFrameSink(it) } }
+                        .createVideoEncoderFactory()
                 videoEncoderFactory = thetaVideoEncoderFactory
             }
         }
@@ -245,6 +347,31 @@ class SoraMainActivity : Activity() {
         channel!!.connect()
     }
 
+    private fun saveReplay() {
+        val ring = replayRing ?: return
+        // 書き出しの完了を待つため、キー入力のスレッドでは行わない
+        Thread({
+            val file = File(getExternalFilesDir(null), "replay_${System.currentTimeMillis()}.mp4")
+            // フレームを落とさず、キューが埋まったら書き込みを待つ
+            val sink = ThetaMp4RecordingSink(file, shootingMode.width, shootingMode.height,
+                    frameRate, REPLAY_MAX_QUEUED_BYTES, /* waitForWriter */ true)
+            if (ring.replay(sink, /* latestGopOnly */ false)) {
+                sink.stop()
+                SoraLogger.d(TAG, "Replay saved: $sink")
+            } else {
+                SoraLogger.d(TAG, "Nothing to replay: $ring")
+            }
+        }, "ReplayWriter").start()
+    }
+
+    private fun stopCalibration() {
+        calibrationThread?.let {
+            it.interrupt()
+            it.join()
+        }
+        calibrationThread = null
+    }
+
     private fun close() {
         synchronized(publishingStateLock) {
             publishing = false
@@ -256,6 +383,16 @@ class SoraMainActivity : Activity() {
         capturer?.stopCapture()
         capturer = null
 
+        recordingSink?.let {
+            it.stop()
+            SoraLogger.d(TAG, "Recording stopped: $it")
+        }
+        recordingSink = null
+        replayRing = null
+
+        tiledEncodeProbe?.release()
+        tiledEncodeProbe = null
+
         localView?.release()
 
         eglBase?.release()
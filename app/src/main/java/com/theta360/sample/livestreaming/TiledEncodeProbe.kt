@@ -0,0 +1,119 @@
+package com.theta360.sample.livestreaming
+
+import android.os.Handler
+import android.os.HandlerThread
+import jp.shiguredo.sora.sdk.util.SoraLogger
+import org.webrtc.ThetaHardwareVideoEncoderFactory
+import org.webrtc.ThetaTiledVideoEncoder
+import org.webrtc.VideoCodecInfo
+import org.webrtc.VideoCodecStatus
+import org.webrtc.VideoFrame
+import org.webrtc.VideoSink
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * 配信するフレームを ThetaTiledVideoEncoder でタイルに分け、タイルごとに別のハードウェア
+ * エンコーダーでエンコードして、タイルごとのフレームレートとビットレートをログに出す。
+ *
+ * エンコード結果は配信しない。複数のエンコーダーインスタンスで解像度を分担できるかを
+ * 実機で確かめるためのもの。エンコードは専用スレッドで行い、前のフレームをエンコード中に
+ * 届いたフレームは捨てる。
+ */
+class TiledEncodeProbe(
+        private val encoderFactory: ThetaHardwareVideoEncoderFactory,
+        private val codecInfo: VideoCodecInfo,
+        private val tileCount: Int,
+        private val width: Int,
+        private val height: Int,
+        // kbps, 全タイルの合計
+        private val bitRate: Int,
+        private val frameRate: Int
+) : VideoSink {
+    companion object {
+        private val TAG = TiledEncodeProbe::class.simpleName
+        private const val LOG_INTERVAL_MS = 5000L
+    }
+
+    private val thread = HandlerThread("TiledEncodeProbe").apply { start() }
+    private val handler = Handler(thread.looper)
+    private val encoding = AtomicBoolean(false)
+
+    // タイルごとの出力。タイルエンコーダーの出力スレッドから更新する
+    private val encodedFrames = AtomicLongArray(tileCount)
+    private val encodedBytes = AtomicLongArray(tileCount)
+
+    // 以下は専用スレッドでのみ触る
+    private var encoder: ThetaTiledVideoEncoder? = null
+    private var initialized = false
+    private var lastLogMs = 0L
+
+    private val logStats = object : Runnable {
+        override fun run() {
+            val now = System.currentTimeMillis()
+            val seconds = (now - lastLogMs) / 1000.0
+            for (i in 0 until (encoder?.tileCount ?: 0)) {
+                val frames = encodedFrames.getAndSet(i, 0)
+                val bytes = encodedBytes.getAndSet(i, 0)
+                SoraLogger.d(TAG, "tile $i: %.1f fps, %d kbps".format(
+                        frames / seconds, (bytes * 8 / seconds / 1000).toLong()))
+            }
+            lastLogMs = now
+            handler.postDelayed(this, LOG_INTERVAL_MS)
+        }
+    }
+
+    override fun onFrame(frame: VideoFrame) {
+        if (!encoding.compareAndSet(false, true)) {
+            return
+        }
+        frame.retain()
+        val posted = handler.post {
+            try {
+                if (!initialized) {
+                    initialized = true
+                    initEncoder()
+                }
+                encoder?.encode(frame)
+            } finally {
+                frame.release()
+                encoding.set(false)
+            }
+        }
+        if (!posted) {
+            // release() の後
+            frame.release()
+            encoding.set(false)
+        }
+    }
+
+    fun release() {
+        handler.post {
+            handler.removeCallbacks(logStats)
+            encoder?.release()
+            encoder = null
+        }
+        thread.quitSafely()
+    }
+
+    private fun initEncoder() {
+        val tiledEncoder = encoderFactory.createTiledEncoder(
+                codecInfo, tileCount, ThetaTiledVideoEncoder.TileLayout.COLUMNS)
+        if (tiledEncoder == null) {
+            SoraLogger.w(TAG, "Tiled encoding of ${codecInfo.name} is not supported")
+            return
+        }
+        val status = tiledEncoder.initEncode(width, height, bitRate, frameRate) {
+            tileIndex, encodedImage, _ ->
+            encodedFrames.incrementAndGet(tileIndex)
+            encodedBytes.addAndGet(tileIndex, encodedImage.buffer.remaining().toLong())
+        }
+        if (status != VideoCodecStatus.OK) {
+            SoraLogger.w(TAG, "Tiled encoder failed to initialize: $status")
+            return
+        }
+        encoder = tiledEncoder
+        lastLogMs = System.currentTimeMillis()
+        handler.postDelayed(logStats, LOG_INTERVAL_MS)
+    }
+}
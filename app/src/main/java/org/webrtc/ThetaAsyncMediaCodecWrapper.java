@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodecWrapper running the codec in asynchronous mode. Output buffers are delivered to an
+ * {@link OutputListener} on the handler given to {@link #setCallback}, and
+ * {@link #dequeueInputBuffer} returns the input buffers announced by the codec without blocking.
+ *
+ * The deprecated buffer array getters and dequeueOutputBuffer() are not available in asynchronous
+ * mode; use {@link #getInputBuffer} and {@link #getOutputBuffer} instead.
+ */
+interface ThetaAsyncMediaCodecWrapper extends MediaCodecWrapper {
+  /** Receives codec events on the callback handler. */
+  interface OutputListener {
+    void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+    void onOutputFormatChanged(MediaFormat format);
+    void onError(MediaCodec.CodecException e);
+  }
+
+  /** Switches the codec to asynchronous mode.  Must be called before configure(). */
+  void setCallback(OutputListener listener, Handler handler);
+
+  ByteBuffer getInputBuffer(int index);
+
+  ByteBuffer getOutputBuffer(int index);
+}
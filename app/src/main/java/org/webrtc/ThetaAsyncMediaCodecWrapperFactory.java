@@ -0,0 +1,23 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.io.IOException;
+
+/** Creates codecs for asynchronous mode, like MediaCodecWrapperFactory for synchronous mode. */
+interface ThetaAsyncMediaCodecWrapperFactory {
+  /**
+   * Creates a new ThetaAsyncMediaCodecWrapper by codec name.
+   *
+   * <p>For additional information see android.media.MediaCodec#createByCodecName().
+   */
+  ThetaAsyncMediaCodecWrapper createByCodecName(String name) throws IOException;
+}
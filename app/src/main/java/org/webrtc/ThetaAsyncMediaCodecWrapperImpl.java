@@ -0,0 +1,160 @@
+/*
+ *  Copyright 2018 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCrypto;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Surface;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * ThetaAsyncMediaCodecWrapper of a MediaCodec. Input buffer indices announced by the codec are
+ * queued internally, so {@link #dequeueInputBuffer} keeps its non-blocking synchronous-mode
+ * semantics for the encode thread.
+ */
+@TargetApi(23)
+class ThetaAsyncMediaCodecWrapperImpl implements ThetaAsyncMediaCodecWrapper {
+  private static final String TAG = "ThetaAsyncMediaCodecWrapperImpl";
+
+  // Upper bound of input buffers a codec allocates.  Indices beyond this are dropped.
+  private static final int MAX_PENDING_INPUT_BUFFERS = 64;
+
+  private final MediaCodec mediaCodec;
+  private final ArrayBlockingQueue<Integer> availableInputBuffers =
+      new ArrayBlockingQueue<>(MAX_PENDING_INPUT_BUFFERS);
+
+  static ThetaAsyncMediaCodecWrapper createByCodecName(String name) throws IOException {
+    return new ThetaAsyncMediaCodecWrapperImpl(MediaCodec.createByCodecName(name));
+  }
+
+  private ThetaAsyncMediaCodecWrapperImpl(MediaCodec mediaCodec) {
+    this.mediaCodec = mediaCodec;
+  }
+
+  @Override
+  public void setCallback(final OutputListener listener, Handler handler) {
+    mediaCodec.setCallback(new MediaCodec.Callback() {
+      @Override
+      public void onInputBufferAvailable(MediaCodec codec, int index) {
+        if (!availableInputBuffers.offer(index)) {
+          Logging.e(TAG, "Too many pending input buffers, dropping index " + index);
+        }
+      }
+
+      @Override
+      public void onOutputBufferAvailable(
+          MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        listener.onOutputBufferAvailable(index, info);
+      }
+
+      @Override
+      public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        listener.onError(e);
+      }
+
+      @Override
+      public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        listener.onOutputFormatChanged(format);
+      }
+    }, handler);
+  }
+
+  @Override
+  public void configure(MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+    mediaCodec.configure(format, surface, crypto, flags);
+  }
+
+  @Override
+  public void start() {
+    mediaCodec.start();
+  }
+
+  @Override
+  public void flush() {
+    availableInputBuffers.clear();
+    mediaCodec.flush();
+  }
+
+  @Override
+  public void stop() {
+    mediaCodec.stop();
+    availableInputBuffers.clear();
+  }
+
+  @Override
+  public void release() {
+    mediaCodec.release();
+  }
+
+  // Never blocks: returns an index announced by the codec, or INFO_TRY_AGAIN_LATER.
+  @Override
+  public int dequeueInputBuffer(long timeoutUs) {
+    Integer index = availableInputBuffers.poll();
+    return index == null ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+  }
+
+  @Override
+  public void queueInputBuffer(
+      int index, int offset, int size, long presentationTimeUs, int flags) {
+    mediaCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+  }
+
+  @Override
+  public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+    throw new IllegalStateException("dequeueOutputBuffer is not available in asynchronous mode");
+  }
+
+  @Override
+  public void releaseOutputBuffer(int index, boolean render) {
+    mediaCodec.releaseOutputBuffer(index, render);
+  }
+
+  @Override
+  public MediaFormat getOutputFormat() {
+    return mediaCodec.getOutputFormat();
+  }
+
+  @Override
+  public ByteBuffer[] getInputBuffers() {
+    throw new IllegalStateException("getInputBuffers is not available in asynchronous mode");
+  }
+
+  @Override
+  public ByteBuffer[] getOutputBuffers() {
+    throw new IllegalStateException("getOutputBuffers is not available in asynchronous mode");
+  }
+
+  @Override
+  public ByteBuffer getInputBuffer(int index) {
+    return mediaCodec.getInputBuffer(index);
+  }
+
+  @Override
+  public ByteBuffer getOutputBuffer(int index) {
+    return mediaCodec.getOutputBuffer(index);
+  }
+
+  @Override
+  public Surface createInputSurface() {
+    return mediaCodec.createInputSurface();
+  }
+
+  @Override
+  public void setParameters(Bundle params) {
+    mediaCodec.setParameters(params);
+  }
+}
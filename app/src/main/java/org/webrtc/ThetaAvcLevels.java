@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+/**
+ * H.264 levels to configure encoders with, from the macroblock and bitrate limits of Table A-1 of
+ * the specification.  Levels are MediaCodecInfo.CodecProfileLevel constants, which increase with
+ * the level.
+ */
+class ThetaAvcLevels {
+  // Level, maximum macroblocks per second, maximum macroblocks per frame and maximum bitrate in
+  // kbps of the Baseline profile.
+  private static final int[][] LIMITS = {
+      {CodecProfileLevel.AVCLevel3, 40500, 1620, 10000},
+      {CodecProfileLevel.AVCLevel31, 108000, 3600, 14000},
+      {CodecProfileLevel.AVCLevel32, 216000, 5120, 20000},
+      {CodecProfileLevel.AVCLevel4, 245760, 8192, 20000},
+      {CodecProfileLevel.AVCLevel41, 245760, 8192, 50000},
+      {CodecProfileLevel.AVCLevel42, 522240, 8704, 50000},
+      {CodecProfileLevel.AVCLevel5, 589824, 22080, 135000},
+      {CodecProfileLevel.AVCLevel51, 983040, 36864, 240000},
+      {CodecProfileLevel.AVCLevel52, 2073600, 36864, 240000},
+  };
+
+  // The High profile allows 1.25 times the bitrate of the Baseline profile at each level.
+  private static final double HIGH_PROFILE_BITRATE_FACTOR = 1.25;
+
+  private ThetaAvcLevels() {}
+
+  /**
+   * Returns the lowest level that allows |width| x |height| at |framerate| and |bitrateBps| in
+   * the Baseline or, if |highProfile|, the High profile, but not above |maxLevel|, the highest
+   * level the codec supports for the profile.  Returns |maxLevel| if no level in the table is high
+   * enough, and 0 if |maxLevel| is 0.
+   */
+  static int select(
+      int width, int height, int framerate, int bitrateBps, boolean highProfile, int maxLevel) {
+    final long macroblocks = (long) ((width + 15) / 16) * ((height + 15) / 16);
+    final double bitrateKbps =
+        bitrateBps / 1000.0 / (highProfile ? HIGH_PROFILE_BITRATE_FACTOR : 1);
+    for (int[] limits : LIMITS) {
+      if (macroblocks <= limits[2] && macroblocks * framerate <= limits[1]
+          && bitrateKbps <= limits[3]) {
+        return Math.min(limits[0], maxLevel);
+      }
+    }
+    return maxLevel;
+  }
+}
@@ -13,11 +13,11 @@ package org.webrtc;
 import android.content.Context;
 import android.os.Handler;
 import android.os.SystemClock;
+import android.support.annotation.Nullable;
 
 import com.theta360.sample.livestreaming.ShootingMode;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
@@ -25,7 +25,10 @@ import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 @SuppressWarnings("deprecation")
 class ThetaCamera1Session implements CameraSession {
   private static final String TAG = "Camera1Session";
-  private static final int NUMBER_OF_CAPTURE_BUFFERS = 3;
+  private static final int MIN_CAPTURE_BUFFERS = 3;
+  // Bounds the memory of the buffers, about 11 MB each at 4K.  The pool also keeps them within a
+  // share of the heap size.
+  private static final int MAX_CAPTURE_BUFFERS = 6;
 
   private static final Histogram camera1StartTimeMsHistogram =
       Histogram.createCounts("WebRTC.Android.Camera1.StartTimeMs", 1, 10000, 50);
@@ -47,14 +50,14 @@ class ThetaCamera1Session implements CameraSession {
   private final android.hardware.Camera camera;
   private final android.hardware.Camera.CameraInfo info;
   private final CaptureFormat captureFormat;
+  // Null when capturing to texture.
+  @Nullable private final ThetaCaptureBufferPool captureBufferPool;
   // Used only for stats. Only used on the camera thread.
   private final long constructionTimeNs; // Construction time of this class.
 
   private SessionState state;
   private boolean firstFrameReported;
 
-  // TODO(titovartem) make correct fix during webrtc:9175
-  @SuppressWarnings("ByteBufferBackingArray")
   public static void create(ShootingMode shootingMode,
                             final CreateSessionCallback callback, final Events events,
                             final boolean captureToTexture, final Context applicationContext,
@@ -103,19 +106,16 @@ class ThetaCamera1Session implements CameraSession {
         return;
     }
 
-    if (!captureToTexture) {
-        final int frameSize = captureFormat.frameSize();
-        for (int i = 0; i < NUMBER_OF_CAPTURE_BUFFERS; ++i) {
-            final ByteBuffer buffer = ByteBuffer.allocateDirect(frameSize);
-            camera.addCallbackBuffer(buffer.array());
-       }
-    }
+    final ThetaCaptureBufferPool captureBufferPool = captureToTexture ? null
+        : new ThetaCaptureBufferPool(camera, captureFormat.frameSize(), frameRate,
+              MIN_CAPTURE_BUFFERS, MAX_CAPTURE_BUFFERS);
 
     // Calculate orientation manually and send it as CVO insted.
     // camera.setDisplayOrientation(0 /* degrees */);
 
     callback.onDone(new ThetaCamera1Session(events, captureToTexture, applicationContext,
-        surfaceTextureHelper, cameraId, camera, info, captureFormat, constructionTimeNs));
+        surfaceTextureHelper, cameraId, camera, info, captureFormat, captureBufferPool,
+        constructionTimeNs));
   }
 
   private static void updateCameraParameters(android.hardware.Camera camera,
@@ -226,7 +226,7 @@ class ThetaCamera1Session implements CameraSession {
   private ThetaCamera1Session(Events events, boolean captureToTexture, Context applicationContext,
       SurfaceTextureHelper surfaceTextureHelper, int cameraId, android.hardware.Camera camera,
       android.hardware.Camera.CameraInfo info, CaptureFormat captureFormat,
-      long constructionTimeNs) {
+      @Nullable ThetaCaptureBufferPool captureBufferPool, long constructionTimeNs) {
     Logging.d(TAG, "Create new camera1 session on camera " + cameraId);
 
     this.cameraThreadHandler = new Handler();
@@ -238,6 +238,7 @@ class ThetaCamera1Session implements CameraSession {
     this.camera = camera;
     this.info = info;
     this.captureFormat = captureFormat;
+    this.captureBufferPool = captureBufferPool;
     this.constructionTimeNs = constructionTimeNs;
 
     surfaceTextureHelper.setTextureSize(captureFormat.width, captureFormat.height);
@@ -309,6 +310,10 @@ class ThetaCamera1Session implements CameraSession {
     // android.hardware.Camera._stopPreview(Native Method) has been observed on
     // Nexus 5 (hammerhead), OS version LMY48I.
     camera.stopPreview();
+    if (captureBufferPool != null) {
+      captureBufferPool.stop();
+      Logging.d(TAG, "Capture buffers: " + captureBufferPool);
+    }
     camera.release();
     events.onCameraClosed(this);
     Logging.d(TAG, "Stop done");
@@ -376,12 +381,10 @@ class ThetaCamera1Session implements CameraSession {
           firstFrameReported = true;
         }
 
-        VideoFrame.Buffer frameBuffer = new NV21Buffer(
-            data, captureFormat.width, captureFormat.height, () -> cameraThreadHandler.post(() -> {
-              if (state == SessionState.RUNNING) {
-                camera.addCallbackBuffer(data);
-              }
-            }));
+        captureBufferPool.onFrameCaptured(data);
+        VideoFrame.Buffer frameBuffer = new ThetaNV21Buffer(data, captureFormat.width,
+            captureFormat.height,
+            () -> cameraThreadHandler.post(() -> captureBufferPool.onFrameReleased(data)));
         final VideoFrame frame = new VideoFrame(frameBuffer, getFrameOrientation(), captureTimeNs);
         events.onFrameCaptured(ThetaCamera1Session.this, frame);
         frame.release();
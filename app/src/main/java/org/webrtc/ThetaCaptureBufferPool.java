@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Callback buffers of a Camera1 session in byte buffer mode, sized to how long the frames are held.
+ *
+ * The camera fills only the buffers added to it, and silently drops frames while it has none.
+ * The pool starts with |minBuffers| buffers and measures how long each frame is held down the
+ * pipeline.  When the camera ran out of buffers for more than a frame interval, a buffer is added
+ * right away.  Every {@link #WINDOW_MS}, the depth is set to the buffers needed by the longest
+ * hold of the window plus the one being filled, within [|minBuffers|, |maxBuffers|]; it grows at
+ * once and shrinks by one buffer per window, by not returning a released buffer to the camera.
+ * The buffers are on the Java heap, so |maxBuffers| is lowered to what fits in
+ * 1/{@link #HEAP_SHARE_DIVISOR} of the maximum heap size, but never below |minBuffers|.
+ *
+ * Only used on the camera thread.
+ */
+class ThetaCaptureBufferPool {
+  private static final String TAG = "ThetaCaptureBufferPool";
+
+  // Interval between depth adjustments.
+  private static final long WINDOW_MS = 2000;
+  // The buffers may take up to this fraction of the maximum heap size.  At 4K, a buffer is 11 MB.
+  private static final int HEAP_SHARE_DIVISOR = 4;
+
+  private final android.hardware.Camera camera;
+  private final int frameSize;
+  private final int minBuffers;
+  private final int maxBuffers;
+  private final long frameIntervalNs;
+  // Buffers passed down the pipeline, with the time they were captured.
+  private final IdentityHashMap<byte[], Long> inFlight = new IdentityHashMap<>();
+
+  // Buffers owned by the pool, either added to the camera or in flight.
+  private int bufferCount;
+  // Buffers to retire as they are released.
+  private int retireCount;
+  private boolean stopped;
+  // Time the camera was left without buffers, or 0.
+  private long exhaustedSinceNs;
+
+  private long windowStartNs;
+  private long windowMaxHoldNs;
+  private boolean windowStarved;
+
+  private long capturedCount;
+  private long returnedCount;
+  private long exhaustedCount;
+  private long starvedCount;
+  private long starvedFrameCount;
+  private long growCount;
+  private long shrinkCount;
+  private int maxInFlightCount;
+  private long totalHoldNs;
+  private long maxHoldNs;
+
+  /**
+   * Allocates |minBuffers| buffers of |frameSize| bytes and adds them to |camera|.
+   *
+   * @param frameRate capture frame rate, to convert hold times to buffers
+   */
+  ThetaCaptureBufferPool(android.hardware.Camera camera, int frameSize, int frameRate,
+      int minBuffers, int maxBuffers) {
+    if (minBuffers < 2 || maxBuffers < minBuffers || frameRate < 1) {
+      throw new IllegalArgumentException("Invalid capture buffer pool: " + minBuffers + "-"
+          + maxBuffers + " buffers at " + frameRate + " fps");
+    }
+    this.camera = camera;
+    this.frameSize = frameSize;
+    this.minBuffers = minBuffers;
+    final long heapBuffers = Runtime.getRuntime().maxMemory() / HEAP_SHARE_DIVISOR / frameSize;
+    this.maxBuffers = (int) Math.max(minBuffers, Math.min(maxBuffers, heapBuffers));
+    if (this.maxBuffers < maxBuffers) {
+      Logging.w(TAG, "Limited to " + this.maxBuffers + " buffers of " + frameSize
+          + " bytes by the heap size " + Runtime.getRuntime().maxMemory());
+    }
+    this.frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / frameRate;
+    for (int i = 0; i < minBuffers; ++i) {
+      addBuffer();
+    }
+    windowStartNs = System.nanoTime();
+  }
+
+  /** Called when the camera delivered |data|, before it is passed down the pipeline. */
+  void onFrameCaptured(byte[] data) {
+    final long nowNs = System.nanoTime();
+    inFlight.put(data, nowNs);
+    ++capturedCount;
+    maxInFlightCount = Math.max(maxInFlightCount, inFlight.size());
+    if (inFlight.size() >= bufferCount && exhaustedSinceNs == 0) {
+      // The camera has no buffer for the next frame until one is released.
+      exhaustedSinceNs = nowNs;
+      ++exhaustedCount;
+    }
+    maybeAdjust(nowNs);
+  }
+
+  /** Called when the frame in |data| was released, to give the buffer back to the camera. */
+  void onFrameReleased(byte[] data) {
+    final Long capturedNs = inFlight.remove(data);
+    if (capturedNs == null) {
+      Logging.e(TAG, "Released a buffer not captured from the pool");
+      return;
+    }
+    final long nowNs = System.nanoTime();
+    final long holdNs = nowNs - capturedNs;
+    ++returnedCount;
+    totalHoldNs += holdNs;
+    maxHoldNs = Math.max(maxHoldNs, holdNs);
+    windowMaxHoldNs = Math.max(windowMaxHoldNs, holdNs);
+
+    if (stopped) {
+      return;
+    }
+    // Retired only while the camera has another buffer to fill.
+    if (retireCount > 0 && bufferCount > minBuffers && bufferCount - inFlight.size() > 1) {
+      --retireCount;
+      --bufferCount;
+      ++shrinkCount;
+      Logging.d(TAG, "Shrunk to " + bufferCount + " buffers");
+      return;
+    }
+    camera.addCallbackBuffer(data);
+    if (exhaustedSinceNs != 0) {
+      final long exhaustedNs = nowNs - exhaustedSinceNs;
+      exhaustedSinceNs = 0;
+      if (exhaustedNs > frameIntervalNs) {
+        // At least one frame was dropped by the camera.
+        ++starvedCount;
+        starvedFrameCount += exhaustedNs / frameIntervalNs;
+        windowStarved = true;
+        grow(bufferCount + 1);
+      }
+    }
+  }
+
+  /** Stops adding buffers to the camera.  Buffers released afterwards are only counted. */
+  void stop() {
+    stopped = true;
+  }
+
+  /** Buffers owned by the pool. */
+  int getBufferCount() {
+    return bufferCount;
+  }
+
+  /** Buffers passed down the pipeline and not yet released. */
+  int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  /** Number of times the camera was left without a buffer to fill. */
+  long getExhaustedCount() {
+    return exhaustedCount;
+  }
+
+  /** Number of times the camera was left without a buffer for longer than a frame interval. */
+  long getStarvedCount() {
+    return starvedCount;
+  }
+
+  /** Estimated number of frames dropped by the camera for lack of buffers. */
+  long getStarvedFrameCount() {
+    return starvedFrameCount;
+  }
+
+  /** Average time a frame was held down the pipeline, or 0. */
+  long getAverageHoldNs() {
+    return returnedCount == 0 ? 0 : totalHoldNs / returnedCount;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ThetaCaptureBufferPool{%d buffers (%d-%d), in flight %d max %d,"
+            + " captured %d returned %d, held avg=%.1fms max=%.1fms, exhausted %d, starved %d"
+            + " (~%d frames), grown %d shrunk %d}",
+        bufferCount, minBuffers, maxBuffers, inFlight.size(), maxInFlightCount, capturedCount,
+        returnedCount, toMs(getAverageHoldNs()), toMs(maxHoldNs), exhaustedCount, starvedCount,
+        starvedFrameCount, growCount, shrinkCount);
+  }
+
+  private void maybeAdjust(long nowNs) {
+    if (nowNs - windowStartNs < TimeUnit.MILLISECONDS.toNanos(WINDOW_MS)) {
+      return;
+    }
+    // Buffers held for the longest hold, plus the one the camera fills meanwhile.
+    final int needed = (int) ((windowMaxHoldNs + frameIntervalNs - 1) / frameIntervalNs) + 1;
+    final int target = Math.max(minBuffers, Math.min(maxBuffers, needed));
+    if (target > bufferCount) {
+      grow(target);
+    } else if (target < bufferCount - retireCount && !windowStarved) {
+      ++retireCount;
+    }
+    windowStartNs = nowNs;
+    windowMaxHoldNs = 0;
+    windowStarved = false;
+  }
+
+  private void grow(int count) {
+    retireCount = 0;
+    final int target = Math.min(maxBuffers, count);
+    if (target <= bufferCount) {
+      return;
+    }
+    while (bufferCount < target) {
+      addBuffer();
+    }
+    ++growCount;
+    Logging.d(TAG, "Grown to " + bufferCount + " buffers");
+  }
+
+  private void addBuffer() {
+    camera.addCallbackBuffer(new byte[frameSize]);
+    ++bufferCount;
+  }
+
+  private static double toMs(long ns) {
+    return ns / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
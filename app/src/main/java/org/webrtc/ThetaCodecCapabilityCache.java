@@ -0,0 +1,387 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.util.Range;
+import com.theta360.sample.livestreaming.ShootingMode;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Snapshot of the capabilities of the video encoders on the device: names, color formats, profile
+ * levels, achievable frame rates at the ShootingMode resolutions and maximum instance counts.
+ *
+ * Walking MediaCodecList and querying capabilities is slow, so the snapshot is built once per
+ * process and optionally persisted to a file keyed by the build fingerprint, from which later
+ * processes load it.
+ */
+class ThetaCodecCapabilityCache {
+  private static final String TAG = "ThetaCodecCapabilityCache";
+
+  // Bump when the file format changes.
+  private static final int FILE_VERSION = 2;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** Capabilities of one encoder for one MIME type. */
+  static class TypeCapabilities {
+    final String mimeType;
+    final int[] colorFormats;
+    // Pairs of MediaCodecInfo.CodecProfileLevel profile and level.
+    final int[] profiles;
+    final int[] levels;
+    final int maxSupportedInstances;
+    // Whether the codec supports FEATURE_IntraRefresh.
+    final boolean intraRefreshSupported;
+    // Achievable frame rate ranges, keyed by "<width>x<height>".  Sizes that are not supported or
+    // whose frame rates are unknown are absent.
+    final Map<String, double[]> achievableFrameRates;
+    // Frame rates measured by ThetaEncoderCalibration, keyed like achievableFrameRates.
+    final Map<String, Double> measuredFrameRates;
+
+    TypeCapabilities(String mimeType, int[] colorFormats, int[] profiles, int[] levels,
+        int maxSupportedInstances, boolean intraRefreshSupported,
+        Map<String, double[]> achievableFrameRates,
+        Map<String, Double> measuredFrameRates) {
+      this.mimeType = mimeType;
+      this.colorFormats = colorFormats;
+      this.profiles = profiles;
+      this.levels = levels;
+      this.maxSupportedInstances = maxSupportedInstances;
+      this.intraRefreshSupported = intraRefreshSupported;
+      this.achievableFrameRates = achievableFrameRates;
+      this.measuredFrameRates = new ConcurrentHashMap<>(measuredFrameRates);
+    }
+
+    /** Returns the first of |supportedColorFormats| the codec accepts, or null. */
+    @Nullable
+    Integer selectColorFormat(int[] supportedColorFormats) {
+      for (int supportedColorFormat : supportedColorFormats) {
+        for (int codecColorFormat : colorFormats) {
+          if (codecColorFormat == supportedColorFormat) {
+            return codecColorFormat;
+          }
+        }
+      }
+      return null;
+    }
+
+    /** Upper bound of the achievable frame rate at the size, or null if unknown. */
+    @Nullable
+    Double getMaxAchievableFrameRate(int width, int height) {
+      double[] range = achievableFrameRates.get(sizeKey(width, height));
+      return range == null ? null : range[1];
+    }
+
+    /** Measured frame rate at the size, or null if it has not been measured. */
+    @Nullable
+    Double getMeasuredFrameRate(int width, int height) {
+      return measuredFrameRates.get(sizeKey(width, height));
+    }
+
+    void setMeasuredFrameRate(int width, int height, double framerate) {
+      measuredFrameRates.put(sizeKey(width, height), framerate);
+    }
+
+    /** Highest level advertised for |profile|, or 0 if the profile is not supported. */
+    int getMaxLevel(int profile) {
+      int maxLevel = 0;
+      for (int i = 0; i < profiles.length; ++i) {
+        if (profiles[i] == profile) {
+          maxLevel = Math.max(maxLevel, levels[i]);
+        }
+      }
+      return maxLevel;
+    }
+  }
+
+  /** Capabilities of one encoder. */
+  static class CodecCapabilities {
+    final String name;
+    final Map<String, TypeCapabilities> types;
+
+    CodecCapabilities(String name, Map<String, TypeCapabilities> types) {
+      this.name = name;
+      this.types = types;
+    }
+
+    @Nullable
+    TypeCapabilities getTypeCapabilities(String mimeType) {
+      return types.get(mimeType);
+    }
+  }
+
+  // Snapshot of the whole device, shared by every factory in the process.
+  @Nullable private static List<CodecCapabilities> deviceSnapshot;
+
+  /**
+   * Returns the snapshot of all encoders on the device.  Loaded from |cacheFile| if it was written
+   * by the same build, otherwise built from MediaCodecList and written to |cacheFile|.
+   */
+  static synchronized List<CodecCapabilities> getEncoders(@Nullable File cacheFile) {
+    if (deviceSnapshot != null) {
+      return deviceSnapshot;
+    }
+    List<CodecCapabilities> encoders = cacheFile != null ? load(cacheFile) : null;
+    if (encoders == null) {
+      final long startNs = System.nanoTime();
+      encoders = build(null /* codecAllowedPredicate */);
+      Logging.d(TAG,
+          "Built codec capabilities in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+      if (cacheFile != null) {
+        save(cacheFile, encoders);
+      }
+    }
+    deviceSnapshot = Collections.unmodifiableList(encoders);
+    return deviceSnapshot;
+  }
+
+  /**
+   * Writes the shared snapshot, including frame rates measured since it was loaded, to
+   * |cacheFile|.
+   */
+  static synchronized void saveEncoders(@Nullable File cacheFile) {
+    if (deviceSnapshot != null && cacheFile != null) {
+      save(cacheFile, deviceSnapshot);
+    }
+  }
+
+  /** Builds a snapshot of the encoders |codecAllowedPredicate| accepts, without caching it. */
+  static List<CodecCapabilities> build(@Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    List<CodecCapabilities> encoders = new ArrayList<>();
+    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
+      MediaCodecInfo info = null;
+      try {
+        info = MediaCodecList.getCodecInfoAt(i);
+      } catch (IllegalArgumentException e) {
+        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
+      }
+      if (info == null || !info.isEncoder()) {
+        continue;
+      }
+      if (codecAllowedPredicate != null && !codecAllowedPredicate.test(info)) {
+        continue;
+      }
+      Map<String, TypeCapabilities> types = new HashMap<>();
+      for (String mimeType : info.getSupportedTypes()) {
+        if (!mimeType.startsWith("video/")) {
+          continue;
+        }
+        try {
+          types.put(mimeType, queryTypeCapabilities(info, mimeType));
+        } catch (IllegalArgumentException e) {
+          Logging.e(TAG, "Cannot retrieve capabilities of " + info.getName(), e);
+        }
+      }
+      if (!types.isEmpty()) {
+        encoders.add(new CodecCapabilities(info.getName(), types));
+      }
+    }
+    return encoders;
+  }
+
+  private static TypeCapabilities queryTypeCapabilities(MediaCodecInfo info, String mimeType) {
+    MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mimeType);
+    int[] profiles = new int[capabilities.profileLevels.length];
+    int[] levels = new int[capabilities.profileLevels.length];
+    for (int i = 0; i < capabilities.profileLevels.length; ++i) {
+      profiles[i] = capabilities.profileLevels[i].profile;
+      levels[i] = capabilities.profileLevels[i].level;
+    }
+
+    int maxSupportedInstances = 1;
+    Map<String, double[]> achievableFrameRates = new HashMap<>();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+      maxSupportedInstances = capabilities.getMaxSupportedInstances();
+      MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+      if (videoCapabilities != null) {
+        for (ShootingMode shootingMode : ShootingMode.values()) {
+          final int width = shootingMode.getWidth();
+          final int height = shootingMode.getHeight();
+          if (!videoCapabilities.isSizeSupported(width, height)) {
+            continue;
+          }
+          Range<Double> range = videoCapabilities.getAchievableFrameRatesFor(width, height);
+          if (range != null) {
+            achievableFrameRates.put(
+                sizeKey(width, height), new double[] {range.getLower(), range.getUpper()});
+          }
+        }
+      }
+    }
+    final boolean intraRefreshSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+        && capabilities.isFeatureSupported(
+               MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh);
+    return new TypeCapabilities(mimeType, capabilities.colorFormats.clone(), profiles, levels,
+        maxSupportedInstances, intraRefreshSupported, achievableFrameRates,
+        Collections.<String, Double>emptyMap());
+  }
+
+  @Nullable
+  private static List<CodecCapabilities> load(File cacheFile) {
+    if (!cacheFile.exists()) {
+      return null;
+    }
+    try {
+      JSONObject json = new JSONObject(readFile(cacheFile));
+      if (json.getInt("version") != FILE_VERSION
+          || !Build.FINGERPRINT.equals(json.getString("fingerprint"))) {
+        Logging.d(TAG, "Ignoring codec capabilities of another build");
+        return null;
+      }
+      List<CodecCapabilities> encoders = new ArrayList<>();
+      JSONArray codecs = json.getJSONArray("codecs");
+      for (int i = 0; i < codecs.length(); ++i) {
+        encoders.add(codecFromJson(codecs.getJSONObject(i)));
+      }
+      Logging.d(TAG, "Loaded capabilities of " + encoders.size() + " encoders from " + cacheFile);
+      return encoders;
+    } catch (IOException | JSONException e) {
+      Logging.e(TAG, "Cannot load codec capabilities from " + cacheFile, e);
+      return null;
+    }
+  }
+
+  private static void save(File cacheFile, List<CodecCapabilities> encoders) {
+    try {
+      JSONArray codecs = new JSONArray();
+      for (CodecCapabilities codec : encoders) {
+        codecs.put(codecToJson(codec));
+      }
+      JSONObject json = new JSONObject()
+                            .put("version", FILE_VERSION)
+                            .put("fingerprint", Build.FINGERPRINT)
+                            .put("codecs", codecs);
+      writeFile(cacheFile, json.toString());
+    } catch (IOException | JSONException e) {
+      Logging.e(TAG, "Cannot save codec capabilities to " + cacheFile, e);
+    }
+  }
+
+  private static JSONObject codecToJson(CodecCapabilities codec) throws JSONException {
+    JSONArray types = new JSONArray();
+    for (TypeCapabilities type : codec.types.values()) {
+      JSONObject frameRates = new JSONObject();
+      for (Map.Entry<String, double[]> entry : type.achievableFrameRates.entrySet()) {
+        frameRates.put(entry.getKey(),
+            new JSONArray().put(entry.getValue()[0]).put(entry.getValue()[1]));
+      }
+      JSONObject measuredFrameRates = new JSONObject();
+      for (Map.Entry<String, Double> entry : type.measuredFrameRates.entrySet()) {
+        measuredFrameRates.put(entry.getKey(), entry.getValue().doubleValue());
+      }
+      types.put(new JSONObject()
+                    .put("mime", type.mimeType)
+                    .put("colorFormats", toJson(type.colorFormats))
+                    .put("profiles", toJson(type.profiles))
+                    .put("levels", toJson(type.levels))
+                    .put("maxInstances", type.maxSupportedInstances)
+                    .put("intraRefresh", type.intraRefreshSupported)
+                    .put("frameRates", frameRates)
+                    .put("measuredFrameRates", measuredFrameRates));
+    }
+    return new JSONObject().put("name", codec.name).put("types", types);
+  }
+
+  private static CodecCapabilities codecFromJson(JSONObject json) throws JSONException {
+    Map<String, TypeCapabilities> types = new HashMap<>();
+    JSONArray typesJson = json.getJSONArray("types");
+    for (int i = 0; i < typesJson.length(); ++i) {
+      JSONObject typeJson = typesJson.getJSONObject(i);
+      Map<String, double[]> frameRates = new HashMap<>();
+      JSONObject frameRatesJson = typeJson.getJSONObject("frameRates");
+      JSONArray sizes = frameRatesJson.names();
+      for (int j = 0; sizes != null && j < sizes.length(); ++j) {
+        String size = sizes.getString(j);
+        JSONArray range = frameRatesJson.getJSONArray(size);
+        frameRates.put(size, new double[] {range.getDouble(0), range.getDouble(1)});
+      }
+      Map<String, Double> measuredFrameRates = new HashMap<>();
+      JSONObject measuredFrameRatesJson = typeJson.optJSONObject("measuredFrameRates");
+      JSONArray measuredSizes =
+          measuredFrameRatesJson != null ? measuredFrameRatesJson.names() : null;
+      for (int j = 0; measuredSizes != null && j < measuredSizes.length(); ++j) {
+        String size = measuredSizes.getString(j);
+        measuredFrameRates.put(size, measuredFrameRatesJson.getDouble(size));
+      }
+      String mimeType = typeJson.getString("mime");
+      types.put(mimeType,
+          new TypeCapabilities(mimeType, fromJson(typeJson.getJSONArray("colorFormats")),
+              fromJson(typeJson.getJSONArray("profiles")),
+              fromJson(typeJson.getJSONArray("levels")), typeJson.getInt("maxInstances"),
+              typeJson.getBoolean("intraRefresh"), frameRates, measuredFrameRates));
+    }
+    return new CodecCapabilities(json.getString("name"), types);
+  }
+
+  private static JSONArray toJson(int[] values) {
+    JSONArray array = new JSONArray();
+    for (int value : values) {
+      array.put(value);
+    }
+    return array;
+  }
+
+  private static int[] fromJson(JSONArray array) throws JSONException {
+    int[] values = new int[array.length()];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = array.getInt(i);
+    }
+    return values;
+  }
+
+  static String sizeKey(int width, int height) {
+    return width + "x" + height;
+  }
+
+  private static String readFile(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] data = new byte[(int) file.length()];
+      int offset = 0;
+      while (offset < data.length) {
+        int read = in.read(data, offset, data.length - offset);
+        if (read < 0) {
+          break;
+        }
+        offset += read;
+      }
+      return new String(data, 0, offset, UTF_8);
+    }
+  }
+
+  private static void writeFile(File file, String content) throws IOException {
+    // Write to a temporary file first so that a crash never leaves a truncated cache behind.
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmpFile)) {
+      out.write(content.getBytes(UTF_8));
+    }
+    if (!tmpFile.renameTo(file)) {
+      throw new IOException("Cannot rename " + tmpFile + " to " + file);
+    }
+  }
+}
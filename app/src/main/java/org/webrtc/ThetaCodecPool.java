@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps codecs configured and started ahead of time for frame sizes the encoder is likely to switch
+ * to, and stops and releases codecs that are no longer used. Both happen on a background thread,
+ * so that a resolution or mode switch on the encode thread only costs handing over a codec.
+ *
+ * The background thread is a daemon that exits once idle for {@link #IDLE_TIMEOUT_MS}, so codecs
+ * released after {@link #releaseAll} are still released, and no thread outlives its work.
+ *
+ * Only used with synchronous MediaCodec mode.
+ */
+class ThetaCodecPool {
+  private static final String TAG = "ThetaCodecPool";
+
+  private static final long IDLE_TIMEOUT_MS = 1000;
+
+  /** A started codec waiting to be taken, together with its input surface in surface mode. */
+  static class PooledCodec {
+    final MediaCodecWrapper codec;
+    @Nullable final Surface inputSurface;
+    final int width;
+    final int height;
+    final boolean surfaceMode;
+
+    private PooledCodec(MediaCodecWrapper codec, @Nullable Surface inputSurface, int width,
+        int height, boolean surfaceMode) {
+      this.codec = codec;
+      this.inputSurface = inputSurface;
+      this.width = width;
+      this.height = height;
+      this.surfaceMode = surfaceMode;
+    }
+  }
+
+  private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
+  private final String codecName;
+  private final int maxPooledCodecs;
+
+  // Guarded by this.
+  private final List<PooledCodec> pooledCodecs = new ArrayList<>();
+  // Sizes being prepared on the background thread, encoded as width << 16 | height, with the sign
+  // bit set for surface mode.
+  private final List<Integer> pendingKeys = new ArrayList<>();
+  // Runs the tasks in order on a single thread.
+  private final ThreadPoolExecutor executor;
+
+  ThetaCodecPool(
+      MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName, int maxPooledCodecs) {
+    this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
+    this.codecName = codecName;
+    this.maxPooledCodecs = maxPooledCodecs;
+    this.executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          final Thread thread = new Thread(runnable, TAG);
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Prepares a codec for |format| in the background, unless one for the same size and mode is
+   * already pooled or the pool is full.
+   */
+  synchronized void prewarm(
+      final int width, final int height, final boolean surfaceMode, final MediaFormat format) {
+    final int key = keyOf(width, height, surfaceMode);
+    if (pendingKeys.contains(key) || find(width, height, surfaceMode) != null
+        || pooledCodecs.size() + pendingKeys.size() >= maxPooledCodecs) {
+      return;
+    }
+    pendingKeys.add(key);
+    executor.execute(() -> {
+      PooledCodec pooledCodec = createStartedCodec(width, height, surfaceMode, format);
+      synchronized (ThetaCodecPool.this) {
+        pendingKeys.remove(Integer.valueOf(key));
+        if (pooledCodec != null) {
+          pooledCodecs.add(pooledCodec);
+        }
+      }
+    });
+  }
+
+  /** Removes and returns a started codec for the size and mode, or null if none is ready. */
+  @Nullable
+  synchronized PooledCodec take(int width, int height, boolean surfaceMode) {
+    PooledCodec pooledCodec = find(width, height, surfaceMode);
+    if (pooledCodec != null) {
+      pooledCodecs.remove(pooledCodec);
+      Logging.d(TAG, "Using prewarmed codec for " + width + "x" + height);
+    }
+    return pooledCodec;
+  }
+
+  /** Stops and releases |codec| on the background thread.  May be called on any thread. */
+  synchronized void releaseAsync(final MediaCodecWrapper codec) {
+    executor.execute(() -> stopAndRelease(codec, null /* inputSurface */));
+  }
+
+  /**
+   * Releases every pooled codec.  The background thread exits once it is done, unless more codecs
+   * are released or prewarmed.
+   */
+  synchronized void releaseAll() {
+    // Runs after every pending prewarm task, so it also catches codecs that are still being
+    // prepared.
+    executor.execute(() -> {
+      final List<PooledCodec> codecs;
+      synchronized (ThetaCodecPool.this) {
+        codecs = new ArrayList<>(pooledCodecs);
+        pooledCodecs.clear();
+      }
+      for (PooledCodec pooledCodec : codecs) {
+        stopAndRelease(pooledCodec.codec, pooledCodec.inputSurface);
+      }
+    });
+  }
+
+  @Nullable
+  private PooledCodec find(int width, int height, boolean surfaceMode) {
+    for (PooledCodec pooledCodec : pooledCodecs) {
+      if (pooledCodec.width == width && pooledCodec.height == height
+          && pooledCodec.surfaceMode == surfaceMode) {
+        return pooledCodec;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private PooledCodec createStartedCodec(
+      int width, int height, boolean surfaceMode, MediaFormat format) {
+    final MediaCodecWrapper codec;
+    try {
+      codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+    } catch (IOException | IllegalArgumentException e) {
+      Logging.e(TAG, "Cannot create media encoder " + codecName, e);
+      return null;
+    }
+    Surface inputSurface = null;
+    try {
+      codec.configure(
+          format, null /* surface */, null /* crypto */, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      if (surfaceMode) {
+        inputSurface = codec.createInputSurface();
+      }
+      codec.start();
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "Prewarming codec for " + width + "x" + height + " failed", e);
+      stopAndRelease(codec, inputSurface);
+      return null;
+    }
+    Logging.d(TAG, "Prewarmed codec for " + width + "x" + height + " surface mode: " + surfaceMode);
+    return new PooledCodec(codec, inputSurface, width, height, surfaceMode);
+  }
+
+  private static void stopAndRelease(MediaCodecWrapper codec, @Nullable Surface inputSurface) {
+    try {
+      codec.stop();
+    } catch (Exception e) {
+      Logging.e(TAG, "Media encoder stop failed", e);
+    }
+    try {
+      codec.release();
+    } catch (Exception e) {
+      Logging.e(TAG, "Media encoder release failed", e);
+    }
+    if (inputSurface != null) {
+      inputSurface.release();
+    }
+  }
+
+  private static int keyOf(int width, int height, boolean surfaceMode) {
+    return (surfaceMode ? 1 << 31 : 0) | (width << 16) | height;
+  }
+}
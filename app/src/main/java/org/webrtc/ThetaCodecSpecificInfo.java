@@ -0,0 +1,39 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Codec-specific information delivered with the frames of ThetaHardwareVideoEncoder.
+ *
+ * The bundled libwebrtc does not read codec-specific information from Java encoders; it is for
+ * callbacks that receive the frames directly, such as tiled encoding.
+ */
+public class ThetaCodecSpecificInfo extends VideoEncoder.CodecSpecificInfo {
+  /** Temporal index of a frame that is not temporally layered. */
+  public static final int NO_TEMPORAL_INDEX = -1;
+
+  /** Temporal layer of the frame, 0 being the base layer, or NO_TEMPORAL_INDEX. */
+  public final int temporalIndex;
+
+  /**
+   * NAL units of the encoded image buffer for H.264 and H.265, otherwise null.  Valid as long as the
+   * image is: a callback that retains the image may keep the index with it, and neither may be used
+   * once the image is released, as the index is then reused for a later frame.
+   */
+  @Nullable public final ThetaNalUnitIndex nalUnits;
+
+  ThetaCodecSpecificInfo(int temporalIndex, @Nullable ThetaNalUnitIndex nalUnits) {
+    this.temporalIndex = temporalIndex;
+    this.nalUnits = nalUnits;
+  }
+}
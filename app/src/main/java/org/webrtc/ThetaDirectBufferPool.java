@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-classed pool of direct byte buffers. Buffer capacities are rounded up to the next power of
+ * two so that frames of slightly different sizes share the same class. Buffers are handed out as
+ * slices of exactly the requested size and must be returned with {@link #recycle}.  The free
+ * buffers kept are bounded per class and in total bytes.
+ *
+ * Acquire and recycle may be called on arbitrary threads.
+ */
+class ThetaDirectBufferPool {
+  private static final String TAG = "ThetaDirectBufferPool";
+
+  // Smallest class is 64 KiB, the largest 64 MiB. Requests outside this range are not pooled.
+  private static final int MIN_CLASS_SHIFT = 16;
+  private static final int MAX_CLASS_SHIFT = 26;
+
+  private final int maxBuffersPerClass;
+  private final long maxPooledBytes;
+  private final ArrayDeque<ByteBuffer>[] freeLists;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong pooledBytes = new AtomicLong();
+
+  /**
+   * A buffer checked out from the pool. {@link #buffer} has the exact requested capacity, while
+   * {@link #backing} is the pooled allocation it was sliced from.
+   */
+  static class Lease {
+    final ByteBuffer buffer;
+    private final ByteBuffer backing;
+    private final int sizeClass;
+
+    private Lease(ByteBuffer buffer, ByteBuffer backing, int sizeClass) {
+      this.buffer = buffer;
+      this.backing = backing;
+      this.sizeClass = sizeClass;
+    }
+
+    /** Direct memory held by the lease, which is more than requested for pooled sizes. */
+    int getAllocatedBytes() {
+      return backing != null ? backing.capacity() : buffer.capacity();
+    }
+  }
+
+  ThetaDirectBufferPool(int maxBuffersPerClass) {
+    this(maxBuffersPerClass, Long.MAX_VALUE);
+  }
+
+  // Keeps at most |maxBuffersPerClass| free buffers of each class, and |maxPooledBytes| in all.
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  ThetaDirectBufferPool(int maxBuffersPerClass, long maxPooledBytes) {
+    this.maxBuffersPerClass = maxBuffersPerClass;
+    this.maxPooledBytes = maxPooledBytes;
+    freeLists = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    for (int i = 0; i < freeLists.length; ++i) {
+      freeLists[i] = new ArrayDeque<>(maxBuffersPerClass);
+    }
+  }
+
+  /** Returns a cleared direct buffer with capacity {@code size}. */
+  Lease acquire(int size) {
+    final int sizeClass = sizeClassOf(size);
+    if (sizeClass < 0) {
+      misses.incrementAndGet();
+      return new Lease(ByteBuffer.allocateDirect(size), null, -1);
+    }
+
+    ByteBuffer backing;
+    final ArrayDeque<ByteBuffer> freeList = freeLists[sizeClass];
+    synchronized (freeList) {
+      backing = freeList.pollFirst();
+    }
+    if (backing == null) {
+      misses.incrementAndGet();
+      backing = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+    } else {
+      hits.incrementAndGet();
+      pooledBytes.addAndGet(-backing.capacity());
+    }
+
+    backing.clear();
+    backing.limit(size);
+    return new Lease(backing.slice(), backing, sizeClass);
+  }
+
+  /** Returns the buffer to the pool. The lease must not be used afterwards. */
+  void recycle(Lease lease) {
+    if (lease.backing == null) {
+      return;
+    }
+    final ArrayDeque<ByteBuffer> freeList = freeLists[lease.sizeClass];
+    final int capacity = lease.backing.capacity();
+    if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+      pooledBytes.addAndGet(-capacity);
+      return;
+    }
+    synchronized (freeList) {
+      if (freeList.size() < maxBuffersPerClass) {
+        freeList.offerFirst(lease.backing);
+        return;
+      }
+    }
+    pooledBytes.addAndGet(-capacity);
+  }
+
+  /** Drops all pooled buffers. Buffers currently leased are still accepted by recycle(). */
+  void clear() {
+    for (ArrayDeque<ByteBuffer> freeList : freeLists) {
+      synchronized (freeList) {
+        for (ByteBuffer buffer : freeList) {
+          pooledBytes.addAndGet(-buffer.capacity());
+        }
+        freeList.clear();
+      }
+    }
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  private static int sizeClassOf(int size) {
+    if (size <= 0) {
+      return -1;
+    }
+    final int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+    if (shift > MAX_CLASS_SHIFT) {
+      Logging.w(TAG, "Buffer of size " + size + " is too large to be pooled");
+      return -1;
+    }
+    return shift - MIN_CLASS_SHIFT;
+  }
+}
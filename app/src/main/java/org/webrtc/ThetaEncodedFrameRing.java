@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last seconds of the output of one encoder in memory, for instant replay.
+ *
+ * The frames are stored back to back in one direct buffer of |maxBytes|, allocated up front, so
+ * the memory use does not grow with the bitrate.  Frames are evicted a GOP at a time, from a key
+ * frame up to the next, whenever a new frame does not fit or the frames span more than
+ * |maxDurationMs|.  The ring therefore always starts with a key frame and can be replayed on its
+ * own.  If the current GOP alone exceeds the buffer, the ring is emptied and frames are dropped up
+ * to the next key frame.
+ *
+ * A replay does not copy the buffer.  The frames not replayed yet are pinned instead: they are not
+ * evicted, and a new frame that only fits in their place is dropped up to the next key frame.
+ *
+ * The first encoder started with the configured size is kept until it is released.  The contents
+ * stay available for replay after that, and are replaced once an encoder is accepted again.
+ */
+public class ThetaEncodedFrameRing implements ThetaEncodedFrameSink {
+  private static final String TAG = "ThetaEncodedFrameRing";
+
+  private static class Frame {
+    final long sequence;
+    final int offset;
+    final int size;
+    final long presentationTimeUs;
+    final int flags;
+
+    Frame(long sequence, int offset, int size, long presentationTimeUs, int flags) {
+      this.sequence = sequence;
+      this.offset = offset;
+      this.size = size;
+      this.presentationTimeUs = presentationTimeUs;
+      this.flags = flags;
+    }
+
+    boolean isKeyFrame() {
+      return (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final long maxDurationUs;
+  private final ByteBuffer data;
+
+  // --- Guarded by this.
+  // Oldest first.  The first frame is a key frame unless the ring is empty.
+  private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+  // Where the next frame is written if it fits before the end of |data|.
+  private int writeOffset;
+  private int byteCount;
+  private int gopCount;
+  private long evictedGopCount;
+  private long droppedFrameCount;
+  private long nextSequence;
+  // Frames from this sequence number on are being replayed and must be kept, if not -1.
+  private long pinnedSequence = -1;
+  private boolean attached;
+  private boolean waitingForKeyFrame = true;
+  @Nullable private String mimeType;
+  @Nullable private MediaFormat format;
+
+  /**
+   * @param width width of the encoder to keep
+   * @param height height of the encoder to keep
+   * @param maxBytes size of the frame buffer
+   * @param maxDurationMs longest span of frames to keep
+   */
+  public ThetaEncodedFrameRing(int width, int height, int maxBytes, long maxDurationMs) {
+    if (maxBytes < 1 || maxDurationMs < 1) {
+      throw new IllegalArgumentException(
+          "Invalid ring limits: " + maxBytes + " bytes, " + maxDurationMs + " ms");
+    }
+    this.width = width;
+    this.height = height;
+    this.maxDurationUs = TimeUnit.MILLISECONDS.toMicros(maxDurationMs);
+    this.data = ByteBuffer.allocateDirect(maxBytes);
+  }
+
+  @Override
+  public synchronized boolean onEncoderStarted(String mimeType, int width, int height) {
+    if (attached || width != this.width || height != this.height) {
+      return false;
+    }
+    attached = true;
+    this.mimeType = mimeType;
+    format = null;
+    clear();
+    return true;
+  }
+
+  @Override
+  public synchronized void onOutputFormat(MediaFormat format) {
+    this.format = format;
+  }
+
+  @Override
+  public synchronized void onEncodedFrame(
+      ByteBuffer frame, MediaCodec.BufferInfo info, @Nullable ThetaNalUnitIndex nalUnits) {
+    final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    if (isKeyFrame) {
+      waitingForKeyFrame = false;
+    } else if (waitingForKeyFrame) {
+      ++droppedFrameCount;
+      return;
+    }
+
+    final int size = frame.remaining();
+    int offset = findSpace(size);
+    while (offset < 0 && gopCount > (isKeyFrame ? 0 : 1) && canEvictOldestGop()) {
+      evictOldestGop();
+      offset = findSpace(size);
+    }
+    if (offset < 0) {
+      // The GOP of the frame does not fit, or the frames in the way are being replayed.
+      Logging.w(TAG, "Frame of " + size + " bytes does not fit, dropping up to the next key frame");
+      if (pinnedSequence < 0) {
+        clear();
+      }
+      waitingForKeyFrame = true;
+      ++droppedFrameCount;
+      return;
+    }
+
+    final ByteBuffer slot = data.duplicate();
+    slot.position(offset);
+    slot.put(frame.duplicate());
+    frames.addLast(
+        new Frame(nextSequence++, offset, size, info.presentationTimeUs, info.flags));
+    writeOffset = offset + size;
+    byteCount += size;
+    if (isKeyFrame) {
+      ++gopCount;
+    }
+    while (gopCount > 1 && canEvictOldestGop()
+        && info.presentationTimeUs - frames.peekFirst().presentationTimeUs > maxDurationUs) {
+      evictOldestGop();
+    }
+  }
+
+  @Override
+  public synchronized void onEncoderStopped() {
+    attached = false;
+  }
+
+  /**
+   * Replays the kept frames to |sink| as if it was attached to the encoder, from the oldest or the
+   * latest key frame.  The sink must take all frames without dropping them, e.g., a
+   * ThetaMp4RecordingSink that waits for its writer.  It may block, as it is called on the calling
+   * thread, and the ring is not locked meanwhile.  Returns false if there is nothing to replay,
+   * another replay is running or the sink declined.
+   *
+   * The frames kept when the replay starts are passed straight from the ring, and each is released
+   * for eviction once the sink has returned.  The encoder output is not held back, but frames that
+   * only fit in place of the frames still to be replayed are dropped up to the next key frame.
+   */
+  public boolean replay(ThetaEncodedFrameSink sink, boolean latestGopOnly) {
+    final String mimeType;
+    final MediaFormat format;
+    final ArrayList<Frame> replayed;
+    synchronized (this) {
+      if (frames.isEmpty() || this.format == null || pinnedSequence >= 0) {
+        return false;
+      }
+      mimeType = this.mimeType;
+      format = this.format;
+      final Frame start = latestGopOnly ? findLatestKeyFrame() : frames.peekFirst();
+      replayed = new ArrayList<>(frames.size());
+      for (Frame frame : frames) {
+        if (frame.sequence >= start.sequence) {
+          replayed.add(frame);
+        }
+      }
+      pinnedSequence = start.sequence;
+    }
+    try {
+      if (!sink.onEncoderStarted(mimeType, width, height)) {
+        return false;
+      }
+      sink.onOutputFormat(format);
+      final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      // Indexed again rather than kept, so that the ring does not grow with the NAL units.
+      final ThetaVideoCodecMimeType codecType = ThetaVideoCodecMimeType.fromMimeType(mimeType);
+      final ThetaNalUnitIndex nalUnits =
+          codecType != null && ThetaNalUnitIndex.isSupported(codecType) ? new ThetaNalUnitIndex()
+                                                                        : null;
+      for (Frame frame : replayed) {
+        final ByteBuffer slice = data.duplicate();
+        slice.limit(frame.offset + frame.size);
+        slice.position(frame.offset);
+        info.set(frame.offset, frame.size, frame.presentationTimeUs, frame.flags);
+        if (nalUnits != null) {
+          nalUnits.parse(slice, codecType);
+        }
+        sink.onEncodedFrame(slice, info, nalUnits);
+        synchronized (this) {
+          pinnedSequence = frame.sequence + 1;
+        }
+      }
+    } finally {
+      synchronized (this) {
+        pinnedSequence = -1;
+      }
+    }
+    sink.onEncoderStopped();
+    return true;
+  }
+
+  /** Number of frames kept. */
+  public synchronized int getFrameCount() {
+    return frames.size();
+  }
+
+  /** Bytes of the frames kept. */
+  public synchronized int getByteCount() {
+    return byteCount;
+  }
+
+  /** Time from the first to the last frame kept. */
+  public synchronized long getDurationMs() {
+    return frames.isEmpty() ? 0
+                            : TimeUnit.MICROSECONDS.toMillis(frames.peekLast().presentationTimeUs
+                                  - frames.peekFirst().presentationTimeUs);
+  }
+
+  /** Number of GOPs evicted to make room or to stay within the duration. */
+  public synchronized long getEvictedGopCount() {
+    return evictedGopCount;
+  }
+
+  /** Number of frames not kept because their GOP did not fit. */
+  public synchronized long getDroppedFrameCount() {
+    return droppedFrameCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ThetaEncodedFrameRing{" + width + "x" + height + ", " + frames.size() + " frames, "
+        + byteCount + " bytes, " + getDurationMs() + " ms, " + gopCount + " GOPs, evicted "
+        + evictedGopCount + ", dropped " + droppedFrameCount + "}";
+  }
+
+  // Returns the offset to write |size| bytes at without overwriting kept frames, or -1.
+  private int findSpace(int size) {
+    final int capacity = data.capacity();
+    if (frames.isEmpty()) {
+      return size <= capacity ? 0 : -1;
+    }
+    final int start = frames.peekFirst().offset;
+    if (writeOffset > start) {
+      // Kept frames in [start, writeOffset).  Free space at the end, then at the beginning.
+      if (writeOffset + size <= capacity) {
+        return writeOffset;
+      }
+      return size <= start ? 0 : -1;
+    }
+    // Kept frames wrapped around: [start, end) and [0, writeOffset).
+    return writeOffset + size <= start ? writeOffset : -1;
+  }
+
+  // Whether no frame of the oldest GOP is being replayed.
+  private boolean canEvictOldestGop() {
+    if (pinnedSequence < 0) {
+      return true;
+    }
+    Frame last = null;
+    for (Frame frame : frames) {
+      if (last != null && frame.isKeyFrame()) {
+        break;
+      }
+      last = frame;
+    }
+    return last == null || last.sequence < pinnedSequence;
+  }
+
+  private void evictOldestGop() {
+    Frame frame = frames.pollFirst();
+    byteCount -= frame.size;
+    while (!frames.isEmpty() && !frames.peekFirst().isKeyFrame()) {
+      frame = frames.pollFirst();
+      byteCount -= frame.size;
+    }
+    --gopCount;
+    ++evictedGopCount;
+    if (frames.isEmpty()) {
+      writeOffset = 0;
+    }
+  }
+
+  @Nullable
+  private Frame findLatestKeyFrame() {
+    final Iterator<Frame> it = frames.descendingIterator();
+    while (it.hasNext()) {
+      final Frame frame = it.next();
+      if (frame.isKeyFrame()) {
+        return frame;
+      }
+    }
+    return null;
+  }
+
+  private void clear() {
+    frames.clear();
+    writeOffset = 0;
+    byteCount = 0;
+    gopCount = 0;
+  }
+}
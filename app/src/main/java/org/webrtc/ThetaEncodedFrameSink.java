@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the encoded output of ThetaHardwareVideoEncoder, in addition to the libwebrtc callback.
+ *
+ * The frame methods are called on the output thread of the encoder, which also delivers the frames
+ * to libwebrtc, and must return quickly without blocking.
+ */
+public interface ThetaEncodedFrameSink {
+  /**
+   * Called when an encoder starts a codec of the given MIME type and size.  Returns true to receive
+   * its output.  Called on the encode thread.
+   */
+  boolean onEncoderStarted(String mimeType, int width, int height);
+
+  /**
+   * Called with the output format of the codec, which holds the codec-specific data, before the
+   * first frame.
+   */
+  void onOutputFormat(MediaFormat format);
+
+  /**
+   * Called with each encoded frame, between the position and the limit of |frame|, as output by
+   * the codec, i.e., without the parameter sets prepended to key frames for libwebrtc.  |nalUnits|
+   * indexes |frame| relative to its position for H.264 and H.265, and is null for other codecs.
+   * |frame|, |info| and |nalUnits| are only valid during the call and must not be modified.
+   */
+  void onEncodedFrame(
+      ByteBuffer frame, MediaCodec.BufferInfo info, @Nullable ThetaNalUnitIndex nalUnits);
+
+  /** Called when the codec is released.  No more frames follow.  Called on the encode thread. */
+  void onEncoderStopped();
+}
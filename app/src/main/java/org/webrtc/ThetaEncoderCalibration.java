@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the frame rate an encoder sustains at a given size by encoding a short sequence of
+ * synthetic frames as fast as the codec accepts them.
+ *
+ * The measurement blocks the calling thread for up to {@link #MAX_DURATION_MS}, and stops without
+ * a result when the thread is interrupted.
+ */
+@TargetApi(21)
+class ThetaEncoderCalibration {
+  private static final String TAG = "ThetaEncoderCalibration";
+
+  // Frames encoded per measurement.  The first output is not counted, as it includes the pipeline
+  // latency rather than the throughput.
+  private static final int FRAME_COUNT = 30;
+  private static final long MAX_DURATION_MS = 3000;
+  private static final long DEQUEUE_TIMEOUT_US = 10000;
+  // Target bits per pixel, chosen to resemble the streaming bitrates.
+  private static final double BITS_PER_PIXEL = 0.1;
+  private static final int PATTERN_PERIOD = 256;
+  private static final int PATTERN_STEP = 4;
+
+  /**
+   * Returns the frames per second |codecName| encoded at |width| x |height|, or null if the codec
+   * could not be run or the calling thread was interrupted.
+   */
+  @Nullable
+  static Double measureFrameRate(
+      String codecName, String mimeType, int colorFormat, int width, int height, int framerate) {
+    final MediaCodec codec;
+    try {
+      codec = MediaCodec.createByCodecName(codecName);
+    } catch (IOException | IllegalArgumentException e) {
+      Logging.e(TAG, "Cannot create " + codecName, e);
+      return null;
+    }
+    try {
+      MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+      format.setInteger(
+          MediaFormat.KEY_BIT_RATE, (int) (width * height * framerate * BITS_PER_PIXEL));
+      format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+      format.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
+      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+      codec.configure(format, null /* surface */, null /* crypto */,
+          MediaCodec.CONFIGURE_FLAG_ENCODE);
+      codec.start();
+      Double result = encodeFrames(codec, width, height, framerate);
+      Logging.d(TAG,
+          codecName + " encoded " + width + "x" + height + " at " + result + " fps");
+      return result;
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      Logging.e(TAG, "Calibrating " + codecName + " failed", e);
+      return null;
+    } finally {
+      try {
+        codec.stop();
+      } catch (IllegalStateException e) {
+        // Not started.
+      }
+      codec.release();
+    }
+  }
+
+  @Nullable
+  private static Double encodeFrames(MediaCodec codec, int width, int height, int framerate) {
+    final int frameSize = width * height * 3 / 2;
+    final byte[] pattern = createPattern(frameSize);
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_DURATION_MS);
+    int queuedFrames = 0;
+    int outputFrames = 0;
+    long firstOutputNs = 0;
+    long lastOutputNs = 0;
+    while (outputFrames < FRAME_COUNT && System.nanoTime() < deadlineNs) {
+      if (Thread.currentThread().isInterrupted()) {
+        return null;
+      }
+      if (queuedFrames < FRAME_COUNT) {
+        final int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        if (index >= 0) {
+          final ByteBuffer buffer = codec.getInputBuffer(index);
+          final int size = Math.min(frameSize, buffer.capacity());
+          buffer.clear();
+          buffer.put(pattern, (queuedFrames * PATTERN_STEP) % PATTERN_PERIOD, size);
+          codec.queueInputBuffer(
+              index, 0, size, TimeUnit.SECONDS.toMicros(queuedFrames) / framerate, 0);
+          ++queuedFrames;
+        }
+      }
+      final int index = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+      if (index >= 0) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+          lastOutputNs = System.nanoTime();
+          if (outputFrames == 0) {
+            firstOutputNs = lastOutputNs;
+          }
+          ++outputFrames;
+        }
+        codec.releaseOutputBuffer(index, false);
+      }
+    }
+    if (outputFrames < 2 || lastOutputNs == firstOutputNs) {
+      return null;
+    }
+    return (outputFrames - 1) * (double) TimeUnit.SECONDS.toNanos(1)
+        / (lastOutputNs - firstOutputNs);
+  }
+
+  // Gradient repeating every PATTERN_PERIOD bytes.  Each frame starts PATTERN_STEP further into
+  // it, so that consecutive frames differ and the encoder has motion to estimate.
+  private static byte[] createPattern(int frameSize) {
+    final byte[] pattern = new byte[frameSize + PATTERN_PERIOD];
+    for (int i = 0; i < pattern.length; ++i) {
+      pattern[i] = (byte) i;
+    }
+    return pattern;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the per-stage encode latency of the most recent frames in preallocated rings and computes
+ * percentiles on request. Samples are recorded on the encoder output thread; queries may come from
+ * any thread.
+ */
+public class ThetaEncoderLatencyTracer {
+  /** Stages of the encode pipeline, each measured between two timestamps of a frame. */
+  public enum Stage {
+    /** encode() entry until the frame is queued to the codec (drawing or YUV copy). */
+    INPUT,
+    /** Queued to the codec until the output buffer is dequeued. */
+    CODEC,
+    /** Output buffer dequeued until the callback returned. */
+    DELIVERY,
+    /** encode() entry until the callback returned. */
+    TOTAL
+  }
+
+  /** Latency percentiles of one stage, in nanoseconds. */
+  public static class Percentiles {
+    public final int sampleCount;
+    public final long p50Ns;
+    public final long p95Ns;
+    public final long p99Ns;
+    public final long maxNs;
+
+    Percentiles(int sampleCount, long p50Ns, long p95Ns, long p99Ns, long maxNs) {
+      this.sampleCount = sampleCount;
+      this.p50Ns = p50Ns;
+      this.p95Ns = p95Ns;
+      this.p99Ns = p99Ns;
+      this.maxNs = maxNs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms (n=%d)", toMs(p50Ns),
+          toMs(p95Ns), toMs(p99Ns), toMs(maxNs), sampleCount);
+    }
+
+    private static double toMs(long ns) {
+      return ns / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+
+  private final int capacity;
+  // Indexed by [stage][sample].
+  private final long[][] samples;
+  // Scratch array for sorting, reused by every query.
+  private final long[] sortBuffer;
+  private int nextSample;
+  private int sampleCount;
+  private long recordedCount;
+
+  ThetaEncoderLatencyTracer(int capacity) {
+    this.capacity = capacity;
+    samples = new long[Stage.values().length][capacity];
+    sortBuffer = new long[capacity];
+  }
+
+  /** Records the four timestamps of one frame, as given by System.nanoTime(). */
+  synchronized void record(long encodeNs, long inputQueuedNs, long outputNs, long deliveredNs) {
+    samples[Stage.INPUT.ordinal()][nextSample] = inputQueuedNs - encodeNs;
+    samples[Stage.CODEC.ordinal()][nextSample] = outputNs - inputQueuedNs;
+    samples[Stage.DELIVERY.ordinal()][nextSample] = deliveredNs - outputNs;
+    samples[Stage.TOTAL.ordinal()][nextSample] = deliveredNs - encodeNs;
+    nextSample = (nextSample + 1) % capacity;
+    sampleCount = Math.min(sampleCount + 1, capacity);
+    recordedCount++;
+  }
+
+  /** Returns the percentiles of the recent samples of |stage|, or null if nothing was recorded. */
+  @Nullable
+  public synchronized Percentiles getPercentiles(Stage stage) {
+    if (sampleCount == 0) {
+      return null;
+    }
+    System.arraycopy(samples[stage.ordinal()], 0, sortBuffer, 0, sampleCount);
+    Arrays.sort(sortBuffer, 0, sampleCount);
+    return new Percentiles(sampleCount, percentile(50), percentile(95), percentile(99),
+        sortBuffer[sampleCount - 1]);
+  }
+
+  /** Total number of frames recorded since creation. */
+  public synchronized long getRecordedCount() {
+    return recordedCount;
+  }
+
+  public synchronized void reset() {
+    nextSample = 0;
+    sampleCount = 0;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Encode latency:");
+    for (Stage stage : Stage.values()) {
+      sb.append(' ').append(stage).append("[").append(getPercentiles(stage)).append(']');
+    }
+    return sb.toString();
+  }
+
+  // Must be called with the lock held and sortBuffer sorted.
+  private long percentile(int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sampleCount) - 1;
+    return sortBuffer[Math.max(0, Math.min(index, sampleCount - 1))];
+  }
+}
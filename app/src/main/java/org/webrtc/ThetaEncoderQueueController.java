@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sizes the number of frames allowed in the codec from the observed codec turnaround and the
+ * target frame interval, and counts dropped frames by reason.
+ *
+ * Hardware codecs are pipelined: a codec with a turnaround of N frame intervals keeps up with the
+ * input only if it may hold N + 1 frames, as the next frame arrives before the oldest one is out,
+ * and a frame more absorbs jitter in the input.  The queue size stays within [minQueueSize,
+ * maxQueueSize].
+ *
+ * A codec that is slower than the input also has a long turnaround, as frames wait behind each
+ * other, and it grows with every frame allowed in.  More frames do not help such a codec; they
+ * only add latency.  The two cannot be told apart from the turnaround alone, so the queue grows by
+ * one frame at a time, at the end of a window of {@link #WINDOW_FRAMES} outputs with frames
+ * dropped because it was full.  The growth is kept if the next window had no such drops or its
+ * outputs came faster, and undone otherwise, after which the queue does not grow past that size
+ * for {@link #HOLDOFF_WINDOWS} windows.  The queue shrinks by one frame a window while a maximum
+ * of the turnaround, decaying over a few seconds, needs two frames fewer.
+ */
+public class ThetaEncoderQueueController {
+  private static final String TAG = "ThetaEncoderQueueController";
+
+  // Outputs per adjustment window.
+  private static final int WINDOW_FRAMES = 30;
+  // A growth is kept if it shortened the time between outputs by this fraction.
+  private static final double MIN_GROWTH_GAIN = 0.05;
+  // Windows after an undone growth during which the queue does not grow past its size.
+  private static final int HOLDOFF_WINDOWS = 10;
+  // Factor applied to the maximum turnaround on every output, halving it in about 35 outputs.
+  private static final double TURNAROUND_DECAY = 0.98;
+
+  /** Reasons for which the encoder drops an input frame. */
+  public enum DropReason {
+    /** The current queue size of frames was inside the codec. */
+    QUEUE_FULL,
+    /** The codec had no input buffer available. */
+    NO_INPUT_BUFFER,
+    /** The frame metadata ring had no free slot. */
+    METADATA_RING_FULL,
+    /** The layer's frame decimator dropped the frame to keep to its actual frame rate. */
+    DECIMATED
+  }
+
+  private final int minQueueSize;
+  private final int maxQueueSize;
+  private final AtomicLongArray dropCounts = new AtomicLongArray(DropReason.values().length);
+
+  // Written on the encode thread, read on the output thread.
+  private volatile long frameIntervalNs;
+
+  // --- Updated on the output thread.
+  private volatile double maxTurnaroundNs;
+  private volatile int queueSize;
+  private int windowOutputCount;
+  private long windowStartNs;
+  private long windowStartDropCount;
+  // Average time between outputs of the last window, or 0.
+  private volatile long outputIntervalNs;
+  // Whether the queue grew at the start of the current window.
+  private boolean growing;
+  // The queue does not grow past this size.
+  private int growthLimit;
+  private int holdoffWindows;
+  private long growCount;
+  private long undoneGrowCount;
+
+  ThetaEncoderQueueController(int minQueueSize, int maxQueueSize) {
+    if (minQueueSize < 1 || maxQueueSize < minQueueSize) {
+      throw new IllegalArgumentException(
+          "Invalid queue size bounds: " + minQueueSize + " - " + maxQueueSize);
+    }
+    this.minQueueSize = minQueueSize;
+    this.maxQueueSize = maxQueueSize;
+    this.queueSize = minQueueSize;
+    this.growthLimit = maxQueueSize;
+  }
+
+  /** Sets the target frame rate.  Called on the encode thread. */
+  void setFramerate(int framerate) {
+    if (framerate > 0) {
+      frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / framerate;
+    }
+  }
+
+  /**
+   * Reports a frame output dequeued at |outputTimeNs|, |turnaroundNs| after its input was queued.
+   */
+  void onFrameOutput(long turnaroundNs, long outputTimeNs) {
+    maxTurnaroundNs = Math.max(turnaroundNs, maxTurnaroundNs * TURNAROUND_DECAY);
+    if (windowOutputCount == 0) {
+      windowStartNs = outputTimeNs;
+      windowStartDropCount = getDropCount(DropReason.QUEUE_FULL);
+    }
+    if (++windowOutputCount <= WINDOW_FRAMES) {
+      return;
+    }
+    // The window ends with the output after WINDOW_FRAMES outputs, and the next one starts there.
+    final long intervalNs = (outputTimeNs - windowStartNs) / WINDOW_FRAMES;
+    final long dropCount = getDropCount(DropReason.QUEUE_FULL) - windowStartDropCount;
+    final long previousIntervalNs = outputIntervalNs;
+    outputIntervalNs = intervalNs;
+    windowOutputCount = 1;
+    windowStartNs = outputTimeNs;
+    windowStartDropCount += dropCount;
+    adjust(intervalNs, previousIntervalNs, dropCount);
+  }
+
+  // Called at the end of each window with its output interval, that of the window before it, and
+  // the frames dropped because the queue was full.
+  private void adjust(long intervalNs, long previousIntervalNs, long dropCount) {
+    if (holdoffWindows > 0 && --holdoffWindows == 0) {
+      growthLimit = maxQueueSize;
+    }
+    if (growing) {
+      growing = false;
+      if (dropCount > 0 && intervalNs > previousIntervalNs * (1 - MIN_GROWTH_GAIN)) {
+        // Still dropping, and no more outputs than before: the codec is slower than the input.
+        ++undoneGrowCount;
+        growthLimit = queueSize - 1;
+        holdoffWindows = HOLDOFF_WINDOWS;
+        setQueueSize(queueSize - 1, "growth did not help");
+      }
+      return;
+    }
+    if (dropCount > 0) {
+      if (queueSize < growthLimit) {
+        ++growCount;
+        growing = true;
+        setQueueSize(queueSize + 1, "dropping frames");
+      }
+      return;
+    }
+    final long frameIntervalNs = this.frameIntervalNs;
+    if (frameIntervalNs <= 0) {
+      return;
+    }
+    // The frames in the codec during the turnaround of the oldest one, plus the next frame.
+    final int neededQueueSize = (int) (maxTurnaroundNs / frameIntervalNs) + 1;
+    if (neededQueueSize < queueSize - 1 && queueSize > minQueueSize) {
+      setQueueSize(queueSize - 1, "turnaround decreased");
+    }
+  }
+
+  private void setQueueSize(int newQueueSize, String reason) {
+    Logging.d(TAG,
+        "Encoder queue size " + queueSize + " -> " + newQueueSize + ", " + reason + ", turnaround "
+            + TimeUnit.NANOSECONDS.toMillis((long) maxTurnaroundNs) + " ms, output interval "
+            + TimeUnit.NANOSECONDS.toMillis(outputIntervalNs) + " ms");
+    queueSize = newQueueSize;
+  }
+
+  /**
+   * Returns true if a frame has to be dropped with |framesInCodec| frames in the codec, i.e., if
+   * the codec already holds the queue size of frames.
+   */
+  boolean isQueueFull(int framesInCodec) {
+    return framesInCodec >= queueSize;
+  }
+
+  void onFrameDropped(DropReason reason) {
+    dropCounts.incrementAndGet(reason.ordinal());
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public long getDropCount(DropReason reason) {
+    return dropCounts.get(reason.ordinal());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("ThetaEncoderQueueController{queue size ");
+    sb.append(queueSize).append(" (").append(minQueueSize).append('-').append(maxQueueSize);
+    sb.append("), turnaround ").append(TimeUnit.NANOSECONDS.toMillis((long) maxTurnaroundNs));
+    sb.append(" ms, output interval ").append(TimeUnit.NANOSECONDS.toMillis(outputIntervalNs));
+    sb.append(" ms, grown ").append(growCount).append(" undone ").append(undoneGrowCount);
+    sb.append(", dropped");
+    for (DropReason reason : DropReason.values()) {
+      sb.append(' ').append(reason).append('=').append(getDropCount(reason));
+    }
+    return sb.append("}").toString();
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects a codec that stopped producing output, and measures how long recovering from it takes.
+ *
+ * The codec is considered stalled when frames are inside it and nothing came out for
+ * |stallFrameIntervals| frame intervals, but at least {@link #MIN_STALL_TIMEOUT_MS}, since the
+ * first of them was queued.  The recovery time runs from that frame until the first output of the
+ * recreated codec.
+ *
+ * Inputs and stalls are reported on the encode thread, outputs on the output thread.  The counters
+ * may be read on any thread.
+ */
+public class ThetaEncoderStallWatchdog {
+  private static final String TAG = "ThetaEncoderStallWatchdog";
+
+  // Lower bound of the stall timeout, so that high frame rates do not mistake the latency of a
+  // large key frame for a stall.
+  private static final long MIN_STALL_TIMEOUT_MS = 500;
+
+  private final int stallFrameIntervals;
+  // System.nanoTime() of the last output.
+  private final AtomicLong lastOutputNs = new AtomicLong();
+  // Start of the stall being recovered from, or 0.
+  private final AtomicLong recoveryStartNs = new AtomicLong();
+
+  private final AtomicLong stallCount = new AtomicLong();
+  private final AtomicLong recoveredCount = new AtomicLong();
+  private final AtomicLong lastRecoveryNs = new AtomicLong();
+  private final AtomicLong maxRecoveryNs = new AtomicLong();
+
+  // Written on the encode thread only.
+  private volatile long stallTimeoutNs;
+
+  // --- Only accessed on the encode thread.
+  // Time the first frame still waiting for output was queued, or 0.
+  private long waitingSinceNs;
+
+  ThetaEncoderStallWatchdog(int stallFrameIntervals) {
+    if (stallFrameIntervals < 1) {
+      throw new IllegalArgumentException("Invalid stall frame intervals: " + stallFrameIntervals);
+    }
+    this.stallFrameIntervals = stallFrameIntervals;
+    setFramerate(30);
+  }
+
+  /** Sets the frame rate the timeout is derived from. */
+  void setFramerate(int framerate) {
+    if (framerate > 0) {
+      stallTimeoutNs = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_STALL_TIMEOUT_MS),
+          stallFrameIntervals * TimeUnit.SECONDS.toNanos(1) / framerate);
+    }
+  }
+
+  /** Called when a codec is started, with nothing inside it yet. */
+  void onCodecStarted() {
+    waitingSinceNs = 0;
+  }
+
+  /** Called when a frame was queued to the codec at |nowNs|. */
+  void onInputQueued(long nowNs) {
+    if (waitingSinceNs == 0 || lastOutputNs.get() >= waitingSinceNs) {
+      waitingSinceNs = nowNs;
+    }
+  }
+
+  /** Called on the output thread for every output of the codec. */
+  void onOutput() {
+    final long nowNs = System.nanoTime();
+    lastOutputNs.set(nowNs);
+    final long startNs = recoveryStartNs.getAndSet(0);
+    if (startNs != 0) {
+      final long recoveryNs = nowNs - startNs;
+      lastRecoveryNs.set(recoveryNs);
+      long max = maxRecoveryNs.get();
+      while (recoveryNs > max && !maxRecoveryNs.compareAndSet(max, recoveryNs)) {
+        max = maxRecoveryNs.get();
+      }
+      recoveredCount.incrementAndGet();
+      Logging.d(TAG,
+          "Recovered from stall in " + TimeUnit.NANOSECONDS.toMillis(recoveryNs) + " ms");
+    }
+  }
+
+  /**
+   * Returns true if the codec, holding |framesInCodec| frames, has stalled at |nowNs|.  The stall
+   * is then counted, and the caller is expected to recreate the codec.
+   */
+  boolean checkStalled(long nowNs, int framesInCodec) {
+    if (framesInCodec == 0 || waitingSinceNs == 0 || lastOutputNs.get() >= waitingSinceNs
+        || nowNs - waitingSinceNs <= stallTimeoutNs) {
+      return false;
+    }
+    stallCount.incrementAndGet();
+    // A stall during a recovery counts from the first stall.
+    recoveryStartNs.compareAndSet(0, waitingSinceNs);
+    return true;
+  }
+
+  /** Stall timeout at the current frame rate. */
+  public long getStallTimeoutMs() {
+    return TimeUnit.NANOSECONDS.toMillis(stallTimeoutNs);
+  }
+
+  /** Number of stalls detected. */
+  public long getStallCount() {
+    return stallCount.get();
+  }
+
+  /** Number of stalls after which the codec produced output again. */
+  public long getRecoveredCount() {
+    return recoveredCount.get();
+  }
+
+  /** Time from the start of the last stall to the first output after it. */
+  public long getLastRecoveryMs() {
+    return TimeUnit.NANOSECONDS.toMillis(lastRecoveryNs.get());
+  }
+
+  /** Longest time from the start of a stall to the first output after it. */
+  public long getMaxRecoveryMs() {
+    return TimeUnit.NANOSECONDS.toMillis(maxRecoveryNs.get());
+  }
+
+  @Override
+  public String toString() {
+    return "ThetaEncoderStallWatchdog{stalls " + getStallCount() + ", recovered "
+        + getRecoveredCount() + ", last " + getLastRecoveryMs() + " ms, max "
+        + getMaxRecoveryMs() + " ms}";
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops input frames down to a target frame rate, independent of the frame rate libwebrtc
+ * allocates for the encoder.
+ *
+ * A token bucket driven by the frame timestamps: tokens accrue at the target frame rate, at most
+ * one is kept, and each encoded frame takes one.  Capture jitter therefore does not change the
+ * average output rate.
+ *
+ * {@link #shouldEncode} must be called on the encode thread.  The counters may be read on any
+ * thread.
+ */
+public class ThetaFrameDecimator {
+  // Tokens kept at most, i.e., frames that may follow each other closer than the target interval.
+  private static final double MAX_TOKENS = 1.0;
+
+  private final int targetFramerate;
+  private final long frameIntervalNs;
+  private final AtomicLong inputFrameCount = new AtomicLong();
+  private final AtomicLong emittedFrameCount = new AtomicLong();
+
+  // --- Only accessed on the encode thread.
+  private long lastTimestampNs = -1;
+  private double tokens;
+
+  ThetaFrameDecimator(int targetFramerate) {
+    if (targetFramerate < 1) {
+      throw new IllegalArgumentException("Invalid target frame rate: " + targetFramerate);
+    }
+    this.targetFramerate = targetFramerate;
+    this.frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / targetFramerate;
+  }
+
+  /** Returns true if the frame with |timestampNs| is to be encoded. */
+  boolean shouldEncode(long timestampNs) {
+    inputFrameCount.incrementAndGet();
+    if (lastTimestampNs < 0 || timestampNs < lastTimestampNs) {
+      // First frame, or the timestamps were reset.
+      tokens = MAX_TOKENS;
+    } else {
+      tokens = Math.min(
+          MAX_TOKENS, tokens + (double) (timestampNs - lastTimestampNs) / frameIntervalNs);
+    }
+    lastTimestampNs = timestampNs;
+    if (tokens < 1.0) {
+      return false;
+    }
+    tokens -= 1.0;
+    emittedFrameCount.incrementAndGet();
+    return true;
+  }
+
+  public int getTargetFramerate() {
+    return targetFramerate;
+  }
+
+  /** Number of frames passed to {@link #shouldEncode}. */
+  public long getInputFrameCount() {
+    return inputFrameCount.get();
+  }
+
+  /** Number of frames let through to the codec. */
+  public long getEmittedFrameCount() {
+    return emittedFrameCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ThetaFrameDecimator{" + targetFramerate + " fps, input " + getInputFrameCount()
+        + ", emitted " + getEmittedFrameCount() + "}";
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity ring of per-frame metadata for frames that are inside the codec. Entries are
+ * keyed by the presentation timestamp handed to MediaCodec, so outputs can be matched to their
+ * inputs even if the codec drops or reorders frames.  An entry consumed ahead of older ones stays
+ * in the ring until the older ones are consumed too, or are taken as dropped by the codec once
+ * they are more than {@link #MAX_REORDER_DISTANCE} entries behind.
+ *
+ * There must be exactly one producer (the encode thread, calling {@link #offer} and
+ * {@link #retractLast}) and one consumer (the output thread, calling {@link #find} and
+ * {@link #consume}). No locks are taken.
+ */
+class ThetaFrameMetadataRing {
+  // Presentation timestamps passed through EGL are truncated rather than rounded to microseconds,
+  // so allow a difference of one microsecond when matching.
+  private static final long PRESENTATION_TIME_TOLERANCE_US = 1;
+  // Outputs may come out this many frames ahead of an earlier frame, as with B-frames.
+  private static final int MAX_REORDER_DISTANCE = 4;
+
+  private final int capacity;
+  private final long[] presentationTimesUs;
+  private final long[] captureTimesNs;
+  private final int[] widths;
+  private final int[] heights;
+  private final int[] rotations;
+  // System.nanoTime() at encode() entry and after the frame was queued to the codec.  The latter is
+  // written after the entry is published, hence atomic.
+  private final long[] encodeTimesNs;
+  private final AtomicLongArray inputQueuedTimesNs;
+  // Entries consumed while an older entry is still waiting for its output.  Only accessed by the
+  // consumer.
+  private final boolean[] consumed;
+
+  // Sequence number of the next entry to be written. Only modified by the producer.
+  private final AtomicLong writeSequence = new AtomicLong();
+  // Sequence number of the oldest entry not yet consumed. Only modified by the consumer.
+  private final AtomicLong readSequence = new AtomicLong();
+  // Entries skipped because a later frame came out of the codec first.
+  private final AtomicLong orphanedCount = new AtomicLong();
+
+  ThetaFrameMetadataRing(int capacity) {
+    this.capacity = capacity;
+    presentationTimesUs = new long[capacity];
+    captureTimesNs = new long[capacity];
+    widths = new int[capacity];
+    heights = new int[capacity];
+    rotations = new int[capacity];
+    encodeTimesNs = new long[capacity];
+    inputQueuedTimesNs = new AtomicLongArray(capacity);
+    consumed = new boolean[capacity];
+  }
+
+  /** Adds an entry for a frame about to be queued. Returns false if the ring is full. */
+  boolean offer(long presentationTimeUs, long captureTimeNs, int width, int height, int rotation,
+      long encodeTimeNs) {
+    final long sequence = writeSequence.get();
+    if (sequence - readSequence.get() >= capacity) {
+      return false;
+    }
+    final int slot = slotOf(sequence);
+    presentationTimesUs[slot] = presentationTimeUs;
+    captureTimesNs[slot] = captureTimeNs;
+    widths[slot] = width;
+    heights[slot] = height;
+    rotations[slot] = rotation;
+    encodeTimesNs[slot] = encodeTimeNs;
+    inputQueuedTimesNs.set(slot, 0);
+    // Publishes the slot to the consumer.
+    writeSequence.lazySet(sequence + 1);
+    return true;
+  }
+
+  /**
+   * Removes the most recently offered entry. Used when the frame could not be queued, in which case
+   * the codec will never output it and the consumer cannot have matched it.
+   */
+  void retractLast() {
+    final long sequence = writeSequence.get();
+    if (sequence > readSequence.get()) {
+      writeSequence.lazySet(sequence - 1);
+    }
+  }
+
+  /** Sets the time the most recently offered frame was queued to the codec. */
+  void setLastInputQueuedTimeNs(long inputQueuedTimeNs) {
+    inputQueuedTimesNs.set(slotOf(writeSequence.get() - 1), inputQueuedTimeNs);
+  }
+
+  /**
+   * Number of frames that are currently in the codec, including consumed frames waiting for an
+   * older one.
+   */
+  int size() {
+    return (int) (writeSequence.get() - readSequence.get());
+  }
+
+  /**
+   * Returns the sequence number of the entry matching the presentation timestamp, or -1 if none
+   * matches. The entry stays valid until it is passed to {@link #consume}.
+   */
+  long find(long presentationTimeUs) {
+    final long end = writeSequence.get();
+    for (long sequence = readSequence.get(); sequence < end; ++sequence) {
+      final int slot = slotOf(sequence);
+      if (!consumed[slot]
+          && Math.abs(presentationTimesUs[slot] - presentationTimeUs)
+              <= PRESENTATION_TIME_TOLERANCE_US) {
+        return sequence;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the sequence number of the oldest entry, or -1 if the ring is empty. */
+  long oldest() {
+    final long sequence = readSequence.get();
+    return sequence < writeSequence.get() ? sequence : -1;
+  }
+
+  /**
+   * Releases the entry.  Older entries more than {@link #MAX_REORDER_DISTANCE} entries behind it
+   * are released as well and counted as orphaned.
+   */
+  void consume(long sequence) {
+    consumed[slotOf(sequence)] = true;
+    final long end = writeSequence.get();
+    long read = readSequence.get();
+    while (read < end && (consumed[slotOf(read)] || read < sequence - MAX_REORDER_DISTANCE)) {
+      final int slot = slotOf(read);
+      if (!consumed[slot]) {
+        orphanedCount.incrementAndGet();
+      }
+      consumed[slot] = false;
+      ++read;
+    }
+    readSequence.lazySet(read);
+  }
+
+  /** Drops every entry. Must only be called while neither thread is using the ring. */
+  void clear() {
+    Arrays.fill(consumed, false);
+    readSequence.set(writeSequence.get());
+  }
+
+  long getCaptureTimeNs(long sequence) {
+    return captureTimesNs[slotOf(sequence)];
+  }
+
+  int getWidth(long sequence) {
+    return widths[slotOf(sequence)];
+  }
+
+  int getHeight(long sequence) {
+    return heights[slotOf(sequence)];
+  }
+
+  int getRotation(long sequence) {
+    return rotations[slotOf(sequence)];
+  }
+
+  long getEncodeTimeNs(long sequence) {
+    return encodeTimesNs[slotOf(sequence)];
+  }
+
+  /** Returns 0 if the queue time has not been set. */
+  long getInputQueuedTimeNs(long sequence) {
+    return inputQueuedTimesNs.get(slotOf(sequence));
+  }
+
+  long getOrphanedCount() {
+    return orphanedCount.get();
+  }
+
+  private int slotOf(long sequence) {
+    return (int) (sequence % capacity);
+  }
+}
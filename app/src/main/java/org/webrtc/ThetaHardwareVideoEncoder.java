@@ -16,14 +16,19 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.opengl.GLES20;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.annotation.Nullable;
 import android.view.Surface;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.webrtc.ThreadUtils.ThreadChecker;
 
 /**
@@ -42,105 +47,114 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
   // Key associated with the bitrate control mode value (above). Not present as a MediaFormat
   // constant until API level 21.
   private static final String KEY_BITRATE_MODE = "bitrate-mode";
+  // MediaFormat.KEY_INTRA_REFRESH_PERIOD, not available as a constant until API level 24.
+  private static final String KEY_INTRA_REFRESH_PERIOD = "intra-refresh-period";
 
+  private static final int VIDEO_AVC_PROFILE_BASELINE = 1;
   private static final int VIDEO_AVC_PROFILE_HIGH = 8;
   private static final int VIDEO_AVC_LEVEL_3 = 0x100;
 
   private static final int MAX_VIDEO_FRAMERATE = 30;
 
-  // See MAX_ENCODER_Q_SIZE in androidmediaencoder.cc.
-  private static final int MAX_ENCODER_Q_SIZE = 2;
-
   private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
   private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
 
-  /**
-   * Keeps track of the number of output buffers that have been passed down the pipeline and not yet
-   * released. We need to wait for this to go down to zero before operations invalidating the output
-   * buffers, i.e., stop() and getOutputBuffers().
-   */
-  private static class BusyCount {
-    private final Object countLock = new Object();
-    private int count;
+  // Number of buffers kept per size class for assembling key frames. Key frames are released by
+  // the network thread quickly, so a couple of buffers cover the frames in flight.
+  private static final int KEY_FRAME_BUFFERS_PER_SIZE_CLASS = 3;
 
-    public void increment() {
-      synchronized (countLock) {
-        count++;
-      }
-    }
+  // Number of NAL unit indices of released frames kept for reuse.  An index goes with its image
+  // until the image is released, so this only needs to cover the images in flight.
+  private static final int FREE_NAL_UNIT_INDICES = 8;
 
-    // This method may be called on an arbitrary thread.
-    public void decrement() {
-      synchronized (countLock) {
-        count--;
-        if (count == 0) {
-          countLock.notifyAll();
-        }
-      }
-    }
+  // Capacity of the per-frame metadata ring. Must be larger than the maximum encoder queue size + 1
+  // so that the ring never limits the queue; the headroom absorbs outputs the codec silently
+  // dropped.
+  private static final int FRAME_METADATA_CAPACITY = 32;
 
-    // The increment and waitForZero methods are called on the same thread (deliverEncodedImage,
-    // running on the output thread). Hence, after waitForZero returns, the count will stay zero
-    // until the same thread calls increment.
-    public void waitForZero() {
-      boolean wasInterrupted = false;
-      synchronized (countLock) {
-        while (count > 0) {
-          try {
-            countLock.wait();
-          } catch (InterruptedException e) {
-            Logging.e(TAG, "Interrupted while waiting on busy count", e);
-            wasInterrupted = true;
-          }
-        }
-      }
+  // Number of recent frames kept for latency percentiles, and how often they are logged.
+  private static final int LATENCY_TRACE_CAPACITY = 512;
+  private static final int LATENCY_LOG_INTERVAL_FRAMES = 300;
+
+  // Maximum number of codecs kept prewarmed besides the one in use.  Each holds a hardware codec
+  // instance.
+  private static final int MAX_PREWARMED_CODECS = 2;
 
-      if (wasInterrupted) {
-        Thread.currentThread().interrupt();
-      }
-    }
-  }
   // --- Initialized on construction.
   private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
+  private final ThetaAsyncMediaCodecWrapperFactory asyncCodecWrapperFactory;
   private final String codecName;
-  private final VideoCodecType codecType;
+  private final ThetaVideoCodecMimeType codecType;
   private final Integer surfaceColorFormat;
   private final Integer yuvColorFormat;
   private final YuvFormat yuvFormat;
   private final Map<String, String> params;
+  // Highest H.264 level the codec supports for the negotiated profile, or 0 if unknown.
+  private final int avcMaxLevel;
   private final int keyFrameIntervalSec; // Base interval for generating key frames.
-  // Interval at which to force a key frame. Used to reduce color distortions caused by some
-  // Qualcomm video encoders.
-  private final long forcedKeyFrameNs;
+  // Frames over which the codec refreshes the whole picture with intra blocks, or 0 to use only
+  // key frames.
+  private final int intraRefreshPeriodFrames;
+  // Decides which frames are key frames.
+  private final ThetaKeyFrameScheduler keyFrameScheduler;
   private final BitrateAdjuster bitrateAdjuster;
+  // Decides how many frames may be inside the codec.
+  private final ThetaEncoderQueueController queueController;
   // EGL context shared with the application.  Used to access texture inputs.
   private final EglBase14.Context sharedContext;
+  // Whether to run MediaCodec in asynchronous (callback) mode instead of polling it from a
+  // dedicated output thread.
+  private final boolean useAsyncCodecMode;
+  // Frame sizes to keep prewarmed codecs for, so that switching to them is fast.
+  private final List<Size> prewarmSizes;
+  // Prewarms codecs and releases old ones in the background.  Null if nothing is prewarmed.
+  @Nullable private final ThetaCodecPool codecPool;
 
   // Drawer used to draw input textures onto the codec's input surface.
   private final GlRectDrawer textureDrawer = new GlRectDrawer();
   private final VideoFrameDrawer videoFrameDrawer = new VideoFrameDrawer();
-  // A queue of EncodedImage.Builders that correspond to frames in the codec.  These builders are
-  // pre-populated with all the information that can't be sent through MediaCodec.
-  private final BlockingDeque<EncodedImage.Builder> outputBuilders = new LinkedBlockingDeque<>();
+  // Copies NV21 camera frames into byte buffer inputs without an intermediate I420 frame.
+  private final ThetaYuvConverter yuvConverter = new ThetaYuvConverter();
+  private final ThetaEncoderLatencyTracer latencyTracer =
+      new ThetaEncoderLatencyTracer(LATENCY_TRACE_CAPACITY);
 
   private final ThreadChecker encodeThreadChecker = new ThreadChecker();
-  private final ThreadChecker outputThreadChecker = new ThreadChecker();
-  private final BusyCount outputBuffersBusyCount = new BusyCount();
+  // Buffers used to prepend the config frame to H.264 key frames.
+  private final ThetaDirectBufferPool keyFrameBufferPool =
+      new ThetaDirectBufferPool(KEY_FRAME_BUFFERS_PER_SIZE_CLASS);
+  // Orphaned frames of the codecs already released.
+  private final AtomicLong releasedOrphanedFrameCount = new AtomicLong();
 
   // --- Set on initialize and immutable until release.
   private Callback callback;
   private boolean automaticResizeOn;
 
-  // --- Valid and immutable while an encoding session is running.
-  @Nullable private MediaCodecWrapper codec;
-  @Nullable private ByteBuffer[] outputBuffers;
-  // Thread that delivers encoded frames to the user callback.
-  @Nullable private Thread outputThread;
+  // The codec in use and the state of its output, or null.  Replaced on the encode thread, read
+  // by the getters on any thread.
+  @Nullable private volatile CodecSession session;
 
   // EGL base wrapping the shared texture context.  Holds hooks to both the shared context and the
   // input surface.  Making this base current allows textures from the context to be drawn onto the
   // surface.
   @Nullable private EglBase14 textureEglBase;
+  // Shared with the other simulcast layers of the stream, if any.
+  @Nullable private final ThetaSimulcastScaler simulcastScaler;
+  // Whether this encoder is registered with simulcastScaler.
+  private boolean simulcastLayerAdded;
+  // Actual frame rates by the maximum frame rate libwebrtc configures.
+  private final Map<Integer, Integer> decimatedFramerates;
+  // Drops frames down to the actual frame rate of this layer, if it has one.  Set on the encode
+  // thread, read by getFrameDecimator() on any thread.
+  @Nullable private volatile ThetaFrameDecimator frameDecimator;
+  // Temporal layering of the codec output.  Used on the output thread.
+  private final ThetaTemporalLayers temporalLayers;
+  // Candidates to receive the output as well.
+  private final List<ThetaEncodedFrameSink> encodedFrameSinks;
+  // The sinks that accepted the current codec.  Set on the encode thread while the output thread
+  // is not running.
+  private volatile List<ThetaEncodedFrameSink> attachedSinks = Collections.emptyList();
+  // Recreates the codec when it stops producing output, or null.
+  @Nullable private final ThetaEncoderStallWatchdog stallWatchdog;
   // Input surface for the codec.  The encoder will draw input textures onto this surface.
   @Nullable private Surface textureInputSurface;
 
@@ -148,52 +162,161 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
   private int height;
   private boolean useSurfaceMode;
 
-  // --- Only accessed from the encoding thread.
-  // Presentation timestamp of the last requested (or forced) key frame.
-  private long lastKeyFrameNs;
-
   // --- Only accessed on the output thread.
-  // Contents of the last observed config frame output by the MediaCodec. Used by H.264.
-  @Nullable private ByteBuffer configBuffer;
   private int adjustedBitrate;
+  // Outputs whose presentation timestamp did not match any queued frame.
+  private volatile long unmatchedOutputCount;
+
+  /**
+   * One codec instance and the state of its output.  A new session is created whenever a codec is
+   * started, so an output thread whose release timed out, e.g., of a stalled codec, keeps to its
+   * own codec, config frame and frame metadata and never sees those of the codec started after it.
+   */
+  private class CodecSession {
+    final MediaCodecWrapper codec;
+    // Same object as codec in asynchronous mode, otherwise null.
+    @Nullable final ThetaAsyncMediaCodecWrapper asyncCodec;
+    // Metadata of the frames in the codec, keyed by presentation timestamp.  Holds all the
+    // information that can't be sent through MediaCodec.
+    final ThetaFrameMetadataRing frameMetadata =
+        new ThetaFrameMetadataRing(FRAME_METADATA_CAPACITY);
+    final ThetaOutputBufferTracker outputBufferTracker = new ThetaOutputBufferTracker();
+    final ThreadChecker outputThreadChecker = new ThreadChecker();
+
+    // --- Set on the encode thread before output starts.
+    @Nullable ByteBuffer[] outputBuffers;
+    // Thread that delivers encoded frames to the user callback.
+    @Nullable Thread outputThread;
+    // Looper thread receiving MediaCodec callbacks in asynchronous mode.  Takes the role of
+    // outputThread, which is not used in this mode.
+    @Nullable HandlerThread outputHandlerThread;
+
+    // Whether the codec is in use.  Once false, the output thread hands outputs back to the codec
+    // instead of delivering them, and then releases the codec.
+    volatile boolean running;
+    // Any exception thrown while the output thread releases the codec, sent back to the encode
+    // thread.
+    @Nullable volatile Exception shutdownException;
+    // Non-transient error reported by the codec in asynchronous mode, handled by the next encode().
+    @Nullable volatile MediaCodec.CodecException codecException;
+
+    // --- Only accessed on the output thread.
+    // Contents of the last observed config frame output by the MediaCodec. Used by H.264.
+    @Nullable ByteBuffer configBuffer;
+    // Reused for every dequeueOutputBuffer() call in synchronous mode.
+    final MediaCodec.BufferInfo outputBufferInfo = new MediaCodec.BufferInfo();
+
+    // --- Guarded by itself, as images are released on arbitrary threads.
+    // NAL unit indices of released frames.  Null for codecs without NAL units.
+    @Nullable private final ArrayDeque<ThetaNalUnitIndex> freeNalUnitIndices;
+
+    CodecSession(MediaCodecWrapper codec, @Nullable ThetaAsyncMediaCodecWrapper asyncCodec) {
+      this.codec = codec;
+      this.asyncCodec = asyncCodec;
+      this.freeNalUnitIndices = ThetaNalUnitIndex.isSupported(codecType)
+          ? new ArrayDeque<>(FREE_NAL_UNIT_INDICES)
+          : null;
+      outputThreadChecker.detachThread();
+    }
 
-  // Whether the encoder is running.  Volatile so that the output thread can watch this value and
-  // exit when the encoder stops.
-  private volatile boolean running;
-  // Any exception thrown during shutdown.  The output thread releases the MediaCodec and uses this
-  // value to send exceptions thrown during release back to the encoder thread.
-  @Nullable private volatile Exception shutdownException;
+    // Returns an index for one frame output, to be recycled once the frame is released, or null
+    // for codecs without NAL units.
+    @Nullable
+    ThetaNalUnitIndex acquireNalUnitIndex() {
+      if (freeNalUnitIndices == null) {
+        return null;
+      }
+      final ThetaNalUnitIndex nalUnits;
+      synchronized (freeNalUnitIndices) {
+        nalUnits = freeNalUnitIndices.pollFirst();
+      }
+      return nalUnits != null ? nalUnits : new ThetaNalUnitIndex();
+    }
+
+    void recycleNalUnitIndex(@Nullable ThetaNalUnitIndex nalUnits) {
+      if (nalUnits == null) {
+        return;
+      }
+      synchronized (freeNalUnitIndices) {
+        if (freeNalUnitIndices.size() < FREE_NAL_UNIT_INDICES) {
+          freeNalUnitIndices.offerFirst(nalUnits);
+        }
+      }
+    }
+  }
 
   /**
    * Creates a new HardwareVideoEncoder with the given codecName, codecType, colorFormat, key frame
    * intervals, and bitrateAdjuster.
    *
    * @param codecName the hardware codec implementation to use
-   * @param codecType the type of the given video codec (eg. VP8, VP9, or H264)
+   * @param codecType the type of the given video codec (eg. VP8, VP9, H264 or H265)
    * @param surfaceColorFormat color format for surface mode or null if not available
    * @param yuvColorFormat color format for bytebuffer mode
+   * @param avcMaxLevel highest H.264 level the codec supports for the negotiated profile, or 0 if
+   *     unknown; the codec is configured with the lowest level that covers the encoded size, frame
+   *     rate and bitrate, up to this one
    * @param keyFrameIntervalSec interval in seconds between key frames; used to initialize the codec
-   * @param forceKeyFrameIntervalMs interval at which to force a key frame if one is not requested;
-   *     used to reduce distortion caused by some codec implementations
+   * @param keyFrameScheduler decides which frames are key frames, coalescing requests and forcing
+   *     key frames at an interval if needed
    * @param bitrateAdjuster algorithm used to correct codec implementations that do not produce the
    *     desired bitrates
+   * @param queueController limits the number of frames inside the codec
+   * @param useAsyncCodecMode true to receive output through MediaCodec callbacks on a looper
+   *     thread; the codec is then created by asyncCodecWrapperFactory rather than by
+   *     mediaCodecWrapperFactory
+   * @param prewarmSizes frame sizes to keep configured codecs ready for; ignored in asynchronous
+   *     mode
+   * @param simulcastScaler downscales texture frames for all simulcast layers at once, or null
+   * @param decimatedFramerates frame rates to actually encode at, keyed by the maximum frame rate
+   *     given to initEncode(); frames are dropped down to these rates regardless of setRates()
+   * @param numberOfTemporalLayers temporal layers to request from the codec, 1 to 3
+   * @param intraRefreshPeriodFrames period of intra refresh in frames, or 0 to disable it; the
+   *     codec must support FEATURE_IntraRefresh
+   * @param encodedFrameSinks also receive the encoded output if they accept this encoder
+   * @param stallFrameIntervals frame intervals without output, while frames are in the codec,
+   *     after which the codec is recreated; 0 to never recreate it
    * @throws IllegalArgumentException if colorFormat is unsupported
    */
-  public ThetaHardwareVideoEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory, String codecName,
-      VideoCodecType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
-      Map<String, String> params, int keyFrameIntervalSec, int forceKeyFrameIntervalMs,
-      BitrateAdjuster bitrateAdjuster, EglBase14.Context sharedContext) {
+  public ThetaHardwareVideoEncoder(MediaCodecWrapperFactory mediaCodecWrapperFactory,
+      ThetaAsyncMediaCodecWrapperFactory asyncCodecWrapperFactory, String codecName,
+      ThetaVideoCodecMimeType codecType, Integer surfaceColorFormat, Integer yuvColorFormat,
+      Map<String, String> params, int avcMaxLevel, int keyFrameIntervalSec,
+      ThetaKeyFrameScheduler keyFrameScheduler, BitrateAdjuster bitrateAdjuster,
+      ThetaEncoderQueueController queueController, EglBase14.Context sharedContext,
+      boolean useAsyncCodecMode, List<Size> prewarmSizes,
+      @Nullable ThetaSimulcastScaler simulcastScaler, Map<Integer, Integer> decimatedFramerates,
+      int numberOfTemporalLayers, int intraRefreshPeriodFrames,
+      List<ThetaEncodedFrameSink> encodedFrameSinks, int stallFrameIntervals) {
     this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
+    this.asyncCodecWrapperFactory = asyncCodecWrapperFactory;
     this.codecName = codecName;
     this.codecType = codecType;
     this.surfaceColorFormat = surfaceColorFormat;
     this.yuvColorFormat = yuvColorFormat;
     this.yuvFormat = YuvFormat.valueOf(yuvColorFormat);
     this.params = params;
+    this.avcMaxLevel = avcMaxLevel;
     this.keyFrameIntervalSec = keyFrameIntervalSec;
-    this.forcedKeyFrameNs = TimeUnit.MILLISECONDS.toNanos(forceKeyFrameIntervalMs);
+    this.intraRefreshPeriodFrames = intraRefreshPeriodFrames;
+    this.keyFrameScheduler = keyFrameScheduler;
     this.bitrateAdjuster = bitrateAdjuster;
+    this.queueController = queueController;
     this.sharedContext = sharedContext;
+    this.useAsyncCodecMode = useAsyncCodecMode;
+    this.prewarmSizes = prewarmSizes;
+    this.simulcastScaler = simulcastScaler;
+    this.decimatedFramerates = decimatedFramerates;
+    this.temporalLayers = new ThetaTemporalLayers(codecType, numberOfTemporalLayers);
+    this.encodedFrameSinks = encodedFrameSinks;
+    this.stallWatchdog =
+        stallFrameIntervals > 0 ? new ThetaEncoderStallWatchdog(stallFrameIntervals) : null;
+    if (!useAsyncCodecMode && !prewarmSizes.isEmpty()) {
+      codecPool = new ThetaCodecPool(mediaCodecWrapperFactory, codecName,
+          Math.min(prewarmSizes.size(), MAX_PREWARMED_CODECS));
+    } else {
+      codecPool = null;
+    }
 
     // Allow construction on a different thread.
     encodeThreadChecker.detachThread();
@@ -209,104 +332,254 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     this.height = settings.height;
     useSurfaceMode = canUseSurface();
 
-    if (settings.startBitrate != 0 && settings.maxFramerate != 0) {
-      bitrateAdjuster.setTargets(settings.startBitrate * 1000, settings.maxFramerate);
+    final Integer decimatedFramerate = decimatedFramerates.get(settings.maxFramerate);
+    frameDecimator =
+        decimatedFramerate != null ? new ThetaFrameDecimator(decimatedFramerate) : null;
+    final int maxFramerate = limitFramerate(settings.maxFramerate);
+    if (settings.startBitrate != 0 && maxFramerate != 0) {
+      bitrateAdjuster.setTargets(settings.startBitrate * 1000, maxFramerate);
+    }
+    queueController.setFramerate(maxFramerate != 0 ? maxFramerate : MAX_VIDEO_FRAMERATE);
+    if (stallWatchdog != null) {
+      stallWatchdog.setFramerate(maxFramerate != 0 ? maxFramerate : MAX_VIDEO_FRAMERATE);
     }
     adjustedBitrate = bitrateAdjuster.getAdjustedBitrateBps();
 
     Logging.d(TAG,
         "initEncode: " + width + " x " + height + ". @ " + settings.startBitrate
-            + "kbps. Fps: " + settings.maxFramerate + " Use surface mode: " + useSurfaceMode);
+            + "kbps. Fps: " + settings.maxFramerate + " Use surface mode: " + useSurfaceMode
+            + (frameDecimator != null ? " Decimated to " + frameDecimator.getTargetFramerate()
+                                      : ""));
     return initEncodeInternal();
   }
 
   private VideoCodecStatus initEncodeInternal() {
     encodeThreadChecker.checkIsOnValidThread();
 
-    lastKeyFrameNs = -1;
+    keyFrameScheduler.onCodecStarted();
+    if (stallWatchdog != null) {
+      stallWatchdog.onCodecStarted();
+    }
 
+    final ThetaCodecPool.PooledCodec pooledCodec =
+        codecPool != null ? codecPool.take(width, height, useSurfaceMode) : null;
+    final CodecSession session;
     try {
-      codec = mediaCodecWrapperFactory.createByCodecName(codecName);
+      if (pooledCodec != null) {
+        session = new CodecSession(pooledCodec.codec, null /* asyncCodec */);
+      } else if (useAsyncCodecMode) {
+        final ThetaAsyncMediaCodecWrapper asyncCodec =
+            asyncCodecWrapperFactory.createByCodecName(codecName);
+        session = new CodecSession(asyncCodec, asyncCodec);
+      } else {
+        session = new CodecSession(
+            mediaCodecWrapperFactory.createByCodecName(codecName), null /* asyncCodec */);
+      }
     } catch (IOException | IllegalArgumentException e) {
       Logging.e(TAG, "Cannot create media encoder " + codecName);
       return VideoCodecStatus.FALLBACK_SOFTWARE;
     }
+    this.session = session;
+    final MediaCodecWrapper codec = session.codec;
+
+    if (useAsyncCodecMode) {
+      session.outputHandlerThread = new HandlerThread(TAG + ".output");
+      session.outputHandlerThread.start();
+      session.asyncCodec.setCallback(createAsyncOutputListener(session),
+          new Handler(session.outputHandlerThread.getLooper()));
+    }
 
-    final int colorFormat = useSurfaceMode ? surfaceColorFormat : yuvColorFormat;
     try {
-      MediaFormat format = MediaFormat.createVideoFormat(codecType.mimeType(), width, height);
-      format.setInteger(MediaFormat.KEY_BIT_RATE, adjustedBitrate);
-      format.setInteger(KEY_BITRATE_MODE, VIDEO_ControlRateConstant);
-      format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
-      format.setInteger(MediaFormat.KEY_FRAME_RATE, bitrateAdjuster.getCodecConfigFramerate());
-      format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSec);
-      if (codecType == VideoCodecType.H264) {
-        String profileLevelId = params.get(VideoCodecInfo.H264_FMTP_PROFILE_LEVEL_ID);
-        if (profileLevelId == null) {
-          profileLevelId = VideoCodecInfo.H264_CONSTRAINED_BASELINE_3_1;
-        }
-        switch (profileLevelId) {
-          case VideoCodecInfo.H264_CONSTRAINED_HIGH_3_1:
-            format.setInteger("profile", VIDEO_AVC_PROFILE_HIGH);
-            format.setInteger("level", VIDEO_AVC_LEVEL_3);
-            break;
-          case VideoCodecInfo.H264_CONSTRAINED_BASELINE_3_1:
-            break;
-          default:
-            Logging.w(TAG, "Unknown profile level id: " + profileLevelId);
-        }
+      if (pooledCodec == null) {
+        MediaFormat format = createMediaFormat(width, height, useSurfaceMode);
+        Logging.d(TAG, "Format: " + format);
+        codec.configure(
+            format, null /* surface */, null /* crypto */, MediaCodec.CONFIGURE_FLAG_ENCODE);
       }
-      Logging.d(TAG, "Format: " + format);
-      codec.configure(
-          format, null /* surface */, null /* crypto */, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
       if (useSurfaceMode) {
         textureEglBase = EglBase.createEgl14(sharedContext, EglBase.CONFIG_RECORDABLE);
-        textureInputSurface = codec.createInputSurface();
+        textureInputSurface =
+            pooledCodec != null ? pooledCodec.inputSurface : codec.createInputSurface();
         textureEglBase.createSurface(textureInputSurface);
         textureEglBase.makeCurrent();
+        if (simulcastScaler != null) {
+          simulcastScaler.addLayer(width, height);
+          simulcastLayerAdded = true;
+        }
       }
 
-      codec.start();
-      outputBuffers = codec.getOutputBuffers();
+      // Set before starting, as callbacks may arrive as soon as the codec runs.
+      session.running = true;
+      attachSinks();
+      if (pooledCodec == null) {
+        codec.start();
+      } else {
+        // The prewarmed codec was configured with the bitrate of that time.
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, adjustedBitrate);
+        codec.setParameters(params);
+      }
+      if (!useAsyncCodecMode) {
+        session.outputBuffers = codec.getOutputBuffers();
+      }
     } catch (IllegalStateException e) {
       Logging.e(TAG, "initEncodeInternal failed", e);
       release();
       return VideoCodecStatus.FALLBACK_SOFTWARE;
     }
 
-    running = true;
-    outputThreadChecker.detachThread();
-    outputThread = createOutputThread();
-    outputThread.start();
+    if (!useAsyncCodecMode) {
+      session.outputThread = createOutputThread(session);
+      session.outputThread.start();
+    }
 
+    prewarmCodecs();
     return VideoCodecStatus.OK;
   }
 
+  private void attachSinks() {
+    encodeThreadChecker.checkIsOnValidThread();
+    List<ThetaEncodedFrameSink> sinks = new ArrayList<>();
+    for (ThetaEncodedFrameSink sink : encodedFrameSinks) {
+      if (sink.onEncoderStarted(codecType.mimeType(), width, height)) {
+        sinks.add(sink);
+      }
+    }
+    attachedSinks = sinks.isEmpty() ? Collections.emptyList() : sinks;
+  }
+
+  private MediaFormat createMediaFormat(int width, int height, boolean useSurfaceMode) {
+    final int colorFormat = useSurfaceMode ? surfaceColorFormat : yuvColorFormat;
+    MediaFormat format = MediaFormat.createVideoFormat(codecType.mimeType(), width, height);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, adjustedBitrate);
+    format.setInteger(KEY_BITRATE_MODE, VIDEO_ControlRateConstant);
+    format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, bitrateAdjuster.getCodecConfigFramerate());
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSec);
+    if (intraRefreshPeriodFrames > 0) {
+      format.setInteger(KEY_INTRA_REFRESH_PERIOD, intraRefreshPeriodFrames);
+    }
+    temporalLayers.configure(format);
+    if (codecType == ThetaVideoCodecMimeType.H264) {
+      String profileLevelId = params.get(VideoCodecInfo.H264_FMTP_PROFILE_LEVEL_ID);
+      if (profileLevelId == null) {
+        profileLevelId = VideoCodecInfo.H264_CONSTRAINED_BASELINE_3_1;
+      }
+      // The level is not the negotiated one: the stream is sent with level asymmetry, so the
+      // level follows what is encoded.
+      switch (profileLevelId) {
+        case VideoCodecInfo.H264_CONSTRAINED_HIGH_3_1: {
+          final int level = selectAvcLevel(width, height, /* highProfile= */ true);
+          format.setInteger("profile", VIDEO_AVC_PROFILE_HIGH);
+          format.setInteger("level", level > 0 ? level : VIDEO_AVC_LEVEL_3);
+          break;
+        }
+        case VideoCodecInfo.H264_CONSTRAINED_BASELINE_3_1: {
+          // Without a known level the codec picks its own, as the profile is its default.
+          final int level = selectAvcLevel(width, height, /* highProfile= */ false);
+          if (level > 0) {
+            format.setInteger("profile", VIDEO_AVC_PROFILE_BASELINE);
+            format.setInteger("level", level);
+          }
+          break;
+        }
+        default:
+          Logging.w(TAG, "Unknown profile level id: " + profileLevelId);
+      }
+    }
+    return format;
+  }
+
+  private int selectAvcLevel(int width, int height, boolean highProfile) {
+    return ThetaAvcLevels.select(width, height, bitrateAdjuster.getCodecConfigFramerate(),
+        adjustedBitrate, highProfile, avcMaxLevel);
+  }
+
+  // Prepares codecs for the other prewarm sizes in the current mode.
+  private void prewarmCodecs() {
+    encodeThreadChecker.checkIsOnValidThread();
+    if (codecPool == null) {
+      return;
+    }
+    for (Size size : prewarmSizes) {
+      if (size.width != width || size.height != height) {
+        codecPool.prewarm(size.width, size.height, useSurfaceMode,
+            createMediaFormat(size.width, size.height, useSurfaceMode));
+      }
+    }
+  }
+
   @Override
   public VideoCodecStatus release() {
+    final VideoCodecStatus returnValue = releaseInternal();
+    Logging.d(TAG, "Released, key frame buffer pool hits: " + getKeyFrameBufferPoolHits()
+        + " misses: " + getKeyFrameBufferPoolMisses());
+    Logging.d(TAG, "Released, orphaned frames: " + getOrphanedFrameCount()
+        + " unmatched outputs: " + getUnmatchedOutputCount());
+    Logging.d(TAG, "Released, " + queueController);
+    Logging.d(TAG, "Released, " + keyFrameScheduler);
+    if (frameDecimator != null) {
+      Logging.d(TAG, "Released, " + frameDecimator);
+    }
+    if (codecPool != null) {
+      codecPool.releaseAll();
+    }
+    return returnValue;
+  }
+
+  // Releases the current codec.  Prewarmed codecs are kept.  If the output thread does not finish
+  // in time, the codec is left to it; its session keeps the state the thread still uses.
+  private VideoCodecStatus releaseInternal() {
+    return releaseInternal(true /* waitForCodec */);
+  }
+
+  // Releases the current codec.  Unless |waitForCodec|, the codec is left to be stopped and
+  // released by its output thread while the encoder goes on, e.g., with a new codec.
+  private VideoCodecStatus releaseInternal(boolean waitForCodec) {
     encodeThreadChecker.checkIsOnValidThread();
 
+    final CodecSession session = this.session;
     final VideoCodecStatus returnValue;
-    if (outputThread == null) {
+    if (session == null) {
+      returnValue = VideoCodecStatus.OK;
+    } else if (session.outputHandlerThread != null) {
+      returnValue = releaseAsyncCodec(session, waitForCodec);
+    } else if (session.outputThread == null) {
+      // Failed before the output thread was started, e.g., in configure().  Nothing else uses the
+      // codec, so it is released here.
+      session.running = false;
+      releaseCodecOnOutputThread(session);
+      returnValue =
+          session.shutdownException == null ? VideoCodecStatus.OK : VideoCodecStatus.ERROR;
+    } else if (!waitForCodec) {
+      session.running = false;
       returnValue = VideoCodecStatus.OK;
     } else {
       // The outputThread actually stops and releases the codec once running is false.
-      running = false;
-      if (!ThreadUtils.joinUninterruptibly(outputThread, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
+      session.running = false;
+      if (!ThreadUtils.joinUninterruptibly(session.outputThread, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
         Logging.e(TAG, "Media encoder release timeout");
         returnValue = VideoCodecStatus.TIMEOUT;
-      } else if (shutdownException != null) {
+      } else if (session.shutdownException != null) {
         // Log the exception and turn it into an error.
-        Logging.e(TAG, "Media encoder release exception", shutdownException);
+        Logging.e(TAG, "Media encoder release exception", session.shutdownException);
         returnValue = VideoCodecStatus.ERROR;
       } else {
         returnValue = VideoCodecStatus.OK;
       }
     }
 
+    for (ThetaEncodedFrameSink sink : attachedSinks) {
+      sink.onEncoderStopped();
+    }
+    attachedSinks = Collections.emptyList();
     textureDrawer.release();
     videoFrameDrawer.release();
+    if (simulcastLayerAdded) {
+      simulcastScaler.removeLayer(width, height);
+      simulcastLayerAdded = false;
+    }
     if (textureEglBase != null) {
       textureEglBase.release();
       textureEglBase = null;
@@ -315,11 +588,8 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
       textureInputSurface.release();
       textureInputSurface = null;
     }
-    outputBuilders.clear();
 
-    codec = null;
-    outputBuffers = null;
-    outputThread = null;
+    this.session = null;
 
     // Allow changing thread after release.
     encodeThreadChecker.detachThread();
@@ -327,12 +597,53 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     return returnValue;
   }
 
+  private VideoCodecStatus releaseAsyncCodec(final CodecSession session, boolean waitForCodec) {
+    encodeThreadChecker.checkIsOnValidThread();
+    // Stop and release the codec on the looper thread once the callbacks already posted have been
+    // handled.  Callbacks handled afterwards see running == false and return their buffers.
+    session.running = false;
+    new Handler(session.outputHandlerThread.getLooper())
+        .post(() -> releaseCodecOnOutputThread(session));
+    session.outputHandlerThread.quitSafely();
+    if (!waitForCodec) {
+      return VideoCodecStatus.OK;
+    }
+    if (!ThreadUtils.joinUninterruptibly(
+            session.outputHandlerThread, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
+      Logging.e(TAG, "Media encoder release timeout");
+      return VideoCodecStatus.TIMEOUT;
+    } else if (session.shutdownException != null) {
+      Logging.e(TAG, "Media encoder release exception", session.shutdownException);
+      return VideoCodecStatus.ERROR;
+    }
+    return VideoCodecStatus.OK;
+  }
+
   @Override
   public VideoCodecStatus encode(VideoFrame videoFrame, EncodeInfo encodeInfo) {
     encodeThreadChecker.checkIsOnValidThread();
-    if (codec == null) {
+    final long encodeTimeNs = System.nanoTime();
+    if (session == null) {
       return VideoCodecStatus.UNINITIALIZED;
     }
+    if (session.codecException != null) {
+      VideoCodecStatus status = handleCodecError(session.codecException);
+      if (status != VideoCodecStatus.OK) {
+        return status;
+      }
+    }
+
+    for (EncodedImage.FrameType frameType : encodeInfo.frameTypes) {
+      if (frameType == EncodedImage.FrameType.VideoFrameKey) {
+        // Kept pending until a frame is actually encoded.
+        keyFrameScheduler.onKeyFrameRequested(videoFrame.getTimestampNs());
+      }
+    }
+
+    if (frameDecimator != null && !frameDecimator.shouldEncode(videoFrame.getTimestampNs())) {
+      queueController.onFrameDropped(ThetaEncoderQueueController.DropReason.DECIMATED);
+      return VideoCodecStatus.NO_OUTPUT;
+    }
 
     final VideoFrame.Buffer videoFrameBuffer = videoFrame.getBuffer();
     Logging.d(TAG, "frame buffer=" + videoFrameBuffer.toString());
@@ -349,45 +660,59 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
       }
     }
 
-    if (outputBuilders.size() > MAX_ENCODER_Q_SIZE) {
+    if (stallWatchdog != null
+        && stallWatchdog.checkStalled(System.nanoTime(), session.frameMetadata.size())) {
+      VideoCodecStatus status = recoverStalledCodec();
+      if (status != VideoCodecStatus.OK) {
+        return status;
+      }
+    }
+    // Read after a reset or a recovery may have replaced it.
+    final CodecSession session = this.session;
+    final ThetaFrameMetadataRing frameMetadata = session.frameMetadata;
+
+    if (queueController.isQueueFull(frameMetadata.size())) {
       // Too many frames in the encoder.  Drop this frame.
       Logging.e(TAG, "Dropped frame, encoder queue full");
+      queueController.onFrameDropped(ThetaEncoderQueueController.DropReason.QUEUE_FULL);
       return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
     }
 
-    boolean requestedKeyFrame = false;
-    for (EncodedImage.FrameType frameType : encodeInfo.frameTypes) {
-      if (frameType == EncodedImage.FrameType.VideoFrameKey) {
-        requestedKeyFrame = true;
-      }
-    }
-
-    if (requestedKeyFrame || shouldForceKeyFrame(videoFrame.getTimestampNs())) {
-      requestKeyFrame(videoFrame.getTimestampNs());
+    if (keyFrameScheduler.shouldEncodeKeyFrame(videoFrame.getTimestampNs())) {
+      requestKeyFrame(session.codec);
     }
 
     // Number of bytes in the video buffer. Y channel is sampled at one byte per pixel; U and V are
     // subsampled at one byte per four pixels.
     int bufferSize = videoFrameBuffer.getHeight() * videoFrameBuffer.getWidth() * 3 / 2;
-    EncodedImage.Builder builder = EncodedImage.builder()
-                                       .setCaptureTimeNs(videoFrame.getTimestampNs())
-                                       .setCompleteFrame(true)
-                                       .setEncodedWidth(videoFrame.getBuffer().getWidth())
-                                       .setEncodedHeight(videoFrame.getBuffer().getHeight())
-                                       .setRotation(videoFrame.getRotation());
-    outputBuilders.offer(builder);
+    // Frame timestamp rounded to the nearest microsecond, as seen by MediaCodec.
+    long presentationTimestampUs = (videoFrame.getTimestampNs() + 500) / 1000;
+    if (!frameMetadata.offer(presentationTimestampUs, videoFrame.getTimestampNs(),
+            videoFrame.getBuffer().getWidth(), videoFrame.getBuffer().getHeight(),
+            videoFrame.getRotation(), encodeTimeNs)) {
+      Logging.e(TAG, "Dropped frame, frame metadata ring full");
+      queueController.onFrameDropped(ThetaEncoderQueueController.DropReason.METADATA_RING_FULL);
+      return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
+    }
 
     final VideoCodecStatus returnValue;
     if (useSurfaceMode) {
       returnValue = encodeTextureBuffer(videoFrame);
     } else {
-      returnValue = encodeByteBuffer(videoFrame, videoFrameBuffer, bufferSize);
+      returnValue =
+          encodeByteBuffer(session, videoFrameBuffer, bufferSize, presentationTimestampUs);
     }
 
     // Check if the queue was successful.
     if (returnValue != VideoCodecStatus.OK) {
-      // Keep the output builders in sync with buffers in the codec.
-      outputBuilders.pollLast();
+      // Keep the frame metadata in sync with buffers in the codec.
+      frameMetadata.retractLast();
+    } else {
+      final long inputQueuedTimeNs = System.nanoTime();
+      frameMetadata.setLastInputQueuedTimeNs(inputQueuedTimeNs);
+      if (stallWatchdog != null) {
+        stallWatchdog.onInputQueued(inputQueuedTimeNs);
+      }
     }
 
     return returnValue;
@@ -396,13 +721,27 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
   private VideoCodecStatus encodeTextureBuffer(VideoFrame videoFrame) {
     encodeThreadChecker.checkIsOnValidThread();
     try {
+      int levelTexture = 0;
+      if (simulcastLayerAdded) {
+        levelTexture = simulcastScaler.getLevelTexture(
+            (VideoFrame.TextureBuffer) videoFrame.getBuffer(), videoFrame.getTimestampNs(), width,
+            height);
+        // The scaler leaves no context current.
+        textureEglBase.makeCurrent();
+      }
       // TODO(perkj): glClear() shouldn't be necessary since every pixel is covered anyway,
       // but it's a workaround for bug webrtc:5147.
       GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-      // It is not necessary to release this frame because it doesn't own the buffer.
-      VideoFrame derotatedFrame =
-          new VideoFrame(videoFrame.getBuffer(), 0 /* rotation */, videoFrame.getTimestampNs());
-      videoFrameDrawer.drawFrame(derotatedFrame, textureDrawer, null /* additionalRenderMatrix */);
+      if (levelTexture != 0) {
+        textureDrawer.drawRgb(levelTexture, RendererCommon.identityMatrix(), width, height,
+            0 /* viewportX */, 0 /* viewportY */, width, height);
+      } else {
+        // It is not necessary to release this frame because it doesn't own the buffer.
+        VideoFrame derotatedFrame =
+            new VideoFrame(videoFrame.getBuffer(), 0 /* rotation */, videoFrame.getTimestampNs());
+        videoFrameDrawer.drawFrame(
+            derotatedFrame, textureDrawer, null /* additionalRenderMatrix */);
+      }
       textureEglBase.swapBuffers(videoFrame.getTimestampNs());
     } catch (RuntimeException e) {
       Logging.e(TAG, "encodeTexture failed", e);
@@ -411,12 +750,10 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     return VideoCodecStatus.OK;
   }
 
-  private VideoCodecStatus encodeByteBuffer(
-      VideoFrame videoFrame, VideoFrame.Buffer videoFrameBuffer, int bufferSize) {
+  private VideoCodecStatus encodeByteBuffer(CodecSession session,
+      VideoFrame.Buffer videoFrameBuffer, int bufferSize, long presentationTimestampUs) {
     encodeThreadChecker.checkIsOnValidThread();
-    // Frame timestamp rounded to the nearest microsecond.
-    long presentationTimestampUs = (videoFrame.getTimestampNs() + 500) / 1000;
-
+    final MediaCodecWrapper codec = session.codec;
     // No timeout.  Don't block for an input buffer, drop frames if the encoder falls behind.
     int index;
     try {
@@ -429,12 +766,14 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     if (index == -1) {
       // Encoder is falling behind.  No input buffers available.  Drop the frame.
       Logging.d(TAG, "Dropped frame, no input buffers available");
+      queueController.onFrameDropped(ThetaEncoderQueueController.DropReason.NO_INPUT_BUFFER);
       return VideoCodecStatus.NO_OUTPUT; // See webrtc bug 2887.
     }
 
     ByteBuffer buffer;
     try {
-      buffer = codec.getInputBuffers()[index];
+      buffer = session.asyncCodec != null ? session.asyncCodec.getInputBuffer(index)
+                                          : codec.getInputBuffers()[index];
     } catch (IllegalStateException e) {
       Logging.e(TAG, "getInputBuffers failed", e);
       return VideoCodecStatus.ERROR;
@@ -458,7 +797,12 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     if (framerate > MAX_VIDEO_FRAMERATE) {
       framerate = MAX_VIDEO_FRAMERATE;
     }
+    framerate = limitFramerate(framerate);
     bitrateAdjuster.setTargets(bitrateAllocation.getSum(), framerate);
+    queueController.setFramerate(framerate);
+    if (stallWatchdog != null) {
+      stallWatchdog.setFramerate(framerate);
+    }
     return VideoCodecStatus.OK;
   }
 
@@ -466,11 +810,11 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
   public ScalingSettings getScalingSettings() {
     encodeThreadChecker.checkIsOnValidThread();
     if (automaticResizeOn) {
-      if (codecType == VideoCodecType.VP8) {
+      if (codecType == ThetaVideoCodecMimeType.VP8) {
         final int kLowVp8QpThreshold = 29;
         final int kHighVp8QpThreshold = 95;
         return new ScalingSettings(kLowVp8QpThreshold, kHighVp8QpThreshold);
-      } else if (codecType == VideoCodecType.H264) {
+      } else if (codecType == ThetaVideoCodecMimeType.H264) {
         final int kLowH264QpThreshold = 24;
         final int kHighH264QpThreshold = 37;
         return new ScalingSettings(kLowH264QpThreshold, kHighH264QpThreshold);
@@ -486,7 +830,7 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
 
   private VideoCodecStatus resetCodec(int newWidth, int newHeight, boolean newUseSurfaceMode) {
     encodeThreadChecker.checkIsOnValidThread();
-    VideoCodecStatus status = release();
+    VideoCodecStatus status = releaseInternal();
     if (status != VideoCodecStatus.OK) {
       return status;
     }
@@ -496,12 +840,42 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     return initEncodeInternal();
   }
 
-  private boolean shouldForceKeyFrame(long presentationTimestampNs) {
+  // Replaces a codec that stopped producing output.  The new codec starts with a key frame.  The
+  // stalled codec is left to its output thread, as stopping it is likely to block as well; the
+  // thread only uses the session of that codec, so the new codec is started right away.
+  private VideoCodecStatus recoverStalledCodec() {
     encodeThreadChecker.checkIsOnValidThread();
-    return forcedKeyFrameNs > 0 && presentationTimestampNs > lastKeyFrameNs + forcedKeyFrameNs;
+    Logging.e(TAG,
+        "No output for " + stallWatchdog.getStallTimeoutMs() + " ms with "
+            + session.frameMetadata.size() + " frames in the codec, recreating it");
+    final long startNs = System.nanoTime();
+    releaseInternal(false /* waitForCodec */);
+    final VideoCodecStatus status = initEncodeInternal();
+    Logging.d(TAG,
+        "Replaced the stalled codec in "
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs) + " ms: " + status);
+    return status;
   }
 
-  private void requestKeyFrame(long presentationTimestampNs) {
+  // Replaces a codec that reported an error in asynchronous mode.  After a recoverable error the
+  // codec is recreated; after any other error encoding falls back to software.
+  @TargetApi(23)
+  private VideoCodecStatus handleCodecError(MediaCodec.CodecException e) {
+    encodeThreadChecker.checkIsOnValidThread();
+    if (!e.isRecoverable()) {
+      Logging.e(TAG, "Fatal MediaCodec error " + e.getDiagnosticInfo() + ", falling back");
+      releaseInternal();
+      return VideoCodecStatus.FALLBACK_SOFTWARE;
+    }
+    Logging.w(TAG, "Recoverable MediaCodec error " + e.getDiagnosticInfo() + ", recreating it");
+    final VideoCodecStatus status = releaseInternal();
+    if (status != VideoCodecStatus.OK) {
+      return status;
+    }
+    return initEncodeInternal();
+  }
+
+  private void requestKeyFrame(MediaCodecWrapper codec) {
     encodeThreadChecker.checkIsOnValidThread();
     // Ideally MediaCodec would honor BUFFER_FLAG_SYNC_FRAME so we could
     // indicate this in queueInputBuffer() below and guarantee _this_ frame
@@ -513,124 +887,285 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
       codec.setParameters(b);
     } catch (IllegalStateException e) {
       Logging.e(TAG, "requestKeyFrame failed", e);
-      return;
     }
-    lastKeyFrameNs = presentationTimestampNs;
   }
 
-  private Thread createOutputThread() {
+  private Thread createOutputThread(final CodecSession session) {
     return new Thread() {
       @Override
       public void run() {
-        while (running) {
-          deliverEncodedImage();
+        while (session.running) {
+          deliverEncodedImage(session);
         }
-        releaseCodecOnOutputThread();
+        releaseCodecOnOutputThread(session);
       }
     };
   }
 
-  // Visible for testing.
-  protected void deliverEncodedImage() {
-    outputThreadChecker.checkIsOnValidThread();
+  private ThetaAsyncMediaCodecWrapper.OutputListener createAsyncOutputListener(
+      final CodecSession session) {
+    return new ThetaAsyncMediaCodecWrapper.OutputListener() {
+      @Override
+      public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        session.outputThreadChecker.checkIsOnValidThread();
+        if (!session.running) {
+          // Release is pending.  Hand the buffer back so that the codec can stop.
+          try {
+            session.asyncCodec.releaseOutputBuffer(index, false);
+          } catch (IllegalStateException e) {
+            Logging.e(TAG, "releaseOutputBuffer failed", e);
+          }
+          return;
+        }
+        try {
+          deliverOutputBuffer(session, index, info, session.asyncCodec.getOutputBuffer(index));
+        } catch (IllegalStateException e) {
+          Logging.e(TAG, "deliverOutput failed", e);
+        }
+      }
+
+      @Override
+      public void onOutputFormatChanged(MediaFormat format) {
+        if (session.running) {
+          handleOutputFormatChanged(session, format);
+        }
+      }
+
+      @Override
+      public void onError(MediaCodec.CodecException e) {
+        Logging.e(TAG, "MediaCodec error", e);
+        if (e.isTransient()) {
+          // The failed operation may succeed when retried; the codec keeps running.
+          return;
+        }
+        // Without a reset the codec announces no more input buffers, and the stream freezes.
+        session.codecException = e;
+      }
+    };
+  }
+
+  private void deliverEncodedImage(CodecSession session) {
+    session.outputThreadChecker.checkIsOnValidThread();
+    final MediaCodecWrapper codec = session.codec;
     try {
-      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      MediaCodec.BufferInfo info = session.outputBufferInfo;
       int index = codec.dequeueOutputBuffer(info, DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
       if (index < 0) {
         if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-          outputBuffersBusyCount.waitForZero();
-          outputBuffers = codec.getOutputBuffers();
+          session.outputBufferTracker.waitForZero();
+          session.outputBuffers = codec.getOutputBuffers();
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED && session.running) {
+          handleOutputFormatChanged(session, codec.getOutputFormat());
         }
         return;
       }
 
-      ByteBuffer codecOutputBuffer = outputBuffers[index];
-      codecOutputBuffer.position(info.offset);
-      codecOutputBuffer.limit(info.offset + info.size);
+      if (!session.running) {
+        // Released while waiting for this output.  Another codec may already be running, so the
+        // output must not reach the shared output state.
+        codec.releaseOutputBuffer(index, false);
+        return;
+      }
+      deliverOutputBuffer(session, index, info, session.outputBuffers[index]);
+    } catch (IllegalStateException e) {
+      Logging.e(TAG, "deliverOutput failed", e);
+    }
+  }
 
-      if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-        Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
-        configBuffer = ByteBuffer.allocateDirect(info.size);
-        configBuffer.put(codecOutputBuffer);
-      } else {
-        bitrateAdjuster.reportEncodedFrame(info.size);
-        if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
-          updateBitrate();
-        }
+  // Called on the output thread, or on the callback looper in asynchronous mode.
+  private void handleOutputFormatChanged(CodecSession session, MediaFormat format) {
+    session.outputThreadChecker.checkIsOnValidThread();
+    Logging.d(TAG, "Output format changed: " + format);
+    temporalLayers.onOutputFormatChanged(format);
+    for (ThetaEncodedFrameSink sink : attachedSinks) {
+      sink.onOutputFormat(format);
+    }
+  }
 
-        final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-        if (isKeyFrame) {
-          Logging.d(TAG, "Sync frame generated");
-        }
+  // Delivers the output buffer at |index| of the session's codec to the callback.  Called on the
+  // output thread, or on the callback looper in asynchronous mode.
+  private void deliverOutputBuffer(CodecSession session, final int index,
+      MediaCodec.BufferInfo info, ByteBuffer codecOutputBuffer) {
+    session.outputThreadChecker.checkIsOnValidThread();
+    final long outputTimeNs = System.nanoTime();
+    if (stallWatchdog != null) {
+      stallWatchdog.onOutput();
+    }
+    codecOutputBuffer.position(info.offset);
+    codecOutputBuffer.limit(info.offset + info.size);
+
+    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+      Logging.d(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
+      session.configBuffer = ByteBuffer.allocateDirect(info.size);
+      session.configBuffer.put(codecOutputBuffer);
+      // Copied, so the codec can have its buffer back right away.
+      session.codec.releaseOutputBuffer(index, false);
+    } else {
+      bitrateAdjuster.reportEncodedFrame(info.size);
+      if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
+        updateBitrate(session.codec);
+      }
 
-        final ByteBuffer frameBuffer;
-        if (isKeyFrame && codecType == VideoCodecType.H264) {
-          Logging.d(TAG,
-              "Prepending config frame of size " + configBuffer.capacity()
-                  + " to output buffer with offset " + info.offset + ", size " + info.size);
-          // For H.264 key frame prepend SPS and PPS NALs at the start.
-          frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
-          configBuffer.rewind();
-          frameBuffer.put(configBuffer);
-          frameBuffer.put(codecOutputBuffer);
-          frameBuffer.rewind();
-        } else {
-          frameBuffer = codecOutputBuffer.slice();
-        }
+      final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+      if (isKeyFrame) {
+        Logging.d(TAG, "Sync frame generated");
+      }
+      // Indexed once for the sinks, the temporal index and the callback, as offsets are relative
+      // to the position and the callback gets a slice of the codec buffer.  Key frames given the
+      // config frame are indexed again for the callback.
+      final ThetaNalUnitIndex nalUnits = session.acquireNalUnitIndex();
+      final List<ThetaEncodedFrameSink> sinks = attachedSinks;
+      if (nalUnits != null && !sinks.isEmpty()) {
+        nalUnits.parse(codecOutputBuffer, codecType);
+      }
+      for (ThetaEncodedFrameSink sink : sinks) {
+        sink.onEncodedFrame(codecOutputBuffer, info, nalUnits);
+      }
 
-        final EncodedImage.FrameType frameType = isKeyFrame
-            ? EncodedImage.FrameType.VideoFrameKey
-            : EncodedImage.FrameType.VideoFrameDelta;
-
-        outputBuffersBusyCount.increment();
-        EncodedImage.Builder builder = outputBuilders.poll();
-        EncodedImage encodedImage = builder
-                                        .setBuffer(frameBuffer,
-                                            () -> {
-                                              // This callback should not throw any exceptions since
-                                              // it may be called on an arbitrary thread.
-                                              // Check bug webrtc:11230 for more details.
-                                              try {
-                                                codec.releaseOutputBuffer(index, false);
-                                              } catch (Exception e) {
-                                                Logging.e(TAG, "releaseOutputBuffer failed", e);
-                                              }
-                                              outputBuffersBusyCount.decrement();
-                                            })
-                                        .setFrameType(frameType)
-                                        .createEncodedImage();
-        // TODO(mellem):  Set codec-specific info.
-        callback.onEncodedFrame(encodedImage, new CodecSpecificInfo());
-        // Note that the callback may have retained the image.
-        encodedImage.release();
+      final ByteBuffer configBuffer = session.configBuffer;
+      final ByteBuffer frameBuffer;
+      final ThetaDirectBufferPool.Lease keyFrameLease;
+      if (isKeyFrame && configBuffer != null
+          && (codecType == ThetaVideoCodecMimeType.H264
+              || codecType == ThetaVideoCodecMimeType.H265)) {
+        Logging.d(TAG,
+            "Prepending config frame of size " + configBuffer.capacity()
+                + " to output buffer with offset " + info.offset + ", size " + info.size);
+        // For H.264 key frame prepend SPS and PPS NALs at the start, for H.265 IRAP frames the
+        // VPS, SPS and PPS, which the codec outputs together as the config frame.
+        keyFrameLease = keyFrameBufferPool.acquire(info.size + configBuffer.capacity());
+        frameBuffer = keyFrameLease.buffer;
+        configBuffer.rewind();
+        frameBuffer.put(configBuffer);
+        frameBuffer.put(codecOutputBuffer);
+        frameBuffer.rewind();
+      } else {
+        keyFrameLease = null;
+        frameBuffer = codecOutputBuffer.slice();
       }
-    } catch (IllegalStateException e) {
-      Logging.e(TAG, "deliverOutput failed", e);
+      if (nalUnits != null && (sinks.isEmpty() || keyFrameLease != null)) {
+        nalUnits.parse(frameBuffer, codecType);
+      }
+      final int temporalIndex = temporalLayers.nextTemporalIndex(frameBuffer, nalUnits, isKeyFrame);
+
+      final EncodedImage.FrameType frameType = isKeyFrame
+          ? EncodedImage.FrameType.VideoFrameKey
+          : EncodedImage.FrameType.VideoFrameDelta;
+
+      // The buffer is released to the codec it came from and checked in with its tracker, even if
+      // the image outlives the session.
+      final MediaCodecWrapper codec = session.codec;
+      final ThetaOutputBufferTracker outputBufferTracker = session.outputBufferTracker;
+      final ThetaFrameMetadataRing frameMetadata = session.frameMetadata;
+      final long checkOutTimeNs = outputBufferTracker.checkOut();
+      final long sequence = findFrameMetadata(frameMetadata, info.presentationTimeUs);
+      EncodedImage.Builder builder =
+          createOutputBuilder(frameMetadata, sequence, info.presentationTimeUs);
+      // Read before the entry is released, as the encode thread may reuse it.
+      final long encodeTimeNs = sequence < 0 ? 0 : frameMetadata.getEncodeTimeNs(sequence);
+      final long inputQueuedTimeNs =
+          sequence < 0 ? 0 : frameMetadata.getInputQueuedTimeNs(sequence);
+      if (sequence >= 0) {
+        frameMetadata.consume(sequence);
+      }
+      EncodedImage encodedImage = builder
+                                      .setBuffer(frameBuffer,
+                                          () -> {
+                                            // This callback should not throw any exceptions since
+                                            // it may be called on an arbitrary thread.
+                                            // Check bug webrtc:11230 for more details.
+                                            try {
+                                              codec.releaseOutputBuffer(index, false);
+                                            } catch (Exception e) {
+                                              Logging.e(TAG, "releaseOutputBuffer failed", e);
+                                            }
+                                            if (keyFrameLease != null) {
+                                              keyFrameBufferPool.recycle(keyFrameLease);
+                                            }
+                                            session.recycleNalUnitIndex(nalUnits);
+                                            outputBufferTracker.checkIn(checkOutTimeNs);
+                                          })
+                                      .setFrameType(frameType)
+                                      .createEncodedImage();
+      callback.onEncodedFrame(encodedImage, new ThetaCodecSpecificInfo(temporalIndex, nalUnits));
+      // Note that the callback may have retained the image.
+      encodedImage.release();
+      if (inputQueuedTimeNs != 0) {
+        recordLatency(encodeTimeNs, inputQueuedTimeNs, outputTimeNs, System.nanoTime());
+      }
+    }
+  }
+
+  // Returns the frame metadata entry of the input frame matching an output, or -1 if the codec is
+  // empty.
+  private long findFrameMetadata(ThetaFrameMetadataRing frameMetadata, long presentationTimeUs) {
+    long sequence = frameMetadata.find(presentationTimeUs);
+    if (sequence < 0) {
+      // The codec changed the timestamp.  Fall back to the oldest frame in the codec.
+      Logging.w(TAG, "No frame metadata for output with timestamp " + presentationTimeUs);
+      unmatchedOutputCount++;
+      sequence = frameMetadata.oldest();
+    }
+    return sequence;
+  }
+
+  // Builds the EncodedImage.Builder for an output from the metadata of the matching input frame.
+  private EncodedImage.Builder createOutputBuilder(
+      ThetaFrameMetadataRing frameMetadata, long sequence, long presentationTimeUs) {
+    EncodedImage.Builder builder = EncodedImage.builder().setCompleteFrame(true);
+    if (sequence < 0) {
+      return builder.setCaptureTimeNs(TimeUnit.MICROSECONDS.toNanos(presentationTimeUs))
+          .setEncodedWidth(width)
+          .setEncodedHeight(height)
+          .setRotation(0);
     }
+    return builder.setCaptureTimeNs(frameMetadata.getCaptureTimeNs(sequence))
+        .setEncodedWidth(frameMetadata.getWidth(sequence))
+        .setEncodedHeight(frameMetadata.getHeight(sequence))
+        .setRotation(frameMetadata.getRotation(sequence));
   }
 
-  private void releaseCodecOnOutputThread() {
-    outputThreadChecker.checkIsOnValidThread();
+  private void recordLatency(
+      long encodeTimeNs, long inputQueuedTimeNs, long outputTimeNs, long deliveredTimeNs) {
+    latencyTracer.record(encodeTimeNs, inputQueuedTimeNs, outputTimeNs, deliveredTimeNs);
+    queueController.onFrameOutput(outputTimeNs - inputQueuedTimeNs, outputTimeNs);
+    if (latencyTracer.getRecordedCount() % LATENCY_LOG_INTERVAL_FRAMES == 0) {
+      Logging.d(TAG, latencyTracer.toString());
+    }
+  }
+
+  // Releases the codec of |session|, which may no longer be the current session if its release
+  // timed out.
+  private void releaseCodecOnOutputThread(CodecSession session) {
+    session.outputThreadChecker.checkIsOnValidThread();
     Logging.d(TAG, "Releasing MediaCodec on output thread");
-    outputBuffersBusyCount.waitForZero();
+    // Counted here, after the last output of the session, as the encode thread may not wait.
+    releasedOrphanedFrameCount.addAndGet(session.frameMetadata.getOrphanedCount());
+    session.outputBufferTracker.waitForZero();
+    Logging.d(TAG, "Released codec, " + session.outputBufferTracker);
+    session.configBuffer = null;
+    if (codecPool != null) {
+      // Stopping a hardware codec can take long.  Don't make the encode thread wait for it.
+      codecPool.releaseAsync(session.codec);
+      Logging.d(TAG, "Release on output thread done, codec is released in the background");
+      return;
+    }
     try {
-      codec.stop();
+      session.codec.stop();
     } catch (Exception e) {
       Logging.e(TAG, "Media encoder stop failed", e);
     }
     try {
-      codec.release();
+      session.codec.release();
     } catch (Exception e) {
       Logging.e(TAG, "Media encoder release failed", e);
       // Propagate exceptions caught during release back to the main thread.
-      shutdownException = e;
+      session.shutdownException = e;
     }
-    configBuffer = null;
     Logging.d(TAG, "Release on output thread done");
   }
 
-  private VideoCodecStatus updateBitrate() {
-    outputThreadChecker.checkIsOnValidThread();
+  private VideoCodecStatus updateBitrate(MediaCodecWrapper codec) {
     adjustedBitrate = bitrateAdjuster.getAdjustedBitrateBps();
     try {
       Bundle params = new Bundle();
@@ -643,12 +1178,100 @@ class ThetaHardwareVideoEncoder implements VideoEncoder {
     }
   }
 
+  /** Number of key frames assembled in a pooled buffer. */
+  public long getKeyFrameBufferPoolHits() {
+    return keyFrameBufferPool.getHitCount();
+  }
+
+  /** Number of key frames that required allocating a new buffer. */
+  public long getKeyFrameBufferPoolMisses() {
+    return keyFrameBufferPool.getMissCount();
+  }
+
+  /**
+   * Output buffers of the current codec held downstream and how long they were held, or null if no
+   * codec is running.  The tracker of each codec is logged when the codec is released.
+   */
+  @Nullable
+  public ThetaOutputBufferTracker getOutputBufferTracker() {
+    final CodecSession session = this.session;
+    return session != null ? session.outputBufferTracker : null;
+  }
+
+  /** Stalls and recovery times of the codec, or null if stalls are not detected. */
+  @Nullable
+  public ThetaEncoderStallWatchdog getStallWatchdog() {
+    return stallWatchdog;
+  }
+
+  /** Per-stage encode latency of the recent frames. */
+  public ThetaEncoderLatencyTracer getLatencyTracer() {
+    return latencyTracer;
+  }
+
+  /** Encoder queue size and dropped frame counts. */
+  public ThetaEncoderQueueController getQueueController() {
+    return queueController;
+  }
+
+  /** Requested, coalesced and emitted key frame counts. */
+  public ThetaKeyFrameScheduler getKeyFrameScheduler() {
+    return keyFrameScheduler;
+  }
+
+  /** Input and emitted frame counts of the decimated layer, or null if frames are not dropped. */
+  @Nullable
+  public ThetaFrameDecimator getFrameDecimator() {
+    return frameDecimator;
+  }
+
+  /** Number of queued frames whose output never came out of the codec. */
+  public long getOrphanedFrameCount() {
+    final CodecSession session = this.session;
+    return releasedOrphanedFrameCount.get()
+        + (session != null ? session.frameMetadata.getOrphanedCount() : 0);
+  }
+
+  /** Number of outputs that could not be matched to a queued frame. */
+  public long getUnmatchedOutputCount() {
+    return unmatchedOutputCount;
+  }
+
+  // The codec is configured for the frame rate it actually gets, so that its rate control spends
+  // the whole bitrate on the decimated frames.
+  private int limitFramerate(int framerate) {
+    if (frameDecimator == null || framerate == 0) {
+      return framerate;
+    }
+    return Math.min(framerate, frameDecimator.getTargetFramerate());
+  }
+
   private boolean canUseSurface() {
     return sharedContext != null && surfaceColorFormat != null;
   }
 
   // Visible for testing.
   protected void fillInputBuffer(ByteBuffer buffer, VideoFrame.Buffer videoFrameBuffer) {
+    if (videoFrameBuffer instanceof ThetaNV21Buffer
+        && ThetaYuvConverter.isSupportedSize(
+            videoFrameBuffer.getWidth(), videoFrameBuffer.getHeight())) {
+      // Frames from ThetaCamera1Session: swizzle the chroma plane straight into the codec buffer
+      // instead of converting to I420 and then to the codec format.  Other NV21Buffer and
+      // NV12Buffer frames keep their data private and take the toI420() path below; nothing in
+      // the app produces them.
+      final ThetaNV21Buffer nv21Buffer = (ThetaNV21Buffer) videoFrameBuffer;
+      buffer.clear();
+      switch (yuvFormat) {
+        case I420:
+          yuvConverter.nv21ToI420(
+              nv21Buffer.getData(), nv21Buffer.getWidth(), nv21Buffer.getHeight(), buffer);
+          return;
+        case NV12:
+          yuvConverter.nv21ToNv12(
+              nv21Buffer.getData(), nv21Buffer.getWidth(), nv21Buffer.getHeight(), buffer);
+          return;
+      }
+    }
     yuvFormat.fillBuffer(buffer, videoFrameBuffer);
   }
 
@@ -15,12 +15,19 @@ import static org.webrtc.MediaCodecUtils.INTEL_PREFIX;
 import static org.webrtc.MediaCodecUtils.QCOM_PREFIX;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.os.Build;
 import android.support.annotation.Nullable;
+import com.theta360.sample.livestreaming.ShootingMode;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import org.webrtc.ThetaCodecCapabilityCache.CodecCapabilities;
+import org.webrtc.ThetaCodecCapabilityCache.TypeCapabilities;
 
 /** Factory for android hardware video encoders. */
 @SuppressWarnings("deprecation") // API 16 requires the use of deprecated methods.
@@ -38,10 +45,286 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
   private static final List<String> H264_HW_EXCEPTION_MODELS =
       Arrays.asList("SAMSUNG-SGH-I337", "Nexus 7", "Nexus 4");
 
+  // Bounds of the number of frames queued in the encoder.  The lower bound is what
+  // androidmediaencoder.cc lets in, as it drops frames above MAX_ENCODER_Q_SIZE (2).
+  private static final int DEFAULT_MIN_ENCODER_QUEUE_SIZE = 3;
+  private static final int DEFAULT_MAX_ENCODER_QUEUE_SIZE = 6;
+
+  // Key frame interval with intra refresh.  The refresh keeps the stream decodable, so key frames
+  // are only produced on request.
+  private static final int INTRA_REFRESH_KEY_FRAME_INTERVAL_SEC = 3600;
+
   @Nullable private final EglBase14.Context sharedContext;
   private final boolean enableIntelVp8Encoder;
   private final boolean enableH264HighProfile;
+  private final boolean enableH265;
   @Nullable private final Predicate<MediaCodecInfo> codecAllowedPredicate;
+  private final boolean useAsyncCodecMode;
+  private final int minEncoderQueueSize;
+  private final int maxEncoderQueueSize;
+  private final List<Size> prewarmSizes;
+  @Nullable private final File capabilityCacheFile;
+  @Nullable private final Size targetSize;
+  private final int targetFramerate;
+  @Nullable private final ThetaSimulcastScaler simulcastScaler;
+  private final Map<Integer, Integer> decimatedFramerates;
+  private final int numberOfTemporalLayers;
+  private final int intraRefreshPeriodFrames;
+  private final long keyFrameCoalescingWindowMs;
+  private final long minKeyFrameSpacingMs;
+  private final List<ThetaEncodedFrameSink> encodedFrameSinks;
+  private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
+  private final ThetaAsyncMediaCodecWrapperFactory asyncCodecWrapperFactory;
+  private final int stallFrameIntervals;
+
+  // Capabilities of the encoders on the device, loaded on first use.
+  @Nullable private List<CodecCapabilities> encoderCapabilities;
+  // Encoders selected for the target size, by type.  Guarded by this.
+  private final Map<ThetaVideoCodecMimeType, CodecCapabilities> selectedCodecs =
+      new EnumMap<>(ThetaVideoCodecMimeType.class);
+
+  /** Builder for ThetaHardwareVideoEncoderFactory, for options beyond the constructor ones. */
+  public static class Builder {
+    @Nullable private EglBase.Context sharedContext;
+    private boolean enableIntelVp8Encoder = true;
+    private boolean enableH264HighProfile;
+    @Nullable private Predicate<MediaCodecInfo> codecAllowedPredicate;
+    private boolean useAsyncCodecMode;
+    private int minEncoderQueueSize = DEFAULT_MIN_ENCODER_QUEUE_SIZE;
+    private int maxEncoderQueueSize = DEFAULT_MAX_ENCODER_QUEUE_SIZE;
+    private List<Size> prewarmSizes = Collections.emptyList();
+    @Nullable private File capabilityCacheFile;
+    @Nullable private Size targetSize;
+    private int targetFramerate;
+    private boolean enableH265;
+    private boolean shareSimulcastScaling;
+    private final Map<Integer, Integer> decimatedFramerates = new HashMap<>();
+    private int numberOfTemporalLayers = 1;
+    private int intraRefreshPeriodFrames;
+    private long keyFrameCoalescingWindowMs;
+    private long minKeyFrameSpacingMs;
+    private final List<ThetaEncodedFrameSink> encodedFrameSinks = new ArrayList<>();
+    private MediaCodecWrapperFactory mediaCodecWrapperFactory = new MediaCodecWrapperFactoryImpl();
+    private ThetaAsyncMediaCodecWrapperFactory asyncCodecWrapperFactory =
+        ThetaAsyncMediaCodecWrapperImpl::createByCodecName;
+    private int stallFrameIntervals;
+
+    private Builder() {}
+
+    /**
+     * The textures generated will be accessible from this context. May be null, this disables
+     * texture support.
+     */
+    public Builder setSharedContext(@Nullable EglBase.Context sharedContext) {
+      this.sharedContext = sharedContext;
+      return this;
+    }
+
+    public Builder setEnableIntelVp8Encoder(boolean enableIntelVp8Encoder) {
+      this.enableIntelVp8Encoder = enableIntelVp8Encoder;
+      return this;
+    }
+
+    public Builder setEnableH264HighProfile(boolean enableH264HighProfile) {
+      this.enableH264HighProfile = enableH264HighProfile;
+      return this;
+    }
+
+    /**
+     * Offers H265 from getSupportedCodecs() when a hardware HEVC encoder exists.  Only useful with
+     * a libwebrtc and signaling server that negotiate H265; disabled by default.
+     */
+    public Builder setEnableH265(boolean enableH265) {
+      this.enableH265 = enableH265;
+      return this;
+    }
+
+    /** Optional predicate to filter codecs. All codecs are allowed when not provided. */
+    public Builder setCodecAllowedPredicate(
+        @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+      this.codecAllowedPredicate = codecAllowedPredicate;
+      return this;
+    }
+
+    /**
+     * Runs the encoders' MediaCodec in asynchronous mode. Encoded output is then delivered from
+     * MediaCodec callbacks on a looper thread instead of being polled with dequeueOutputBuffer().
+     * Requires API level 23.
+     */
+    public Builder setUseAsyncCodecMode(boolean useAsyncCodecMode) {
+      this.useAsyncCodecMode = useAsyncCodecMode;
+      return this;
+    }
+
+    /**
+     * Bounds of the number of frames queued in the encoder.  Within these bounds the queue size
+     * follows the measured codec turnaround, so that a codec with a long pipeline at high
+     * resolutions holds more frames instead of dropping them.
+     */
+    public Builder setEncoderQueueSizeBounds(int minEncoderQueueSize, int maxEncoderQueueSize) {
+      this.minEncoderQueueSize = minEncoderQueueSize;
+      this.maxEncoderQueueSize = maxEncoderQueueSize;
+      return this;
+    }
+
+    /**
+     * Shooting modes the encoders may switch to.  Encoders keep codecs configured for the other
+     * modes' resolutions, at most two, and release replaced codecs in the background, so that a
+     * switch does not stall the encode thread.  Each prewarmed codec holds a hardware codec
+     * instance.  Not supported in asynchronous codec mode.
+     */
+    public Builder setPrewarmShootingModes(ShootingMode... shootingModes) {
+      List<Size> sizes = new ArrayList<>();
+      for (ShootingMode shootingMode : shootingModes) {
+        Size size = new Size(shootingMode.getWidth(), shootingMode.getHeight());
+        if (!sizes.contains(size)) {
+          sizes.add(size);
+        }
+      }
+      this.prewarmSizes = sizes;
+      return this;
+    }
+
+    /**
+     * File in which the capabilities of the device's encoders are kept between runs, so that the
+     * codec list is only walked once per system build.  The capabilities are always kept in memory
+     * for the lifetime of the process.  Not used with a codec allowed predicate, which needs the
+     * live MediaCodecInfo.
+     */
+    public Builder setCapabilityCacheFile(@Nullable File capabilityCacheFile) {
+      this.capabilityCacheFile = capabilityCacheFile;
+      return this;
+    }
+
+    /**
+     * Shooting mode and frame rate the encoders are mostly used for.  When several encoders support
+     * a codec type, the one with the most frame rate headroom at this resolution is used instead of
+     * the first one.  The frame rates measured by {@link #calibrate} are used where available,
+     * otherwise the advertised ones; no calibration runs while creating encoders.
+     */
+    public Builder setTargetShootingMode(ShootingMode shootingMode, int framerate) {
+      this.targetSize = new Size(shootingMode.getWidth(), shootingMode.getHeight());
+      this.targetFramerate = framerate;
+      return this;
+    }
+
+    /**
+     * Downscales texture frames once for all encoders created by the factory, for use as the
+     * primary factory of a SimulcastVideoEncoderFactory.  The capture texture is rendered into a
+     * chain of layer resolutions on a context sharing the shared context, and each layer encoder
+     * draws its level instead of sampling the full-size texture.  Requires a shared context; all
+     * encoders of the factory must encode the same stream.
+     */
+    public Builder setShareSimulcastScaling(boolean shareSimulcastScaling) {
+      this.shareSimulcastScaling = shareSimulcastScaling;
+      return this;
+    }
+
+    /**
+     * Encodes streams whose maximum frame rate is |advertisedMaxFramerate| at |actualFramerate|
+     * instead, dropping frames before they reach the codec.  For simulcast layers whose sender
+     * encoding advertises a higher frame rate than wanted, so that bandwidth estimation still
+     * allocates them enough bitrate.
+     */
+    public Builder setDecimatedFramerate(int advertisedMaxFramerate, int actualFramerate) {
+      if (actualFramerate < 1 || actualFramerate > advertisedMaxFramerate) {
+        throw new IllegalArgumentException("Invalid actual frame rate " + actualFramerate
+            + " for maximum frame rate " + advertisedMaxFramerate);
+      }
+      decimatedFramerates.put(advertisedMaxFramerate, actualFramerate);
+      return this;
+    }
+
+    /**
+     * Number of temporal layers to encode, 1 to 3.  Codecs that support the "ts-schema" format key
+     * encode an L1T2 or L1T3 pattern; the temporal index of each frame is delivered in its
+     * ThetaCodecSpecificInfo.  Codecs that ignore the schema do not layer H.264, VP8 or VP9
+     * frames, which then have no temporal index; H.265 frames are indexed from the bitstream.
+     */
+    public Builder setNumberOfTemporalLayers(int numberOfTemporalLayers) {
+      if (numberOfTemporalLayers < 1 || numberOfTemporalLayers > 3) {
+        throw new IllegalArgumentException(
+            "Invalid number of temporal layers: " + numberOfTemporalLayers);
+      }
+      this.numberOfTemporalLayers = numberOfTemporalLayers;
+      return this;
+    }
+
+    /**
+     * Refreshes the picture with intra blocks spread over |intraRefreshPeriodFrames| frames instead
+     * of periodic key frames, which keeps frame sizes flat.  Key frames are then only encoded when
+     * requested, e.g. on PLI or FIR.  Codecs without FEATURE_IntraRefresh keep periodic key frames.
+     * 0 disables intra refresh.  Requires API level 24.
+     */
+    public Builder setIntraRefreshPeriodFrames(int intraRefreshPeriodFrames) {
+      if (intraRefreshPeriodFrames < 0) {
+        throw new IllegalArgumentException(
+            "Invalid intra refresh period: " + intraRefreshPeriodFrames);
+      }
+      this.intraRefreshPeriodFrames = intraRefreshPeriodFrames;
+      return this;
+    }
+
+    /**
+     * Limits the key frames produced for key frame requests (PLI, FIR).  Requests within
+     * |coalescingWindowMs| after a key frame are answered by it, and key frames for requests are
+     * at least |minKeyFrameSpacingMs| apart.  Both 0 by default, which encodes a key frame for
+     * every request.
+     */
+    public Builder setKeyFrameRequestLimits(long coalescingWindowMs, long minKeyFrameSpacingMs) {
+      if (coalescingWindowMs < 0 || minKeyFrameSpacingMs < 0) {
+        throw new IllegalArgumentException("Invalid key frame request limits: "
+            + coalescingWindowMs + " ms, " + minKeyFrameSpacingMs + " ms");
+      }
+      this.keyFrameCoalescingWindowMs = coalescingWindowMs;
+      this.minKeyFrameSpacingMs = minKeyFrameSpacingMs;
+      return this;
+    }
+
+    /**
+     * Passes the output of the encoders to |encodedFrameSink| as well, e.g., to record it locally
+     * while streaming.  The sink chooses the encoders it receives.  May be called more than once.
+     */
+    public Builder addEncodedFrameSink(ThetaEncodedFrameSink encodedFrameSink) {
+      encodedFrameSinks.add(encodedFrameSink);
+      return this;
+    }
+
+    /**
+     * Recreates the codec of an encoder that produced no output for |stallFrameIntervals| frame
+     * intervals while frames were inside it.  The stream then resumes with a key frame instead of
+     * freezing.  0, the default, disables the watchdog.
+     */
+    public Builder setStallWatchdog(int stallFrameIntervals) {
+      if (stallFrameIntervals < 0) {
+        throw new IllegalArgumentException("Invalid stall frame intervals: " + stallFrameIntervals);
+      }
+      this.stallFrameIntervals = stallFrameIntervals;
+      return this;
+    }
+
+    // Visible for testing.  Creates the codecs of the encoders in synchronous mode, so that a fake
+    // codec can be driven off-device.
+    Builder setMediaCodecWrapperFactory(MediaCodecWrapperFactory mediaCodecWrapperFactory) {
+      this.mediaCodecWrapperFactory = mediaCodecWrapperFactory;
+      return this;
+    }
+
+    // Visible for testing.  Creates the codecs of the encoders in asynchronous mode.
+    Builder setAsyncMediaCodecWrapperFactory(
+        ThetaAsyncMediaCodecWrapperFactory asyncCodecWrapperFactory) {
+      this.asyncCodecWrapperFactory = asyncCodecWrapperFactory;
+      return this;
+    }
+
+    public ThetaHardwareVideoEncoderFactory createVideoEncoderFactory() {
+      return new ThetaHardwareVideoEncoderFactory(this);
+    }
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
 
   /**
    * Creates a HardwareVideoEncoderFactory that supports surface texture encoding.
@@ -69,16 +352,51 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
    */
   public ThetaHardwareVideoEncoderFactory(EglBase.Context sharedContext, boolean enableIntelVp8Encoder,
       boolean enableH264HighProfile, @Nullable Predicate<MediaCodecInfo> codecAllowedPredicate) {
+    this(builder()
+             .setSharedContext(sharedContext)
+             .setEnableIntelVp8Encoder(enableIntelVp8Encoder)
+             .setEnableH264HighProfile(enableH264HighProfile)
+             .setCodecAllowedPredicate(codecAllowedPredicate));
+  }
+
+  private ThetaHardwareVideoEncoderFactory(Builder builder) {
     // Texture mode requires EglBase14.
-    if (sharedContext instanceof EglBase14.Context) {
-      this.sharedContext = (EglBase14.Context) sharedContext;
+    if (builder.sharedContext instanceof EglBase14.Context) {
+      this.sharedContext = (EglBase14.Context) builder.sharedContext;
     } else {
       Logging.w(TAG, "No shared EglBase.Context.  Encoders will not use texture mode.");
       this.sharedContext = null;
     }
-    this.enableIntelVp8Encoder = enableIntelVp8Encoder;
-    this.enableH264HighProfile = enableH264HighProfile;
-    this.codecAllowedPredicate = codecAllowedPredicate;
+    this.enableIntelVp8Encoder = builder.enableIntelVp8Encoder;
+    this.enableH264HighProfile = builder.enableH264HighProfile;
+    this.enableH265 = builder.enableH265;
+    this.codecAllowedPredicate = builder.codecAllowedPredicate;
+    if (builder.useAsyncCodecMode && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      Logging.w(TAG, "Asynchronous codec mode requires API level 23.  Using synchronous mode.");
+      this.useAsyncCodecMode = false;
+    } else {
+      this.useAsyncCodecMode = builder.useAsyncCodecMode;
+    }
+    this.minEncoderQueueSize = builder.minEncoderQueueSize;
+    this.maxEncoderQueueSize = builder.maxEncoderQueueSize;
+    this.prewarmSizes = builder.prewarmSizes;
+    this.capabilityCacheFile = builder.capabilityCacheFile;
+    this.targetSize = builder.targetSize;
+    this.targetFramerate = builder.targetFramerate;
+    this.decimatedFramerates = new HashMap<>(builder.decimatedFramerates);
+    this.numberOfTemporalLayers = builder.numberOfTemporalLayers;
+    this.intraRefreshPeriodFrames = builder.intraRefreshPeriodFrames;
+    this.keyFrameCoalescingWindowMs = builder.keyFrameCoalescingWindowMs;
+    this.minKeyFrameSpacingMs = builder.minKeyFrameSpacingMs;
+    this.encodedFrameSinks = new ArrayList<>(builder.encodedFrameSinks);
+    this.mediaCodecWrapperFactory = builder.mediaCodecWrapperFactory;
+    this.asyncCodecWrapperFactory = builder.asyncCodecWrapperFactory;
+    this.stallFrameIntervals = builder.stallFrameIntervals;
+    if (builder.shareSimulcastScaling && this.sharedContext != null) {
+      this.simulcastScaler = new ThetaSimulcastScaler(this.sharedContext);
+    } else {
+      this.simulcastScaler = null;
+    }
   }
 
   @Deprecated
@@ -89,30 +407,42 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
   @Nullable
   @Override
   public VideoEncoder createEncoder(VideoCodecInfo input) {
+    return createEncoder(input, false /* isTile */);
+  }
+
+  // Tile encoders encode a crop of the frame, so they get none of the hooks set up for the
+  // encoders of the stream: shared simulcast scaling, frame decimation, encoded frame sinks and
+  // codecs prewarmed for other shooting modes.
+  @Nullable
+  private VideoEncoder createEncoder(VideoCodecInfo input, boolean isTile) {
     // HW encoding is not supported below Android Kitkat.
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
       return null;
     }
 
-    VideoCodecType type = VideoCodecType.valueOf(input.name);
-    MediaCodecInfo info = findCodecForType(type);
+    ThetaVideoCodecMimeType type = ThetaVideoCodecMimeType.valueOf(input.name);
+    if (type == ThetaVideoCodecMimeType.H265 && !enableH265) {
+      return null;
+    }
+    CodecCapabilities info = findCodecForType(type);
 
     if (info == null) {
       return null;
     }
 
-    String codecName = info.getName();
-    String mime = type.mimeType();
-    Integer surfaceColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getCapabilitiesForType(mime));
-    Integer yuvColorFormat = MediaCodecUtils.selectColorFormat(
-        MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(mime));
+    String codecName = info.name;
+    TypeCapabilities typeCapabilities = info.getTypeCapabilities(type.mimeType());
+    Integer surfaceColorFormat =
+        typeCapabilities.selectColorFormat(MediaCodecUtils.TEXTURE_COLOR_FORMATS);
+    Integer yuvColorFormat =
+        typeCapabilities.selectColorFormat(MediaCodecUtils.ENCODER_COLOR_FORMATS);
 
-    if (type == VideoCodecType.H264) {
+    int avcMaxLevel = 0;
+    if (type == ThetaVideoCodecMimeType.H264) {
       boolean isHighProfile = H264Utils.isSameH264Profile(
-          input.params, MediaCodecUtils.getCodecProperties(type, /* highProfile= */ true));
+          input.params, getCodecProperties(type, /* highProfile= */ true));
       boolean isBaselineProfile = H264Utils.isSameH264Profile(
-          input.params, MediaCodecUtils.getCodecProperties(type, /* highProfile= */ false));
+          input.params, getCodecProperties(type, /* highProfile= */ false));
 
       if (!isHighProfile && !isBaselineProfile) {
         return null;
@@ -120,12 +450,170 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
       if (isHighProfile && !isH264HighProfileSupported(info)) {
         return null;
       }
+      avcMaxLevel = getAvcMaxLevel(typeCapabilities, isHighProfile);
+      if (targetSize != null && avcMaxLevel > 0
+          && ThetaAvcLevels.select(targetSize.width, targetSize.height, targetFramerate,
+                 0 /* bitrateBps */, isHighProfile, Integer.MAX_VALUE) > avcMaxLevel) {
+        Logging.w(TAG, codecName + " does not support the level of " + targetSize.width + "x"
+            + targetSize.height + " at " + targetFramerate + " fps");
+      }
+    }
+
+    int keyFrameIntervalSec = getKeyFrameIntervalSec(type);
+    int forcedKeyFrameIntervalMs = getForcedKeyFrameIntervalMs(type, codecName);
+    int codecIntraRefreshPeriodFrames = 0;
+    if (intraRefreshPeriodFrames > 0) {
+      if (typeCapabilities.intraRefreshSupported) {
+        codecIntraRefreshPeriodFrames = intraRefreshPeriodFrames;
+        keyFrameIntervalSec = INTRA_REFRESH_KEY_FRAME_INTERVAL_SEC;
+        // The refresh also clears the distortions forced key frames work around.
+        forcedKeyFrameIntervalMs = 0;
+      } else {
+        Logging.w(TAG, codecName + " does not support intra refresh, using key frames");
+      }
     }
 
-    return new ThetaHardwareVideoEncoder(new MediaCodecWrapperFactoryImpl(), codecName, type,
-        surfaceColorFormat, yuvColorFormat, input.params, getKeyFrameIntervalSec(type),
-        getForcedKeyFrameIntervalMs(type, codecName), createBitrateAdjuster(type, codecName),
-        sharedContext);
+    return new ThetaHardwareVideoEncoder(mediaCodecWrapperFactory, asyncCodecWrapperFactory,
+        codecName, type, surfaceColorFormat, yuvColorFormat, input.params, avcMaxLevel,
+        keyFrameIntervalSec,
+        new ThetaKeyFrameScheduler(
+            keyFrameCoalescingWindowMs, minKeyFrameSpacingMs, forcedKeyFrameIntervalMs),
+        createBitrateAdjuster(type, codecName),
+        new ThetaEncoderQueueController(minEncoderQueueSize, maxEncoderQueueSize), sharedContext,
+        useAsyncCodecMode, isTile ? Collections.<Size>emptyList() : prewarmSizes,
+        isTile ? null : simulcastScaler,
+        isTile ? Collections.<Integer, Integer>emptyMap() : decimatedFramerates,
+        numberOfTemporalLayers, codecIntraRefreshPeriodFrames,
+        isTile ? Collections.<ThetaEncodedFrameSink>emptyList() : encodedFrameSinks,
+        stallFrameIntervals);
+  }
+
+  /**
+   * Creates an encoder that splits frames into |tileCount| tiles, each encoded on a separate
+   * instance of the hardware codec.  The tile count is limited to the number of codec instances
+   * the device supports.  Returns null if the codec is not supported.  The tiles do not use the
+   * simulcast scaling, decimated frame rates, encoded frame sinks or prewarmed shooting modes of
+   * the factory.
+   */
+  @Nullable
+  public ThetaTiledVideoEncoder createTiledEncoder(
+      VideoCodecInfo input, int tileCount, ThetaTiledVideoEncoder.TileLayout layout) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+      Logging.w(TAG, "Tiled encoding requires API level 23");
+      return null;
+    }
+    if (tileCount < 1) {
+      throw new IllegalArgumentException("Invalid tile count: " + tileCount);
+    }
+
+    ThetaVideoCodecMimeType type = ThetaVideoCodecMimeType.valueOf(input.name);
+    CodecCapabilities info = findCodecForType(type);
+    if (info == null) {
+      return null;
+    }
+    int maxInstances = info.getTypeCapabilities(type.mimeType()).maxSupportedInstances;
+    if (tileCount > maxInstances) {
+      Logging.w(TAG,
+          info.name + " supports " + maxInstances + " instances, requested " + tileCount
+              + " tiles");
+      tileCount = maxInstances;
+    }
+
+    VideoEncoder[] tileEncoders = new VideoEncoder[tileCount];
+    for (int i = 0; i < tileCount; ++i) {
+      tileEncoders[i] = createEncoder(input, true /* isTile */);
+      if (tileEncoders[i] == null) {
+        return null;
+      }
+    }
+    return new ThetaTiledVideoEncoder(tileEncoders, layout);
+  }
+
+  /**
+   * Measures the frame rate each encoder sustains at |shootingMode|, for the codec types the
+   * factory offers with more than one encoder, unless measured before.  The measurements are kept
+   * in the capability cache, shared by the factories of the process and saved to the capability
+   * cache file, and used by the factories whose target shooting mode matches.
+   *
+   * Encodes synthetic frames for up to a few seconds per encoder, so call it on a background
+   * thread ahead of the stream, e.g. when the activity is created.  The calibration encoders run
+   * at the full size and compete with the stream's, so interrupt the thread before the stream
+   * starts: calibration then returns promptly, keeping the measurements completed so far.
+   */
+  public void calibrate(ShootingMode shootingMode, int framerate) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return;
+    }
+    final int width = shootingMode.getWidth();
+    final int height = shootingMode.getHeight();
+    boolean measured = false;
+    for (ThetaVideoCodecMimeType type : ThetaVideoCodecMimeType.values()) {
+      if (type == ThetaVideoCodecMimeType.H265 && !enableH265) {
+        continue;
+      }
+      List<CodecCapabilities> candidates = new ArrayList<>();
+      for (CodecCapabilities info : getEncoderCapabilities()) {
+        if (isSupportedCodec(info, type)) {
+          candidates.add(info);
+        }
+      }
+      if (candidates.size() < 2) {
+        continue;
+      }
+      final String mime = type.mimeType();
+      for (CodecCapabilities candidate : candidates) {
+        if (Thread.currentThread().isInterrupted()) {
+          break;
+        }
+        TypeCapabilities typeCapabilities = candidate.getTypeCapabilities(mime);
+        if (typeCapabilities.getMeasuredFrameRate(width, height) != null) {
+          continue;
+        }
+        Double measuredFramerate = ThetaEncoderCalibration.measureFrameRate(candidate.name, mime,
+            typeCapabilities.selectColorFormat(MediaCodecUtils.ENCODER_COLOR_FORMATS), width,
+            height, framerate);
+        if (measuredFramerate != null) {
+          typeCapabilities.setMeasuredFrameRate(width, height, measuredFramerate);
+          measured = true;
+        }
+      }
+    }
+    if (measured && codecAllowedPredicate == null) {
+      ThetaCodecCapabilityCache.saveEncoders(capabilityCacheFile);
+    }
+  }
+
+  /**
+   * Returns the highest frame rate an encoder of |codecName| (e.g. "H264") sustains at |width| x
+   * |height|, as measured by calibration where the capability cache has a measurement, otherwise
+   * as advertised by the codec.  Returns 0 if no encoder supports the codec or the rate is
+   * unknown.  Does not run a calibration itself.
+   */
+  public double getSustainableFramerate(String codecName, int width, int height) {
+    final ThetaVideoCodecMimeType type;
+    try {
+      type = ThetaVideoCodecMimeType.valueOf(codecName);
+    } catch (IllegalArgumentException e) {
+      return 0;
+    }
+    if (type == ThetaVideoCodecMimeType.H265 && !enableH265) {
+      return 0;
+    }
+    double best = 0;
+    for (CodecCapabilities info : getEncoderCapabilities()) {
+      if (!isSupportedCodec(info, type)) {
+        continue;
+      }
+      TypeCapabilities typeCapabilities = info.getTypeCapabilities(type.mimeType());
+      Double framerate = typeCapabilities.getMeasuredFrameRate(width, height);
+      if (framerate == null) {
+        framerate = typeCapabilities.getMaxAchievableFrameRate(width, height);
+      }
+      if (framerate != null) {
+        best = Math.max(best, framerate);
+      }
+    }
+    return best;
   }
 
   @Override
@@ -137,64 +625,108 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
 
     List<VideoCodecInfo> supportedCodecInfos = new ArrayList<VideoCodecInfo>();
     // Generate a list of supported codecs in order of preference:
-    // VP8, VP9, H264 (high profile), and H264 (baseline profile).
-    for (VideoCodecType type :
-        new VideoCodecType[] {VideoCodecType.VP8, VideoCodecType.VP9, VideoCodecType.H264}) {
-      MediaCodecInfo codec = findCodecForType(type);
+    // VP8, VP9, H264 (high profile), H264 (baseline profile) and H265.
+    for (ThetaVideoCodecMimeType type : new ThetaVideoCodecMimeType[] {ThetaVideoCodecMimeType.VP8,
+             ThetaVideoCodecMimeType.VP9, ThetaVideoCodecMimeType.H264,
+             ThetaVideoCodecMimeType.H265}) {
+      if (type == ThetaVideoCodecMimeType.H265 && !enableH265) {
+        continue;
+      }
+      CodecCapabilities codec = findCodecForType(type);
       if (codec != null) {
         String name = type.name();
         // TODO(sakal): Always add H264 HP once WebRTC correctly removes codecs that are not
         // supported by the decoder.
-        if (type == VideoCodecType.H264 && isH264HighProfileSupported(codec)) {
+        if (type == ThetaVideoCodecMimeType.H264 && isH264HighProfileSupported(codec)) {
           supportedCodecInfos.add(new VideoCodecInfo(
-              name, MediaCodecUtils.getCodecProperties(type, /* highProfile= */ true)));
+              name, getCodecProperties(type, /* highProfile= */ true)));
         }
 
         supportedCodecInfos.add(new VideoCodecInfo(
-            name, MediaCodecUtils.getCodecProperties(type, /* highProfile= */ false)));
+            name, getCodecProperties(type, /* highProfile= */ false)));
       }
     }
 
     return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
   }
 
-  private @Nullable MediaCodecInfo findCodecForType(VideoCodecType type) {
-    for (int i = 0; i < MediaCodecList.getCodecCount(); ++i) {
-      MediaCodecInfo info = null;
-      try {
-        info = MediaCodecList.getCodecInfoAt(i);
-      } catch (IllegalArgumentException e) {
-        Logging.e(TAG, "Cannot retrieve encoder codec info", e);
+  private @Nullable CodecCapabilities findCodecForType(ThetaVideoCodecMimeType type) {
+    List<CodecCapabilities> candidates = new ArrayList<>();
+    for (CodecCapabilities info : getEncoderCapabilities()) {
+      if (isSupportedCodec(info, type)) {
+        candidates.add(info);
       }
+    }
+    if (candidates.isEmpty()) {
+      return null; // No support for this type.
+    }
+    if (targetSize == null || candidates.size() == 1) {
+      return candidates.get(0);
+    }
+    return selectCodecForTarget(type, candidates);
+  }
 
-      if (info == null || !info.isEncoder()) {
-        continue;
+  // Returns the candidate with the highest frame rate at the target size, preferring measured
+  // frame rates over the advertised ones.  Ties go to the earlier candidate.
+  private synchronized CodecCapabilities selectCodecForTarget(
+      ThetaVideoCodecMimeType type, List<CodecCapabilities> candidates) {
+    CodecCapabilities selected = selectedCodecs.get(type);
+    if (selected != null) {
+      return selected;
+    }
+    final String mime = type.mimeType();
+    double selectedFramerate = -1;
+    for (CodecCapabilities candidate : candidates) {
+      TypeCapabilities typeCapabilities = candidate.getTypeCapabilities(mime);
+      Double framerate = typeCapabilities.getMeasuredFrameRate(targetSize.width, targetSize.height);
+      if (framerate == null) {
+        framerate = typeCapabilities.getMaxAchievableFrameRate(targetSize.width, targetSize.height);
       }
-
-      if (isSupportedCodec(info, type)) {
-        return info;
+      Logging.d(TAG,
+          candidate.name + " " + targetSize.width + "x" + targetSize.height + ": " + framerate
+              + " fps, target " + targetFramerate + " fps");
+      if (framerate != null && framerate > selectedFramerate) {
+        selected = candidate;
+        selectedFramerate = framerate;
       }
     }
-    return null; // No support for this type.
+    if (selected == null) {
+      selected = candidates.get(0);
+    } else if (selectedFramerate < targetFramerate) {
+      Logging.w(TAG, "No " + type + " encoder reaches " + targetFramerate + " fps, using "
+          + selected.name);
+    }
+    selectedCodecs.put(type, selected);
+    return selected;
   }
 
-  // Returns true if the given MediaCodecInfo indicates a supported encoder for the given type.
-  private boolean isSupportedCodec(MediaCodecInfo info, VideoCodecType type) {
-    if (!MediaCodecUtils.codecSupportsType(info, type)) {
+  private synchronized List<CodecCapabilities> getEncoderCapabilities() {
+    if (encoderCapabilities == null) {
+      // The predicate needs the live MediaCodecInfo, so a filtered list is never shared.
+      encoderCapabilities = codecAllowedPredicate != null
+          ? ThetaCodecCapabilityCache.build(codecAllowedPredicate)
+          : ThetaCodecCapabilityCache.getEncoders(capabilityCacheFile);
+    }
+    return encoderCapabilities;
+  }
+
+  // Returns true if the given capabilities indicate a supported encoder for the given type.
+  private boolean isSupportedCodec(CodecCapabilities info, ThetaVideoCodecMimeType type) {
+    TypeCapabilities typeCapabilities = info.getTypeCapabilities(type.mimeType());
+    if (typeCapabilities == null) {
       return false;
     }
     // Check for a supported color format.
-    if (MediaCodecUtils.selectColorFormat(
-            MediaCodecUtils.ENCODER_COLOR_FORMATS, info.getCapabilitiesForType(type.mimeType()))
-        == null) {
+    if (typeCapabilities.selectColorFormat(MediaCodecUtils.ENCODER_COLOR_FORMATS) == null) {
       return false;
     }
-    return isHardwareSupportedInCurrentSdk(info, type) && isMediaCodecAllowed(info);
+    return isHardwareSupportedInCurrentSdk(info, type);
   }
 
-  // Returns true if the given MediaCodecInfo indicates a hardware module that is supported on the
+  // Returns true if the given codec is a hardware module that is supported on the
   // current SDK.
-  private boolean isHardwareSupportedInCurrentSdk(MediaCodecInfo info, VideoCodecType type) {
+  private boolean isHardwareSupportedInCurrentSdk(
+      CodecCapabilities info, ThetaVideoCodecMimeType type) {
     switch (type) {
       case VP8:
         return isHardwareSupportedInCurrentSdkVp8(info);
@@ -202,12 +734,14 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
         return isHardwareSupportedInCurrentSdkVp9(info);
       case H264:
         return isHardwareSupportedInCurrentSdkH264(info);
+      case H265:
+        return isHardwareSupportedInCurrentSdkH265(info);
     }
     return false;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp8(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp8(CodecCapabilities info) {
+    String name = info.name;
     // QCOM Vp8 encoder is supported in KITKAT or later.
     return (name.startsWith(QCOM_PREFIX) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
         // Exynos VP8 encoder is supported in M or later.
@@ -217,19 +751,19 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
                && enableIntelVp8Encoder);
   }
 
-  private boolean isHardwareSupportedInCurrentSdkVp9(MediaCodecInfo info) {
-    String name = info.getName();
+  private boolean isHardwareSupportedInCurrentSdkVp9(CodecCapabilities info) {
+    String name = info.name;
     return (name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX))
         // Both QCOM and Exynos VP9 encoders are supported in N or later.
         && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
   }
 
-  private boolean isHardwareSupportedInCurrentSdkH264(MediaCodecInfo info) {
+  private boolean isHardwareSupportedInCurrentSdkH264(CodecCapabilities info) {
     // First, H264 hardware might perform poorly on this model.
     if (H264_HW_EXCEPTION_MODELS.contains(Build.MODEL)) {
       return false;
     }
-    String name = info.getName();
+    String name = info.name;
     // QCOM H264 encoder is supported in KITKAT or later.
     return (name.startsWith(QCOM_PREFIX) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
         // Exynos H264 encoder is supported in LOLLIPOP or later.
@@ -237,26 +771,27 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
   }
 
-  private boolean isMediaCodecAllowed(MediaCodecInfo info) {
-    if (codecAllowedPredicate == null) {
-      return true;
-    }
-    return codecAllowedPredicate.test(info);
+  private boolean isHardwareSupportedInCurrentSdkH265(CodecCapabilities info) {
+    String name = info.name;
+    return (name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX))
+        // HEVC encoders are exposed through MediaCodec in LOLLIPOP or later.
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
   }
 
-  private int getKeyFrameIntervalSec(VideoCodecType type) {
+  private int getKeyFrameIntervalSec(ThetaVideoCodecMimeType type) {
     switch (type) {
       case VP8: // Fallthrough intended.
       case VP9:
         return 100;
-      case H264:
+      case H264: // Fallthrough intended.
+      case H265:
         return 20;
     }
-    throw new IllegalArgumentException("Unsupported VideoCodecType " + type);
+    throw new IllegalArgumentException("Unsupported ThetaVideoCodecMimeType " + type);
   }
 
-  private int getForcedKeyFrameIntervalMs(VideoCodecType type, String codecName) {
-    if (type == VideoCodecType.VP8 && codecName.startsWith(QCOM_PREFIX)) {
+  private int getForcedKeyFrameIntervalMs(ThetaVideoCodecMimeType type, String codecName) {
+    if (type == ThetaVideoCodecMimeType.VP8 && codecName.startsWith(QCOM_PREFIX)) {
       if (Build.VERSION.SDK_INT == Build.VERSION_CODES.LOLLIPOP
           || Build.VERSION.SDK_INT == Build.VERSION_CODES.LOLLIPOP_MR1) {
         return QCOM_VP8_KEY_FRAME_INTERVAL_ANDROID_L_MS;
@@ -270,13 +805,13 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
     return 0;
   }
 
-  private BitrateAdjuster createBitrateAdjuster(VideoCodecType type, String codecName) {
+  private BitrateAdjuster createBitrateAdjuster(ThetaVideoCodecMimeType type, String codecName) {
     if (codecName.startsWith(EXYNOS_PREFIX)) {
-      if (type == VideoCodecType.VP8) {
+      if (type == ThetaVideoCodecMimeType.VP8) {
         // Exynos VP8 encoders need dynamic bitrate adjustment.
         return new DynamicBitrateAdjuster();
       } else {
-        // Exynos VP9 and H264 encoders need framerate-based bitrate adjustment.
+        // Exynos VP9, H264 and H265 encoders need framerate-based bitrate adjustment.
         return new FramerateBitrateAdjuster();
       }
     }
@@ -284,8 +819,29 @@ public class ThetaHardwareVideoEncoderFactory implements VideoEncoderFactory {
     return new BaseBitrateAdjuster();
   }
 
-  private boolean isH264HighProfileSupported(MediaCodecInfo info) {
+  private static Map<String, String> getCodecProperties(
+      ThetaVideoCodecMimeType type, boolean highProfile) {
+    if (type == ThetaVideoCodecMimeType.H264) {
+      return MediaCodecUtils.getCodecProperties(VideoCodecType.H264, highProfile);
+    }
+    // VP8, VP9 and H265 have no format parameters.
+    return new HashMap<String, String>();
+  }
+
+  // Returns the highest level |typeCapabilities| advertises for the High profile or the Baseline
+  // profiles, or 0 if none.
+  private static int getAvcMaxLevel(TypeCapabilities typeCapabilities, boolean highProfile) {
+    if (highProfile) {
+      return typeCapabilities.getMaxLevel(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+    }
+    return Math.max(
+        typeCapabilities.getMaxLevel(MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline),
+        typeCapabilities.getMaxLevel(
+            MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline));
+  }
+
+  private boolean isH264HighProfileSupported(CodecCapabilities info) {
     return enableH264HighProfile && Build.VERSION.SDK_INT > Build.VERSION_CODES.M
-        && info.getName().startsWith(EXYNOS_PREFIX);
+        && info.name.startsWith(EXYNOS_PREFIX);
   }
 }
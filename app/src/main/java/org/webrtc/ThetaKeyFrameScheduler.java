@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which frames are encoded as key frames, so that bursts of key frame requests, e.g. from
+ * many viewers joining at once, do not turn into back-to-back key frames.
+ *
+ * - Requests arriving within the coalescing window after a key frame are considered answered by
+ *   it, as they were most likely sent before the receiver got that key frame.
+ * - Other requests stay pending until a frame is encoded at least the minimum spacing after the
+ *   previous key frame.  Any number of pending requests produce one key frame.
+ * - Key frames are also forced at a fixed interval if the codec needs it.
+ *
+ * Times are frame timestamps.  Must be used on the encode thread; the counters may be read on any
+ * thread.
+ */
+public class ThetaKeyFrameScheduler {
+  private final long coalescingWindowNs;
+  private final long minKeyFrameSpacingNs;
+  // Interval at which to force a key frame, or 0.
+  private final long forcedKeyFrameIntervalNs;
+
+  private final AtomicLong requestedCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+  private final AtomicLong emittedCount = new AtomicLong();
+
+  // --- Only accessed on the encode thread.
+  // Timestamp of the last key frame, or -1 if the codec has just started and encodes its first
+  // frame as a key frame anyway.
+  private long lastKeyFrameNs = -1;
+  private boolean requestPending;
+
+  ThetaKeyFrameScheduler(
+      long coalescingWindowMs, long minKeyFrameSpacingMs, long forcedKeyFrameIntervalMs) {
+    this.coalescingWindowNs = TimeUnit.MILLISECONDS.toNanos(coalescingWindowMs);
+    this.minKeyFrameSpacingNs = TimeUnit.MILLISECONDS.toNanos(minKeyFrameSpacingMs);
+    this.forcedKeyFrameIntervalNs = TimeUnit.MILLISECONDS.toNanos(forcedKeyFrameIntervalMs);
+  }
+
+  /** Called when a codec is started, which encodes its first frame as a key frame. */
+  void onCodecStarted() {
+    lastKeyFrameNs = -1;
+    requestPending = false;
+  }
+
+  /** Records a key frame request that came with the frame with |timestampNs|. */
+  void onKeyFrameRequested(long timestampNs) {
+    requestedCount.incrementAndGet();
+    if (requestPending
+        || (lastKeyFrameNs >= 0 && timestampNs - lastKeyFrameNs < coalescingWindowNs)) {
+      coalescedCount.incrementAndGet();
+      return;
+    }
+    requestPending = true;
+  }
+
+  /**
+   * Returns true if the frame with |timestampNs|, which is about to be encoded, is to be a key
+   * frame.  The key frame is then counted as emitted.
+   */
+  boolean shouldEncodeKeyFrame(long timestampNs) {
+    final boolean forced = forcedKeyFrameIntervalNs > 0
+        && timestampNs > lastKeyFrameNs + forcedKeyFrameIntervalNs;
+    final boolean requested = requestPending
+        && (lastKeyFrameNs < 0 || timestampNs - lastKeyFrameNs >= minKeyFrameSpacingNs);
+    if (!forced && !requested) {
+      return false;
+    }
+    lastKeyFrameNs = timestampNs;
+    requestPending = false;
+    emittedCount.incrementAndGet();
+    return true;
+  }
+
+  /** Number of key frame requests received. */
+  public long getRequestedCount() {
+    return requestedCount.get();
+  }
+
+  /** Number of requests answered by a key frame requested or emitted before. */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /** Number of key frames requested from the codec, including forced ones. */
+  public long getEmittedCount() {
+    return emittedCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ThetaKeyFrameScheduler{requested " + getRequestedCount() + ", coalesced "
+        + getCoalescedCount() + ", emitted " + getEmittedCount() + "}";
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.support.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the H.264 or H.265 output of one encoder to an MP4 file, without encoding again.
+ *
+ * Frames are copied on the output thread of the encoder and written by a thread of its own, so a
+ * slow storage never holds back the live stream.  At most |maxQueuedFrames| frames and
+ * |maxQueuedBytes| bytes of direct memory wait for the writer, and as much again is kept for reuse.
+ * When the queue is full the frame is dropped, and so are the following frames up to the next key
+ * frame, as they could not be decoded; the recording continues from there.  A sink fed by
+ * {@link ThetaEncodedFrameRing#replay} rather than by an encoder is created to wait for the writer
+ * instead, so that no frame is dropped however long the replay is.
+ *
+ * The first encoder started with the configured size is recorded, until it is released or
+ * {@link #stop} is called.  The file is complete once the writer has finished, which
+ * {@link #stop} waits for; releasing the encoder only ends the recording.
+ */
+public class ThetaMp4RecordingSink implements ThetaEncodedFrameSink {
+  private static final String TAG = "ThetaMp4RecordingSink";
+
+  private static final long WRITER_JOIN_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+  // Item of the writer queue.  Holds either an output format, a frame, or neither to finish.
+  private static class Item {
+    @Nullable final MediaFormat format;
+    @Nullable final ThetaDirectBufferPool.Lease frame;
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    Item(@Nullable MediaFormat format, @Nullable ThetaDirectBufferPool.Lease frame) {
+      this.format = format;
+      this.frame = frame;
+    }
+  }
+
+  private final File outputFile;
+  private final int width;
+  private final int height;
+  private final int maxQueuedFrames;
+  private final int maxQueuedBytes;
+  private final boolean waitForWriter;
+  private final ThetaDirectBufferPool framePool;
+  // Unbounded, so that formats and the end are never refused; frames are bounded by queuedFrames
+  // and queuedBytes.
+  private final LinkedBlockingQueue<Item> queue = new LinkedBlockingQueue<>();
+  private final AtomicLong writtenFrameCount = new AtomicLong();
+  private final AtomicLong droppedFrameCount = new AtomicLong();
+
+  // Set by the writer when the muxer could not be started; later frames are dropped uncopied.
+  private volatile boolean muxerFailed;
+
+  // --- Guarded by queueLock.
+  private final Object queueLock = new Object();
+  private int queuedFrames;
+  private long queuedBytes;
+  // Set once the writer has exited, so that nothing waits for it any more.
+  private boolean writerDone;
+
+  // --- Guarded by this.
+  @Nullable private Thread writerThread;
+  // Whether the recording was ended, and the end item posted if the writer was started.
+  private boolean finished;
+
+  // --- Only accessed on the output thread of the recorded encoder.
+  // Whether frames are dropped until the next key frame, as at the start of the recording.
+  private boolean waitingForKeyFrame = true;
+
+  /**
+   * @param outputFile MP4 file to write
+   * @param width width of the encoder to record
+   * @param height height of the encoder to record
+   * @param maxQueuedFrames frames that may wait for the writer before frames are dropped
+   */
+  public ThetaMp4RecordingSink(File outputFile, int width, int height, int maxQueuedFrames) {
+    this(outputFile, width, height, maxQueuedFrames, DEFAULT_MAX_QUEUED_BYTES,
+        false /* waitForWriter */);
+  }
+
+  /**
+   * @param outputFile MP4 file to write
+   * @param width width of the encoder to record
+   * @param height height of the encoder to record
+   * @param maxQueuedFrames frames that may wait for the writer
+   * @param maxQueuedBytes direct memory the frames waiting for the writer may take.  A single frame
+   *     is queued even if larger.
+   * @param waitForWriter whether a full queue blocks the caller until the writer catches up, rather
+   *     than dropping frames.  Only for sinks not attached to an encoder.
+   */
+  public ThetaMp4RecordingSink(File outputFile, int width, int height, int maxQueuedFrames,
+      int maxQueuedBytes, boolean waitForWriter) {
+    if (maxQueuedFrames < 1 || maxQueuedBytes < 1) {
+      throw new IllegalArgumentException(
+          "Invalid queue size: " + maxQueuedFrames + " frames, " + maxQueuedBytes + " bytes");
+    }
+    this.outputFile = outputFile;
+    this.width = width;
+    this.height = height;
+    this.maxQueuedFrames = maxQueuedFrames;
+    this.maxQueuedBytes = maxQueuedBytes;
+    this.waitForWriter = waitForWriter;
+    this.framePool = new ThetaDirectBufferPool(maxQueuedFrames, maxQueuedBytes);
+  }
+
+  @Override
+  public synchronized boolean onEncoderStarted(String mimeType, int width, int height) {
+    if (writerThread != null || finished || width != this.width || height != this.height
+        || !(MediaFormat.MIMETYPE_VIDEO_AVC.equals(mimeType)
+               || MediaFormat.MIMETYPE_VIDEO_HEVC.equals(mimeType))) {
+      return false;
+    }
+    Logging.d(TAG, "Recording " + mimeType + " " + width + "x" + height + " to " + outputFile);
+    writerThread = new Thread(this::runWriter, TAG);
+    writerThread.start();
+    return true;
+  }
+
+  @Override
+  public void onOutputFormat(MediaFormat format) {
+    queue.offer(new Item(format, null /* frame */));
+  }
+
+  @Override
+  public void onEncodedFrame(
+      ByteBuffer frame, MediaCodec.BufferInfo info, @Nullable ThetaNalUnitIndex nalUnits) {
+    if (muxerFailed) {
+      droppedFrameCount.incrementAndGet();
+      return;
+    }
+    final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    if (waitingForKeyFrame && !isKeyFrame) {
+      droppedFrameCount.incrementAndGet();
+      return;
+    }
+    final ThetaDirectBufferPool.Lease lease = framePool.acquire(frame.remaining());
+    if (!reserveQueueSpace(lease.getAllocatedBytes())) {
+      framePool.recycle(lease);
+      droppedFrameCount.incrementAndGet();
+      waitingForKeyFrame = true;
+      return;
+    }
+    waitingForKeyFrame = false;
+
+    lease.buffer.put(frame.duplicate());
+    lease.buffer.rewind();
+    final Item item = new Item(null /* format */, lease);
+    item.info.set(0, lease.buffer.capacity(), info.presentationTimeUs, info.flags);
+    queue.offer(item);
+  }
+
+  @Override
+  public void onEncoderStopped() {
+    // Called on the encode thread, which must not wait for the storage.
+    finish();
+  }
+
+  /**
+   * Ends the recording and waits for the writer to complete the file.  Frames still queued are
+   * written first.
+   */
+  public void stop() {
+    final Thread thread;
+    synchronized (this) {
+      finish();
+      thread = writerThread;
+    }
+    if (thread != null && !ThreadUtils.joinUninterruptibly(thread, WRITER_JOIN_TIMEOUT_MS)) {
+      Logging.e(TAG, "Writer did not finish " + outputFile);
+    }
+  }
+
+  /** Number of frames written to the file. */
+  public long getWrittenFrameCount() {
+    return writtenFrameCount.get();
+  }
+
+  /** Number of frames dropped because the writer fell behind, or waiting for a key frame. */
+  public long getDroppedFrameCount() {
+    return droppedFrameCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "ThetaMp4RecordingSink{" + outputFile + ", written " + getWrittenFrameCount()
+        + ", dropped " + getDroppedFrameCount() + "}";
+  }
+
+  private void runWriter() {
+    MediaMuxer muxer = null;
+    int track = -1;
+    try {
+      while (true) {
+        final Item item = takeItem();
+        if (item.format != null) {
+          if (muxer != null) {
+            // An MP4 track cannot change its format.
+            Logging.w(TAG, "Ignoring output format change: " + item.format);
+            continue;
+          }
+          try {
+            muxer = new MediaMuxer(
+                outputFile.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            track = muxer.addTrack(item.format);
+            muxer.start();
+          } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Logging.e(TAG, "Cannot start recording to " + outputFile, e);
+            if (muxer != null) {
+              muxer.release();
+              muxer = null;
+            }
+            muxerFailed = true;
+          }
+        } else if (item.frame != null) {
+          if (muxer != null && track >= 0) {
+            try {
+              muxer.writeSampleData(track, item.frame.buffer, item.info);
+              writtenFrameCount.incrementAndGet();
+            } catch (IllegalArgumentException | IllegalStateException e) {
+              Logging.e(TAG, "writeSampleData failed", e);
+              droppedFrameCount.incrementAndGet();
+            }
+          } else {
+            droppedFrameCount.incrementAndGet();
+          }
+          releaseQueueSpace(item.frame.getAllocatedBytes());
+          framePool.recycle(item.frame);
+        } else {
+          break;
+        }
+      }
+    } finally {
+      if (muxer != null) {
+        try {
+          muxer.stop();
+        } catch (IllegalStateException e) {
+          // Stopping fails if no frame was written.
+          Logging.e(TAG, "Stopping the recording failed", e);
+        }
+        muxer.release();
+      }
+      synchronized (queueLock) {
+        writerDone = true;
+        queueLock.notifyAll();
+      }
+      framePool.clear();
+      Logging.d(TAG, "Finished " + this);
+    }
+  }
+
+  // Counts a frame of |bytes| as queued if it fits, waiting for the writer to make room if
+  // |waitForWriter|.  Returns false if the frame is to be dropped.
+  private boolean reserveQueueSpace(int bytes) {
+    synchronized (queueLock) {
+      while (queuedFrames > 0
+          && (queuedFrames >= maxQueuedFrames || queuedBytes + bytes > maxQueuedBytes)) {
+        if (!waitForWriter || writerDone || muxerFailed) {
+          return false;
+        }
+        try {
+          queueLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      ++queuedFrames;
+      queuedBytes += bytes;
+      return true;
+    }
+  }
+
+  private void releaseQueueSpace(int bytes) {
+    synchronized (queueLock) {
+      --queuedFrames;
+      queuedBytes -= bytes;
+      queueLock.notifyAll();
+    }
+  }
+
+  // Ends the recording once, posting the end item for the writer without waiting for it.
+  private synchronized void finish() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (writerThread != null) {
+      queue.offer(new Item(null /* format */, null /* frame */));
+    }
+  }
+
+  private Item takeItem() {
+    while (true) {
+      try {
+        return queue.take();
+      } catch (InterruptedException e) {
+        // Only the end item ends the writer.
+      }
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+
+/**
+ * NV21Buffer exposing its backing array, so that the encoder can copy it into the codec input
+ * buffer directly instead of going through toI420().  NV21Buffer has no accessor for the array,
+ * so only frames created as ThetaNV21Buffer take that path.
+ */
+class ThetaNV21Buffer extends NV21Buffer {
+  private final byte[] data;
+
+  ThetaNV21Buffer(byte[] data, int width, int height, @Nullable Runnable releaseCallback) {
+    super(data, width, height, releaseCallback);
+    this.data = data;
+  }
+
+  /** Y plane of width x height bytes followed by interleaved V/U samples. */
+  byte[] getData() {
+    return data;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Positions of the NAL units of an H.264 or H.265 Annex B frame, so that consumers of the frame
+ * need not scan it for start codes again.
+ *
+ * The frame is scanned in place with absolute reads; nothing is copied. Offsets are relative to the
+ * position of the frame buffer when it was parsed and point at the NAL unit header, i.e., past the
+ * start code. Lengths do not include the start code.
+ *
+ * ThetaHardwareVideoEncoder indexes each frame in an index of its own, which stays valid until the
+ * EncodedImage is released and is then reused for a later frame, so that parsing does not allocate.
+ */
+public class ThetaNalUnitIndex {
+  // Each NAL unit takes FIELDS consecutive ints of |entries|.
+  private static final int FIELDS = 3;
+  private static final int OFFSET = 0;
+  private static final int LENGTH = 1;
+  private static final int TYPE = 2;
+  // Access units of the Theta encoders hold a handful of NAL units, parameter sets included.
+  private static final int INITIAL_CAPACITY = 8;
+
+  private int[] entries = new int[INITIAL_CAPACITY * FIELDS];
+  private int count;
+
+  /** Creates an empty index, filled by parse(). */
+  ThetaNalUnitIndex() {}
+
+  /** Whether frames of |codecType| consist of NAL units that parse() can index. */
+  static boolean isSupported(ThetaVideoCodecMimeType codecType) {
+    return codecType == ThetaVideoCodecMimeType.H264 || codecType == ThetaVideoCodecMimeType.H265;
+  }
+
+  /**
+   * Indexes the NAL units between the position and the limit of |frame|, which are not changed,
+   * replacing those of the previous frame.  |codecType| must be supported.
+   */
+  void parse(ByteBuffer frame, ThetaVideoCodecMimeType codecType) {
+    if (!isSupported(codecType)) {
+      throw new IllegalArgumentException("No NAL units in " + codecType);
+    }
+    final int base = frame.position();
+    final int limit = frame.limit();
+    count = 0;
+    int unitStart = -1;
+    // |i| is the candidate position of the 0x01 byte of a start code.  A byte above 1 cannot be
+    // part of a start code, so the next candidate is three bytes further.
+    int i = base + 2;
+    while (i < limit) {
+      final byte b = frame.get(i);
+      if (b == 0) {
+        ++i;
+        continue;
+      }
+      if (b != 1 || frame.get(i - 1) != 0 || frame.get(i - 2) != 0) {
+        i += 3;
+        continue;
+      }
+      // Start code ending at |i|, three or four bytes long.
+      final int startCode = (i >= base + 3 && frame.get(i - 3) == 0) ? i - 3 : i - 2;
+      if (unitStart >= 0 && startCode > unitStart) {
+        append(unitStart - base, startCode - unitStart);
+      }
+      unitStart = i + 1;
+      i += 3;
+    }
+    if (unitStart >= 0 && unitStart < limit) {
+      append(unitStart - base, limit - unitStart);
+    }
+    for (int n = 0; n < count; ++n) {
+      final int header = frame.get(base + entries[n * FIELDS + OFFSET]);
+      entries[n * FIELDS + TYPE] = codecType == ThetaVideoCodecMimeType.H265
+          ? (header >> 1) & 0x3f
+          : header & 0x1f;
+    }
+  }
+
+  // Grows |entries| as needed; it is kept for the next frames.
+  private void append(int offset, int length) {
+    if ((count + 1) * FIELDS > entries.length) {
+      entries = Arrays.copyOf(entries, entries.length * 2);
+    }
+    entries[count * FIELDS + OFFSET] = offset;
+    entries[count * FIELDS + LENGTH] = length;
+    ++count;
+  }
+
+  /** Number of NAL units in the frame. */
+  public int getCount() {
+    return count;
+  }
+
+  /** Offset of the header of NAL unit |index|. */
+  public int getOffset(int index) {
+    checkIndex(index);
+    return entries[index * FIELDS + OFFSET];
+  }
+
+  /** Length of NAL unit |index|, header included. */
+  public int getLength(int index) {
+    checkIndex(index);
+    return entries[index * FIELDS + LENGTH];
+  }
+
+  /** nal_unit_type of NAL unit |index|. */
+  public int getType(int index) {
+    checkIndex(index);
+    return entries[index * FIELDS + TYPE];
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("NAL unit " + index + " of " + count);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("ThetaNalUnitIndex{");
+    for (int i = 0; i < count; ++i) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(getType(i)).append('@').append(getOffset(i)).append('+').append(getLength(i));
+    }
+    return sb.append('}').toString();
+  }
+}
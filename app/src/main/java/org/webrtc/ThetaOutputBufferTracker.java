@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps track of the codec output buffers passed down the pipeline and not yet released, and of
+ * how long they are held.  The encoder waits for all of them to return before operations that
+ * invalidate the output buffers, i.e., stop() and getOutputBuffers(); buffers held for long also
+ * leave the codec without room for its output.
+ *
+ * Check-out and waiting happen on the output thread; buffers are checked in on whichever thread
+ * releases the frame.  Neither takes a lock: the count is atomic, and only the waiter parks.
+ */
+public class ThetaOutputBufferTracker {
+  private static final String TAG = "ThetaOutputBufferTracker";
+
+  // Buffers held longer than this are counted as slow, about three frames at 30 fps.
+  private static final long SLOW_HOLD_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final AtomicInteger count = new AtomicInteger();
+  // The thread in waitForZero(), if any.
+  @Nullable private volatile Thread waiter;
+
+  private final AtomicLong checkedInCount = new AtomicLong();
+  private final AtomicLong totalHoldNs = new AtomicLong();
+  private final AtomicLong maxHoldNs = new AtomicLong();
+  private final AtomicLong slowHoldCount = new AtomicLong();
+  private final AtomicLong waitCount = new AtomicLong();
+  private final AtomicLong totalWaitNs = new AtomicLong();
+
+  /** Checks out a buffer.  Returns the time to pass to {@link #checkIn}. */
+  long checkOut() {
+    count.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Checks in a buffer checked out at |checkOutTimeNs|.  May be called on an arbitrary thread, and
+   * must not throw, see webrtc:11230.
+   */
+  void checkIn(long checkOutTimeNs) {
+    final long holdNs = System.nanoTime() - checkOutTimeNs;
+    checkedInCount.incrementAndGet();
+    totalHoldNs.addAndGet(holdNs);
+    if (holdNs > SLOW_HOLD_NS) {
+      slowHoldCount.incrementAndGet();
+    }
+    long max = maxHoldNs.get();
+    while (holdNs > max && !maxHoldNs.compareAndSet(max, holdNs)) {
+      max = maxHoldNs.get();
+    }
+
+    if (count.decrementAndGet() == 0) {
+      final Thread thread = waiter;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * Waits until all buffers are checked in.  checkOut() and waitForZero() are called on the same
+   * thread, so the count stays zero after this returns until that thread checks out a buffer.
+   */
+  void waitForZero() {
+    if (count.get() == 0) {
+      return;
+    }
+    final long startNs = System.nanoTime();
+    boolean wasInterrupted = false;
+    waiter = Thread.currentThread();
+    try {
+      // The count is read after publishing the waiter, so a check-in reaching zero either is seen
+      // here or unparks this thread.
+      while (count.get() > 0) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          Logging.e(TAG, "Interrupted while waiting on busy count");
+          wasInterrupted = true;
+        }
+      }
+    } finally {
+      waiter = null;
+    }
+    waitCount.incrementAndGet();
+    totalWaitNs.addAndGet(System.nanoTime() - startNs);
+
+    if (wasInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Number of buffers currently checked out. */
+  public int getBusyCount() {
+    return count.get();
+  }
+
+  /** Number of buffers checked in. */
+  public long getCheckedInCount() {
+    return checkedInCount.get();
+  }
+
+  /** Average time a buffer was held, or 0. */
+  public long getAverageHoldNs() {
+    final long checkedIn = checkedInCount.get();
+    return checkedIn == 0 ? 0 : totalHoldNs.get() / checkedIn;
+  }
+
+  /** Longest time a buffer was held. */
+  public long getMaxHoldNs() {
+    return maxHoldNs.get();
+  }
+
+  /** Number of buffers held longer than about three frames. */
+  public long getSlowHoldCount() {
+    return slowHoldCount.get();
+  }
+
+  /** Number of times the output thread had to wait for buffers to be checked in. */
+  public long getWaitCount() {
+    return waitCount.get();
+  }
+
+  /** Total time the output thread waited for buffers to be checked in. */
+  public long getTotalWaitNs() {
+    return totalWaitNs.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ThetaOutputBufferTracker{busy %d, held avg=%.1fms max=%.1fms, slow %d/%d,"
+            + " waited %d times %.1fms}",
+        getBusyCount(), toMs(getAverageHoldNs()), toMs(getMaxHoldNs()), getSlowHoldCount(),
+        getCheckedInCount(), getWaitCount(), toMs(getTotalWaitNs()));
+  }
+
+  private static double toMs(long ns) {
+    return ns / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
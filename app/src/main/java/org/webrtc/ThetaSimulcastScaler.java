@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Downscales capture textures once per frame for all simulcast layers of a stream.
+ *
+ * Every layer encoder registers its size. On the first request for a frame, the capture texture is
+ * rendered into a chain of RGB textures, one for each layer smaller than the largest, with extra
+ * half-size levels in between wherever consecutive layers are more than a factor of two apart. Each
+ * level is rendered from the previous one, so no level samples more than 2x2 source pixels per
+ * output pixel and the GPU cost of the chain stays below one third of a full-size pass however
+ * many layers there are. The largest layer draws the capture texture directly.
+ *
+ * The levels are rendered on an EGL context of its own sharing |sharedContext|, which is detached
+ * again before returning, so the encoders may run on any thread. Two sets of levels are used
+ * alternately, so that a level is not overwritten while an encoder of the previous frame may still
+ * read it.
+ */
+class ThetaSimulcastScaler {
+  private static final String TAG = "ThetaSimulcastScaler";
+
+  private static final int LEVEL_SETS = 2;
+
+  private final EglBase14.Context sharedContext;
+  private final Matrix renderMatrix = new Matrix();
+  private final float[] identityMatrix = RendererCommon.identityMatrix();
+
+  // --- Guarded by this.
+  // Sizes of the registered layers, once per layer.
+  private final List<Size> layerSizes = new ArrayList<>();
+  // Sizes of the rendered levels, largest first.  Rebuilt when the layers change.
+  private final List<Size> levelSizes = new ArrayList<>();
+  private final List<GlTextureFrameBuffer[]> levelSets = new ArrayList<>();
+  @Nullable private EglBase14 eglBase;
+  @Nullable private GlRectDrawer drawer;
+  private int currentSet;
+  private long renderedTimestampNs = -1;
+  private long renderedFrameCount;
+
+  ThetaSimulcastScaler(EglBase14.Context sharedContext) {
+    this.sharedContext = sharedContext;
+  }
+
+  /** Registers a layer encoder of the given size. */
+  synchronized void addLayer(int width, int height) {
+    layerSizes.add(new Size(width, height));
+    levelsChanged();
+  }
+
+  /** Unregisters a layer encoder.  Releases the GL resources with the last layer. */
+  synchronized void removeLayer(int width, int height) {
+    layerSizes.remove(new Size(width, height));
+    levelsChanged();
+    if (layerSizes.isEmpty()) {
+      releaseGl();
+    }
+  }
+
+  /**
+   * Returns the texture holding |buffer| scaled to |width| x |height| for the frame with
+   * |timestampNs|, or 0 if the layer has to draw |buffer| itself because it is the largest layer or
+   * not registered. The texture is an RGB texture drawn with the identity matrix, and stays valid
+   * until the frame after next is scaled. No EGL context is current on return.
+   */
+  synchronized int getLevelTexture(
+      VideoFrame.TextureBuffer buffer, long timestampNs, int width, int height) {
+    final int level = levelSizes.indexOf(new Size(width, height));
+    if (level < 0) {
+      return 0;
+    }
+    if (timestampNs != renderedTimestampNs) {
+      renderLevels(buffer);
+      renderedTimestampNs = timestampNs;
+    }
+    return levelSets.get(currentSet)[level].getTextureId();
+  }
+
+  /** Number of frames the chain was rendered for. */
+  synchronized long getRenderedFrameCount() {
+    return renderedFrameCount;
+  }
+
+  private void renderLevels(VideoFrame.TextureBuffer buffer) {
+    if (eglBase == null) {
+      eglBase = EglBase.createEgl14(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+      eglBase.createDummyPbufferSurface();
+      eglBase.makeCurrent();
+      drawer = new GlRectDrawer();
+    } else {
+      eglBase.makeCurrent();
+    }
+    if (levelSets.isEmpty()) {
+      for (int set = 0; set < LEVEL_SETS; ++set) {
+        GlTextureFrameBuffer[] levels = new GlTextureFrameBuffer[levelSizes.size()];
+        for (int i = 0; i < levels.length; ++i) {
+          levels[i] = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+          levels[i].setSize(levelSizes.get(i).width, levelSizes.get(i).height);
+        }
+        levelSets.add(levels);
+      }
+    }
+
+    currentSet = (currentSet + 1) % LEVEL_SETS;
+    final GlTextureFrameBuffer[] levels = levelSets.get(currentSet);
+    for (int i = 0; i < levels.length; ++i) {
+      final int width = levelSizes.get(i).width;
+      final int height = levelSizes.get(i).height;
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, levels[i].getFrameBufferId());
+      if (i == 0) {
+        VideoFrameDrawer.drawTexture(
+            drawer, buffer, renderMatrix, width, height, 0 /* viewportX */, 0 /* viewportY */,
+            width, height);
+      } else {
+        drawer.drawRgb(levels[i - 1].getTextureId(), identityMatrix, width, height,
+            0 /* viewportX */, 0 /* viewportY */, width, height);
+      }
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    // The layer encoders sample the levels from other contexts.
+    GLES20.glFinish();
+    eglBase.detachCurrent();
+    ++renderedFrameCount;
+  }
+
+  // Recomputes the level sizes from the layer sizes.  The levels are reallocated on the next frame.
+  private void levelsChanged() {
+    List<Size> sizes = new ArrayList<>();
+    for (Size size : layerSizes) {
+      if (!sizes.contains(size)) {
+        sizes.add(size);
+      }
+    }
+    Collections.sort(sizes, (a, b) -> b.width * b.height - a.width * a.height);
+
+    levelSizes.clear();
+    for (int i = 1; i < sizes.size(); ++i) {
+      Size previous = sizes.get(i - 1);
+      Size size = sizes.get(i);
+      // Halve until the next layer is at most a factor of two smaller.
+      while (previous.width > 2 * size.width || previous.height > 2 * size.height) {
+        previous = new Size(previous.width / 2, previous.height / 2);
+        levelSizes.add(previous);
+      }
+      levelSizes.add(size);
+    }
+    Logging.d(TAG, "Layers " + sizes + ", levels " + levelSizes);
+
+    releaseLevels();
+    renderedTimestampNs = -1;
+  }
+
+  private void releaseLevels() {
+    if (levelSets.isEmpty()) {
+      return;
+    }
+    eglBase.makeCurrent();
+    for (GlTextureFrameBuffer[] levels : levelSets) {
+      for (GlTextureFrameBuffer level : levels) {
+        level.release();
+      }
+    }
+    levelSets.clear();
+    eglBase.detachCurrent();
+  }
+
+  private void releaseGl() {
+    if (eglBase == null) {
+      return;
+    }
+    releaseLevels();
+    eglBase.makeCurrent();
+    drawer.release();
+    drawer = null;
+    eglBase.release();
+    eglBase = null;
+  }
+}
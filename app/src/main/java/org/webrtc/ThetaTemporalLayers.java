@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaFormat;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Temporal layering (L1T2, L1T3) of a hardware encoder, and the temporal index of its output
+ * frames.
+ *
+ * The codec is asked for the layers with the "ts-schema" format key.  If the codec applies the
+ * schema, which it reports in its output format, the frames follow the schema's fixed pattern and
+ * are indexed by their position after the last key frame.  Otherwise only H.265 frames are
+ * indexed, from the temporal id the codec writes in the NAL unit header, as it is the codec's own
+ * layering.  H.264, VP8 and VP9 frames of a codec without the schema are not layered: MediaCodec
+ * has no portable per-frame control over references to impose a pattern with, and a stray
+ * non-reference frame of a codec that does not layer is no reason to index the others.
+ *
+ * Only used on the output thread, apart from {@link #configure}.
+ */
+class ThetaTemporalLayers {
+  private static final String TAG = "ThetaTemporalLayers";
+
+  // MediaFormat.KEY_TEMPORAL_LAYERING, not available as a constant until API level 29.
+  static final String KEY_TEMPORAL_LAYERING = "ts-schema";
+
+  // Temporal index of each frame in a period of the pattern, by number of layers.
+  private static final int[][] PATTERNS = {
+      {0},
+      {0, 1},
+      {0, 2, 1, 2},
+  };
+
+  private static final int H265_NAL_TYPE_MAX_VCL = 31;
+
+  private final ThetaVideoCodecMimeType codecType;
+  private final int numberOfLayers;
+  private final int[] pattern;
+
+  private boolean schemaApplied;
+  private int frameIndex;
+
+  ThetaTemporalLayers(ThetaVideoCodecMimeType codecType, int numberOfLayers) {
+    if (numberOfLayers < 1 || numberOfLayers > PATTERNS.length) {
+      throw new IllegalArgumentException(
+          "Unsupported number of temporal layers: " + numberOfLayers);
+    }
+    this.codecType = codecType;
+    this.numberOfLayers = numberOfLayers;
+    this.pattern = PATTERNS[numberOfLayers - 1];
+  }
+
+  int getNumberOfLayers() {
+    return numberOfLayers;
+  }
+
+  /** Requests the layers in the codec configuration. */
+  void configure(MediaFormat format) {
+    if (numberOfLayers > 1) {
+      format.setString(KEY_TEMPORAL_LAYERING, getSchema());
+    }
+  }
+
+  /** Checks whether the codec applied the schema.  Called when the output format changes. */
+  void onOutputFormatChanged(MediaFormat format) {
+    final boolean applied = numberOfLayers > 1 && format.containsKey(KEY_TEMPORAL_LAYERING);
+    if (applied != schemaApplied) {
+      Logging.d(TAG,
+          applied ? "Codec applied " + format.getString(KEY_TEMPORAL_LAYERING)
+                  : "Codec ignored " + getSchema()
+                      + (codecType == ThetaVideoCodecMimeType.H265
+                              ? ", reading layers from the bitstream"
+                              : ", frames are not layered"));
+    }
+    schemaApplied = applied;
+  }
+
+  /**
+   * Returns the temporal index of the next output frame, |frame| holding its data between position
+   * and limit and |nalUnits| indexing it, or ThetaCodecSpecificInfo.NO_TEMPORAL_INDEX.
+   */
+  int nextTemporalIndex(
+      ByteBuffer frame, @Nullable ThetaNalUnitIndex nalUnits, boolean isKeyFrame) {
+    if (numberOfLayers == 1) {
+      return ThetaCodecSpecificInfo.NO_TEMPORAL_INDEX;
+    }
+    if (isKeyFrame) {
+      frameIndex = 0;
+    }
+    final int patternIndex = pattern[frameIndex % pattern.length];
+    ++frameIndex;
+    if (schemaApplied) {
+      return patternIndex;
+    }
+    if (nalUnits == null) {
+      return ThetaCodecSpecificInfo.NO_TEMPORAL_INDEX;
+    }
+    if (codecType != ThetaVideoCodecMimeType.H265) {
+      return ThetaCodecSpecificInfo.NO_TEMPORAL_INDEX;
+    }
+    return readH265TemporalIndex(frame, nalUnits);
+  }
+
+  private String getSchema() {
+    return codecType == ThetaVideoCodecMimeType.VP8 ? "webrtc.vp8." + numberOfLayers + "-layer"
+                                                    : "android.generic." + numberOfLayers;
+  }
+
+  private int readH265TemporalIndex(ByteBuffer frame, ThetaNalUnitIndex nalUnits) {
+    final int header = findVclNalHeader(frame, nalUnits);
+    if (header < 0) {
+      return ThetaCodecSpecificInfo.NO_TEMPORAL_INDEX;
+    }
+    // nuh_temporal_id_plus1 in the low three bits of the second header byte.
+    final int temporalId = (frame.get(header + 1) & 0x7) - 1;
+    return Math.max(0, Math.min(temporalId, numberOfLayers - 1));
+  }
+
+  // Returns the position of the header of the first H.265 VCL NAL unit in |frame|, or -1.
+  private static int findVclNalHeader(ByteBuffer frame, ThetaNalUnitIndex nalUnits) {
+    for (int i = 0; i < nalUnits.getCount(); ++i) {
+      if (nalUnits.getType(i) <= H265_NAL_TYPE_MAX_VCL && nalUnits.getLength(i) >= 2) {
+        return frame.position() + nalUnits.getOffset(i);
+      }
+    }
+    return -1;
+  }
+}
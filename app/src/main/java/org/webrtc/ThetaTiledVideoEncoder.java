@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.graphics.Rect;
+
+/**
+ * Splits each frame into tiles and encodes every tile on its own hardware codec instance, so that
+ * the aggregate throughput scales with the number of codec instances the device supports.
+ *
+ * The tiles are independent streams: every tile is delivered to the {@link TileCallback} with the
+ * capture timestamp of the source frame, which consumers use to put the tiles of a frame back
+ * together. Key frames are requested on all tiles at once so that every tile stream can be joined
+ * at the same frame.
+ *
+ * All methods must be called on the same thread. Frames are cropped without copying for texture
+ * buffers; byte buffers are cropped through I420.
+ */
+public class ThetaTiledVideoEncoder {
+  private static final String TAG = "ThetaTiledVideoEncoder";
+
+  // Tile edges are aligned to macroblocks.
+  private static final int TILE_ALIGNMENT = 16;
+
+  /** How the frame is split. */
+  public enum TileLayout {
+    /** Side-by-side tiles spanning the full frame height. */
+    COLUMNS,
+    /** Stacked tiles spanning the full frame width. */
+    ROWS
+  }
+
+  /** Receives the encoded tiles.  Called on the output threads of the tile encoders. */
+  public interface TileCallback {
+    void onEncodedTile(int tileIndex, EncodedImage encodedImage,
+        VideoEncoder.CodecSpecificInfo codecSpecificInfo);
+  }
+
+  private final VideoEncoder[] tileEncoders;
+  private final TileLayout layout;
+  private final Rect[] tileRects;
+  private final VideoEncoder.EncodeInfo deltaFrameInfo = new VideoEncoder.EncodeInfo(
+      new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameDelta});
+  private final VideoEncoder.EncodeInfo keyFrameInfo = new VideoEncoder.EncodeInfo(
+      new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameKey});
+
+  private int width;
+  private int height;
+  private boolean keyFrameRequested;
+
+  ThetaTiledVideoEncoder(VideoEncoder[] tileEncoders, TileLayout layout) {
+    this.tileEncoders = tileEncoders;
+    this.layout = layout;
+    this.tileRects = new Rect[tileEncoders.length];
+  }
+
+  /**
+   * Initializes every tile encoder for frames of |width| x |height|.  |startBitrateKbps| is the
+   * total for all tiles and is shared evenly between them.
+   */
+  public VideoCodecStatus initEncode(int width, int height, int startBitrateKbps,
+      int maxFramerate, final TileCallback callback) {
+    this.width = width;
+    this.height = height;
+    computeTileRects();
+
+    for (int i = 0; i < tileEncoders.length; ++i) {
+      final int tileIndex = i;
+      final Rect rect = tileRects[i];
+      VideoEncoder.Settings settings = new VideoEncoder.Settings(1 /* numberOfCores */,
+          rect.width(), rect.height(), startBitrateKbps / tileEncoders.length, maxFramerate,
+          1 /* numberOfSimulcastStreams */, false /* automaticResizeOn */);
+      VideoCodecStatus status = tileEncoders[i].initEncode(settings,
+          (encodedImage, codecSpecificInfo)
+              -> callback.onEncodedTile(tileIndex, encodedImage, codecSpecificInfo));
+      if (status != VideoCodecStatus.OK) {
+        Logging.e(TAG, "Tile encoder " + i + " failed to initialize: " + status);
+        release();
+        return status;
+      }
+    }
+    Logging.d(TAG, "Encoding " + width + "x" + height + " as " + tileEncoders.length + " " + layout);
+    keyFrameRequested = true;
+    return VideoCodecStatus.OK;
+  }
+
+  /** Encodes all tiles of |frame|.  Frames of another size than given to initEncode are dropped. */
+  public VideoCodecStatus encode(VideoFrame frame) {
+    final VideoFrame.Buffer buffer = frame.getBuffer();
+    if (buffer.getWidth() != width || buffer.getHeight() != height) {
+      Logging.w(TAG,
+          "Dropped frame of unexpected size " + buffer.getWidth() + "x" + buffer.getHeight());
+      return VideoCodecStatus.NO_OUTPUT;
+    }
+
+    final VideoEncoder.EncodeInfo encodeInfo = keyFrameRequested ? keyFrameInfo : deltaFrameInfo;
+    VideoCodecStatus result = VideoCodecStatus.OK;
+    for (int i = 0; i < tileEncoders.length; ++i) {
+      final Rect rect = tileRects[i];
+      final VideoFrame.Buffer tileBuffer = buffer.cropAndScale(
+          rect.left, rect.top, rect.width(), rect.height(), rect.width(), rect.height());
+      final VideoFrame tileFrame =
+          new VideoFrame(tileBuffer, frame.getRotation(), frame.getTimestampNs());
+      final VideoCodecStatus status = tileEncoders[i].encode(tileFrame, encodeInfo);
+      tileFrame.release();
+      if (status != VideoCodecStatus.OK) {
+        result = status;
+      }
+    }
+    // If a tile dropped the key frame, ask again on the next frame so that all tiles restart
+    // together.
+    keyFrameRequested = keyFrameRequested && result != VideoCodecStatus.OK;
+    return result;
+  }
+
+  /** Requests a key frame on every tile with the next frame. */
+  public void requestKeyFrame() {
+    keyFrameRequested = true;
+  }
+
+  /** Shares |totalBitrateBps| evenly between the tiles. */
+  public VideoCodecStatus setRates(int totalBitrateBps, int framerate) {
+    final int[][] tileBitrates = new int[][] {{totalBitrateBps / tileEncoders.length}};
+    final VideoEncoder.BitrateAllocation allocation =
+        new VideoEncoder.BitrateAllocation(tileBitrates);
+    VideoCodecStatus result = VideoCodecStatus.OK;
+    for (VideoEncoder encoder : tileEncoders) {
+      final VideoCodecStatus status = encoder.setRateAllocation(allocation, framerate);
+      if (status != VideoCodecStatus.OK) {
+        result = status;
+      }
+    }
+    return result;
+  }
+
+  public VideoCodecStatus release() {
+    VideoCodecStatus result = VideoCodecStatus.OK;
+    for (VideoEncoder encoder : tileEncoders) {
+      final VideoCodecStatus status = encoder.release();
+      if (status != VideoCodecStatus.OK) {
+        result = status;
+      }
+    }
+    return result;
+  }
+
+  public int getTileCount() {
+    return tileEncoders.length;
+  }
+
+  /** Area of the source frame covered by tile |tileIndex|.  Valid after initEncode(). */
+  public Rect getTileRect(int tileIndex) {
+    return new Rect(tileRects[tileIndex]);
+  }
+
+  private void computeTileRects() {
+    final int tileCount = tileEncoders.length;
+    final int extent = layout == TileLayout.COLUMNS ? width : height;
+    final int tileExtent = extent / tileCount / TILE_ALIGNMENT * TILE_ALIGNMENT;
+    if (tileExtent == 0) {
+      throw new IllegalArgumentException(
+          "Frame of " + width + "x" + height + " is too small for " + tileCount + " tiles");
+    }
+    for (int i = 0; i < tileCount; ++i) {
+      final int start = i * tileExtent;
+      // The last tile takes what is left after alignment.
+      final int end = i == tileCount - 1 ? extent : start + tileExtent;
+      tileRects[i] = layout == TileLayout.COLUMNS ? new Rect(start, 0, end, height)
+                                                  : new Rect(0, start, width, end);
+    }
+  }
+}
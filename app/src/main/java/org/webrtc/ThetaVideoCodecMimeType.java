@@ -0,0 +1,45 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Codec types supported by the Theta encoders.  Mirrors VideoCodecType, which has no H.265, so
+ * that the encoders are not limited to the codecs the bundled libwebrtc knows.
+ */
+enum ThetaVideoCodecMimeType {
+  VP8("video/x-vnd.on2.vp8"),
+  VP9("video/x-vnd.on2.vp9"),
+  H264("video/avc"),
+  H265("video/hevc");
+
+  private final String mimeType;
+
+  private ThetaVideoCodecMimeType(String mimeType) {
+    this.mimeType = mimeType;
+  }
+
+  String mimeType() {
+    return mimeType;
+  }
+
+  /** The codec type of |mimeType|, or null if it is none of these. */
+  @Nullable
+  static ThetaVideoCodecMimeType fromMimeType(String mimeType) {
+    for (ThetaVideoCodecMimeType type : values()) {
+      if (type.mimeType.equals(mimeType)) {
+        return type;
+      }
+    }
+    return null;
+  }
+}
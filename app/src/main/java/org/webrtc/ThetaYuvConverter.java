@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts NV21 camera frames into the layouts expected by MediaCodec input buffers in a single
+ * pass: the Y plane is bulk copied and the chroma plane is swizzled straight into the destination.
+ * The output layout is the same as YuvHelper.I420ToNV12() and YuvHelper.I420Copy() with strides
+ * equal to the width.
+ *
+ * Pure Java, so that it can be run on a plain JVM. Stateless and thread safe.
+ */
+class ThetaYuvConverter {
+  /**
+   * Writes |src| to |dst| as NV12 (interleaved U/V). Only even dimensions are supported, which is
+   * always the case for camera frames.
+   */
+  void nv21ToNv12(byte[] src, int width, int height, ByteBuffer dst) {
+    final int ySize = width * height;
+    final int chromaSize = ySize / 2;
+    dst.put(src, 0, ySize);
+    // Each V/U pair read as a little endian short and written as a big endian one is a U/V pair.
+    final ShortBuffer chroma = ByteBuffer.wrap(src, ySize, chromaSize).slice()
+        .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    dst.slice().order(ByteOrder.BIG_ENDIAN).asShortBuffer().put(chroma);
+    dst.position(dst.position() + chromaSize);
+  }
+
+  /** Writes |src| to |dst| as I420 (U plane followed by V plane). Dimensions must be even. */
+  void nv21ToI420(byte[] src, int width, int height, ByteBuffer dst) {
+    final int ySize = width * height;
+    final int planeSize = ySize / 4;
+    dst.put(src, 0, ySize);
+    // Four V/U pairs at a time: the odd bytes go to the U plane and the even ones to the V plane.
+    final ByteBuffer in = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    final int u = dst.position();
+    final int v = u + planeSize;
+    int i = 0;
+    for (; i + 4 <= planeSize; i += 4) {
+      final long pairs = in.getLong(ySize + 2 * i);
+      out.putInt(u + i, packEvenBytes(pairs >>> 8));
+      out.putInt(v + i, packEvenBytes(pairs));
+    }
+    for (; i < planeSize; ++i) {
+      dst.put(u + i, src[ySize + 2 * i + 1]);
+      dst.put(v + i, src[ySize + 2 * i]);
+    }
+    dst.position(v + planeSize);
+  }
+
+  /**
+   * Writes the I420 planes to |dst| as I420 with strides equal to the width, like
+   * YuvHelper.I420Copy().  Java reference of the native helper, for comparing the two pass path
+   * with nv21ToI420() in the benchmark module.  Plane positions are not changed.
+   */
+  static void i420Copy(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    copyPlane(srcY, srcStrideY, dst, width, height);
+    copyPlane(srcU, srcStrideU, dst, chromaWidth, chromaHeight);
+    copyPlane(srcV, srcStrideV, dst, chromaWidth, chromaHeight);
+  }
+
+  /**
+   * Writes the I420 planes to |dst| as NV12 with strides equal to the width, like
+   * YuvHelper.I420ToNV12().  Moves a byte at a time, so it is a stand-in far slower than the
+   * native helper rather than a model of it.  Plane positions are not changed.
+   */
+  static void i420ToNv12(ByteBuffer srcY, int srcStrideY, ByteBuffer srcU, int srcStrideU,
+      ByteBuffer srcV, int srcStrideV, ByteBuffer dst, int width, int height) {
+    final int chromaWidth = (width + 1) / 2;
+    final int chromaHeight = (height + 1) / 2;
+    copyPlane(srcY, srcStrideY, dst, width, height);
+    final int base = srcU.position();
+    final int baseV = srcV.position();
+    for (int row = 0; row < chromaHeight; ++row) {
+      final int u = base + row * srcStrideU;
+      final int v = baseV + row * srcStrideV;
+      for (int col = 0; col < chromaWidth; ++col) {
+        dst.put(srcU.get(u + col));
+        dst.put(srcV.get(v + col));
+      }
+    }
+  }
+
+  // Appends |width| x |height| bytes of |src|, rows |stride| apart, to |dst|.
+  private static void copyPlane(ByteBuffer src, int stride, ByteBuffer dst, int width, int height) {
+    final ByteBuffer row = src.duplicate();
+    final int base = src.position();
+    for (int i = 0; i < height; ++i) {
+      row.limit(base + i * stride + width);
+      row.position(base + i * stride);
+      dst.put(row);
+    }
+  }
+
+  static boolean isSupportedSize(int width, int height) {
+    return width % 2 == 0 && height % 2 == 0;
+  }
+
+  // Bytes 0, 2, 4 and 6 of the little endian |value|, as a little endian int.
+  private static int packEvenBytes(long value) {
+    value &= 0x00ff00ff00ff00ffL;
+    value = (value | (value >>> 8)) & 0x0000ffff0000ffffL;
+    return (int) (value | (value >>> 16));
+  }
+}
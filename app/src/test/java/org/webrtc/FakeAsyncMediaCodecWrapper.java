@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * FakeMediaCodecWrapper in asynchronous mode.  Outputs are waited for on the callback handler and
+ * passed to the listener as they become ready.  The fake can report a CodecException after a given
+ * number of outputs, and then produces no more output, like a codec in the error state.
+ */
+class FakeAsyncMediaCodecWrapper extends FakeMediaCodecWrapper
+    implements ThetaAsyncMediaCodecWrapper {
+  // Longest the callback handler waits for an output at a time, so that it can run the messages
+  // of the encoder in between.  Delayed messages would depend on the clock of Robolectric.
+  private static final long POLL_TIMEOUT_US = 10000;
+
+  // --- Script, set before the encoder starts.
+  private int errorAfterOutputs = -1;
+  @Nullable private MediaCodec.CodecException error;
+
+  // --- Set before the codec is configured.
+  @Nullable private OutputListener listener;
+  @Nullable private Handler handler;
+
+  // --- Only accessed on the callback handler.
+  private boolean errorReported;
+
+  FakeAsyncMediaCodecWrapper(int inputBufferCount, int outputBufferCount) {
+    super(inputBufferCount, outputBufferCount);
+  }
+
+  /** Reports |error| to the listener once |outputCount| frames were output. */
+  FakeAsyncMediaCodecWrapper setErrorAfter(int outputCount, MediaCodec.CodecException error) {
+    this.errorAfterOutputs = outputCount;
+    this.error = error;
+    return this;
+  }
+
+  @Override
+  public void setCallback(OutputListener listener, Handler handler) {
+    this.listener = listener;
+    this.handler = handler;
+  }
+
+  @Override
+  public void start() {
+    super.start();
+    handler.post(this::poll);
+  }
+
+  @Override
+  public ByteBuffer getInputBuffer(int index) {
+    return getInputBuffers()[index];
+  }
+
+  @Override
+  public ByteBuffer getOutputBuffer(int index) {
+    return getOutputBuffers()[index];
+  }
+
+  // Passes the next ready output to the listener, until the codec is stopped.
+  private void poll() {
+    if (!isStarted() || errorReported) {
+      return;
+    }
+    if (error != null && getOutputPresentationTimesUs().size() >= errorAfterOutputs) {
+      errorReported = true;
+      listener.onError(error);
+      return;
+    }
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    final int index;
+    try {
+      index = dequeueOutputBuffer(info, POLL_TIMEOUT_US);
+    } catch (IllegalStateException e) {
+      // Stopped meanwhile.
+      return;
+    }
+    if (index >= 0) {
+      listener.onOutputBufferAvailable(index, info);
+    }
+    handler.post(this::poll);
+  }
+}
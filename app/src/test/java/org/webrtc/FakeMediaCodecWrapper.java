@@ -0,0 +1,416 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import android.media.MediaCodec;
+import android.media.MediaCrypto;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.view.Surface;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+/**
+ * Scripted MediaCodecWrapper for running ThetaHardwareVideoEncoder on a JVM, in synchronous mode.
+ * FakeAsyncMediaCodecWrapper runs it in asynchronous mode.
+ *
+ * Each queued input comes out as an H.264 access unit after |latencyMs|, preceded by a config frame
+ * after start.  The latency is that of a pipeline, which takes any number of frames at once,
+ * unless the fake also takes |processingMs| per frame, one frame at a time.  The first input after
+ * start, and the first after a sync frame request, are IDR frames.
+ *
+ * The fake can swap the order of consecutive outputs, as codecs with B-frames do, and report
+ * INFO_OUTPUT_BUFFERS_CHANGED after a number of outputs.  It can fail configure() with a
+ * CodecException, and dequeueInputBuffer(), queueInputBuffer() or dequeueOutputBuffer() once at a
+ * given call, input or output.  It can also stop producing output altogether, hanging in stop() as
+ * well.  Thread safe; the encode thread queues inputs while the output thread of the encoder
+ * dequeues outputs.
+ */
+class FakeMediaCodecWrapper implements MediaCodecWrapper {
+  private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1f, 0, 0, 0, 1, 0x68, 0x4e};
+  private static final byte NAL_IDR = 0x65;
+  private static final byte NAL_NON_IDR = 0x41;
+  private static final int PAYLOAD_SIZE = 64;
+
+  private static class PendingOutput {
+    final long presentationTimeUs;
+    final long readyTimeNs;
+    final boolean isKeyFrame;
+
+    PendingOutput(long presentationTimeUs, long readyTimeNs, boolean isKeyFrame) {
+      this.presentationTimeUs = presentationTimeUs;
+      this.readyTimeNs = readyTimeNs;
+      this.isKeyFrame = isKeyFrame;
+    }
+  }
+
+  private final int inputBufferCount;
+  private final int outputBufferCount;
+
+  // --- Script, set before the encoder starts.
+  private long latencyNs;
+  private long processingNs;
+  private boolean reorder;
+  private int outputBuffersChangedAfter = -1;
+  private int failQueueInputAt = -1;
+  private int failDequeueInputAt = -1;
+  private int failDequeueOutputAt = -1;
+  @Nullable private MediaCodec.CodecException configureError;
+
+  // --- Guarded by this.
+  private ByteBuffer[] inputBuffers = new ByteBuffer[0];
+  private ByteBuffer[] outputBuffers = new ByteBuffer[0];
+  private final ArrayDeque<Integer> freeInputs = new ArrayDeque<>();
+  private final ArrayDeque<Integer> freeOutputs = new ArrayDeque<>();
+  private final ArrayDeque<PendingOutput> pendingOutputs = new ArrayDeque<>();
+  private final List<Long> queuedPresentationTimesUs = new ArrayList<>();
+  private final List<Long> outputPresentationTimesUs = new ArrayList<>();
+  private MediaFormat format;
+  private boolean started;
+  private boolean released;
+  private boolean stalled;
+  private boolean configOutput;
+  private boolean keyFrameRequested;
+  private boolean outputBuffersChanged;
+  private int queuedCount;
+  private int outputCount;
+  private int releasedOutputCount;
+  private int dequeueInputCount;
+  private boolean dequeueOutputFailed;
+  private long lastReadyTimeNs;
+
+  FakeMediaCodecWrapper(int inputBufferCount, int outputBufferCount) {
+    this.inputBufferCount = inputBufferCount;
+    this.outputBufferCount = outputBufferCount;
+  }
+
+  /** Time from queueing an input to its output being available. */
+  FakeMediaCodecWrapper setLatencyMs(long latencyMs) {
+    this.latencyNs = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    return this;
+  }
+
+  /** Outputs each frame at least |processingMs| after the previous one. */
+  FakeMediaCodecWrapper setProcessingMs(long processingMs) {
+    this.processingNs = TimeUnit.MILLISECONDS.toNanos(processingMs);
+    return this;
+  }
+
+  /** Outputs every other frame before the one queued before it. */
+  FakeMediaCodecWrapper setReorder(boolean reorder) {
+    this.reorder = reorder;
+    return this;
+  }
+
+  /** Reports INFO_OUTPUT_BUFFERS_CHANGED once, after |outputCount| frame outputs. */
+  FakeMediaCodecWrapper setOutputBuffersChangedAfter(int outputCount) {
+    this.outputBuffersChangedAfter = outputCount;
+    return this;
+  }
+
+  /** Throws IllegalStateException from queueInputBuffer() for the input at |inputIndex|. */
+  FakeMediaCodecWrapper setFailQueueInputAt(int inputIndex) {
+    this.failQueueInputAt = inputIndex;
+    return this;
+  }
+
+  /** Throws IllegalStateException from call |callIndex| of dequeueInputBuffer(). */
+  FakeMediaCodecWrapper setFailDequeueInputAt(int callIndex) {
+    this.failDequeueInputAt = callIndex;
+    return this;
+  }
+
+  /**
+   * Throws IllegalStateException from dequeueOutputBuffer() once, instead of returning the frame
+   * output at |outputIndex|, which comes out of the next call.
+   */
+  FakeMediaCodecWrapper setFailDequeueOutputAt(int outputIndex) {
+    this.failDequeueOutputAt = outputIndex;
+    return this;
+  }
+
+  /** Throws |error| from configure(). */
+  FakeMediaCodecWrapper setConfigureError(MediaCodec.CodecException error) {
+    this.configureError = error;
+    return this;
+  }
+
+  /** A CodecException as thrown or reported by MediaCodec, recoverable or fatal. */
+  static MediaCodec.CodecException createCodecException(boolean recoverable) {
+    // ACTION_TRANSIENT is 1, ACTION_RECOVERABLE 2 and fatal errors have neither.
+    return ReflectionHelpers.callConstructor(MediaCodec.CodecException.class,
+        ClassParameter.from(int.class, 0x80001000 /* errorCode */),
+        ClassParameter.from(int.class, recoverable ? 2 : 0 /* actionCode */),
+        ClassParameter.from(String.class, "Scripted codec error"));
+  }
+
+  /**
+   * Stops or resumes producing output, e.g., to trigger the stall watchdog.  Like a hung hardware
+   * codec, a stalled codec also blocks in stop() until it is resumed.
+   */
+  synchronized void setStalled(boolean stalled) {
+    this.stalled = stalled;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void configure(
+      MediaFormat format, Surface surface, MediaCrypto crypto, int flags) {
+    checkNotReleased();
+    if (configureError != null) {
+      throw configureError;
+    }
+    this.format = format;
+    final int width = format.getInteger(MediaFormat.KEY_WIDTH);
+    final int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+    inputBuffers = allocate(inputBufferCount, width * height * 3 / 2);
+    outputBuffers = allocate(outputBufferCount, SPS_PPS.length + PAYLOAD_SIZE);
+  }
+
+  @Override
+  public synchronized void start() {
+    checkNotReleased();
+    started = true;
+    configOutput = true;
+    keyFrameRequested = true;
+    freeInputs.clear();
+    freeOutputs.clear();
+    for (int i = 0; i < inputBuffers.length; ++i) {
+      freeInputs.add(i);
+    }
+    for (int i = 0; i < outputBuffers.length; ++i) {
+      freeOutputs.add(i);
+    }
+  }
+
+  @Override
+  public synchronized void flush() {
+    pendingOutputs.clear();
+  }
+
+  @Override
+  public synchronized void stop() {
+    while (stalled) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    started = false;
+    pendingOutputs.clear();
+    notifyAll();
+  }
+
+  @Override
+  public synchronized void release() {
+    started = false;
+    released = true;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized int dequeueInputBuffer(long timeoutUs) {
+    checkStarted();
+    if (dequeueInputCount++ == failDequeueInputAt) {
+      throw new IllegalStateException("Scripted dequeueInputBuffer failure");
+    }
+    final Integer index = freeInputs.poll();
+    return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+  }
+
+  @Override
+  public synchronized void queueInputBuffer(
+      int index, int offset, int size, long presentationTimeUs, int flags) {
+    checkStarted();
+    if (queuedCount++ == failQueueInputAt) {
+      freeInputs.add(index);
+      throw new IllegalStateException("Scripted queueInputBuffer failure");
+    }
+    freeInputs.add(index);
+    queuedPresentationTimesUs.add(presentationTimeUs);
+    // A key frame requested before this input applies to it.
+    final long readyTimeNs =
+        Math.max(System.nanoTime() + latencyNs, lastReadyTimeNs + processingNs);
+    lastReadyTimeNs = readyTimeNs;
+    final PendingOutput output =
+        new PendingOutput(presentationTimeUs, readyTimeNs, keyFrameRequested);
+    keyFrameRequested = false;
+    if (reorder && queuedCount % 2 == 0 && !pendingOutputs.isEmpty()) {
+      // Ahead of the frame queued before it, which is held until this one is ready.
+      final PendingOutput previous = pendingOutputs.pollLast();
+      pendingOutputs.addLast(output);
+      pendingOutputs.addLast(
+          new PendingOutput(previous.presentationTimeUs, output.readyTimeNs, previous.isKeyFrame));
+    } else {
+      pendingOutputs.addLast(output);
+    }
+    notifyAll();
+  }
+
+  @Override
+  public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+    final long deadlineNs = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(timeoutUs);
+    while (true) {
+      checkStarted();
+      if (outputBuffersChangedAfter >= 0 && outputCount == outputBuffersChangedAfter
+          && !outputBuffersChanged) {
+        outputBuffersChanged = true;
+        // Buffers still held downstream keep the old array alive; only free ones move over.
+        outputBuffers = allocate(outputBufferCount, SPS_PPS.length + PAYLOAD_SIZE);
+        return MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED;
+      }
+      final long nowNs = System.nanoTime();
+      final PendingOutput next = pendingOutputs.peekFirst();
+      final boolean ready = configOutput || (next != null && next.readyTimeNs <= nowNs);
+      if (!stalled && ready && !freeOutputs.isEmpty()) {
+        if (!configOutput && outputCount == failDequeueOutputAt && !dequeueOutputFailed) {
+          dequeueOutputFailed = true;
+          throw new IllegalStateException("Scripted dequeueOutputBuffer failure");
+        }
+        return fillOutput(info);
+      }
+      if (nowNs >= deadlineNs) {
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+      }
+      long waitNs = deadlineNs - nowNs;
+      if (!stalled && next != null && !freeOutputs.isEmpty()) {
+        waitNs = Math.min(waitNs, next.readyTimeNs - nowNs);
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNs, 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void releaseOutputBuffer(int index, boolean render) {
+    if (released) {
+      throw new IllegalStateException("Released");
+    }
+    if (freeOutputs.contains(index)) {
+      throw new IllegalStateException("Output buffer " + index + " released twice");
+    }
+    freeOutputs.add(index);
+    ++releasedOutputCount;
+    notifyAll();
+  }
+
+  @Override
+  public synchronized MediaFormat getOutputFormat() {
+    return format;
+  }
+
+  @Override
+  public synchronized ByteBuffer[] getInputBuffers() {
+    return inputBuffers;
+  }
+
+  @Override
+  public synchronized ByteBuffer[] getOutputBuffers() {
+    return outputBuffers;
+  }
+
+  @Override
+  public Surface createInputSurface() {
+    throw new UnsupportedOperationException("Surface input is not faked");
+  }
+
+  @Override
+  public synchronized void setParameters(Bundle params) {
+    if (params.containsKey(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME)) {
+      keyFrameRequested = true;
+    }
+  }
+
+  /** Presentation timestamps of the inputs queued so far, in queueing order. */
+  synchronized List<Long> getQueuedPresentationTimesUs() {
+    return new ArrayList<>(queuedPresentationTimesUs);
+  }
+
+  /** Presentation timestamps of the frame outputs dequeued so far, in output order. */
+  synchronized List<Long> getOutputPresentationTimesUs() {
+    return new ArrayList<>(outputPresentationTimesUs);
+  }
+
+  /** Output buffers handed back, including the config frame. */
+  synchronized int getReleasedOutputCount() {
+    return releasedOutputCount;
+  }
+
+  /** Whether all output buffers are back with the codec. */
+  synchronized boolean allOutputBuffersReleased() {
+    return freeOutputs.size() == outputBuffers.length;
+  }
+
+  synchronized boolean isReleased() {
+    return released;
+  }
+
+  synchronized boolean isStarted() {
+    return started;
+  }
+
+  // Writes the next output into a free buffer and returns its index.
+  private int fillOutput(MediaCodec.BufferInfo info) {
+    final int index = freeOutputs.poll();
+    final ByteBuffer buffer = outputBuffers[index];
+    buffer.clear();
+    if (configOutput) {
+      configOutput = false;
+      buffer.put(SPS_PPS);
+      info.set(0, buffer.position(), 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+      return index;
+    }
+    final PendingOutput output = pendingOutputs.pollFirst();
+    final boolean isKeyFrame = output.isKeyFrame;
+    buffer.put(new byte[] {0, 0, 0, 1, isKeyFrame ? NAL_IDR : NAL_NON_IDR});
+    while (buffer.position() < PAYLOAD_SIZE) {
+      buffer.put((byte) (outputCount + 1));
+    }
+    info.set(0, buffer.position(), output.presentationTimeUs,
+        isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+    outputPresentationTimesUs.add(output.presentationTimeUs);
+    ++outputCount;
+    return index;
+  }
+
+  private void checkStarted() {
+    checkNotReleased();
+    if (!started) {
+      throw new IllegalStateException("Not started");
+    }
+  }
+
+  private void checkNotReleased() {
+    if (released) {
+      throw new IllegalStateException("Released");
+    }
+  }
+
+  private static ByteBuffer[] allocate(int count, int capacity) {
+    final ByteBuffer[] buffers = new ByteBuffer[count];
+    for (int i = 0; i < count; ++i) {
+      buffers[i] = ByteBuffer.allocateDirect(capacity);
+    }
+    return buffers;
+  }
+}
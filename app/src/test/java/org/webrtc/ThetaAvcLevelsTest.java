@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import org.junit.Test;
+
+/** Checks the levels selected for the THETA shooting modes, on a plain JVM. */
+public class ThetaAvcLevelsTest {
+  @Test
+  public void testSelectsLowestLevelForSize() {
+    assertEquals(CodecProfileLevel.AVCLevel51, ThetaAvcLevels.select(3840, 1920, 30,
+        30_000_000, false /* highProfile */, CodecProfileLevel.AVCLevel52));
+    assertEquals(CodecProfileLevel.AVCLevel52, ThetaAvcLevels.select(3840, 1920, 60,
+        30_000_000, false /* highProfile */, CodecProfileLevel.AVCLevel52));
+    assertEquals(CodecProfileLevel.AVCLevel4, ThetaAvcLevels.select(1920, 960, 30,
+        15_000_000, false /* highProfile */, CodecProfileLevel.AVCLevel52));
+  }
+
+  @Test
+  public void testSelectsLevelForBitrate() {
+    // Level 4 allows 20 Mbps with the Baseline profile and 25 Mbps with the High profile.
+    assertEquals(CodecProfileLevel.AVCLevel41, ThetaAvcLevels.select(1920, 960, 30,
+        25_000_000, false /* highProfile */, CodecProfileLevel.AVCLevel52));
+    assertEquals(CodecProfileLevel.AVCLevel4, ThetaAvcLevels.select(1920, 960, 30,
+        25_000_000, true /* highProfile */, CodecProfileLevel.AVCLevel52));
+  }
+
+  @Test
+  public void testLimitsLevelToCodec() {
+    assertEquals(CodecProfileLevel.AVCLevel42, ThetaAvcLevels.select(3840, 1920, 30,
+        30_000_000, false /* highProfile */, CodecProfileLevel.AVCLevel42));
+    assertEquals(CodecProfileLevel.AVCLevel52, ThetaAvcLevels.select(7680, 3840, 30,
+        30_000_000, false /* highProfile */, CodecProfileLevel.AVCLevel52));
+    assertEquals(0, ThetaAvcLevels.select(
+        1920, 960, 30, 15_000_000, false /* highProfile */, 0 /* maxLevel */));
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Encoder test bench: drives synthetic camera frames through encode() and the output thread of
+ * ThetaHardwareVideoEncoder with FakeMediaCodecWrapper, and prints throughput, drop rate and
+ * latency percentiles per stage, so that encoder changes can be compared on a plain JVM.
+ *
+ * The bench is skipped unless asked for, as it takes long and its results are the printed numbers:
+ * ./gradlew testDebugUnitTest -DthetaBench.enabled=true --tests '*EncoderBenchmarkTest'.  The
+ * parameters can be changed with more system properties, e.g. -DthetaBench.frames=10000:
+ * - thetaBench.width, thetaBench.height: frame size, 1920x960
+ * - thetaBench.frames: frames of the throughput run, 3000
+ * - thetaBench.realtimeFrames: frames of the real-time run, 360
+ * - thetaBench.framerate: input frame rate of the real-time run, 120
+ * - thetaBench.latencyMs: codec latency of the real-time run, 20
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 28)
+public class ThetaHardwareVideoEncoderBenchmarkTest {
+  private static final int WIDTH = Integer.getInteger("thetaBench.width", 1920);
+  private static final int HEIGHT = Integer.getInteger("thetaBench.height", 960);
+  private static final int FRAMES = Integer.getInteger("thetaBench.frames", 3000);
+  private static final int REALTIME_FRAMES = Integer.getInteger("thetaBench.realtimeFrames", 360);
+  private static final int REALTIME_FRAMERATE = Integer.getInteger("thetaBench.framerate", 120);
+  private static final int LATENCY_MS = Integer.getInteger("thetaBench.latencyMs", 20);
+  private static final int MAX_QUEUE_SIZE = 4;
+
+  // A single camera buffer, as the copy into the codec is measured and not the allocation.
+  private final byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+  private final VideoEncoder.EncodeInfo encodeInfo = new VideoEncoder.EncodeInfo(
+      new EncodedImage.FrameType[] {EncodedImage.FrameType.VideoFrameDelta});
+
+  @Before
+  public void setUp() {
+    assumeTrue("Set thetaBench.enabled to run the encoder bench",
+        Boolean.getBoolean("thetaBench.enabled"));
+  }
+
+  /**
+   * Encodes frames as fast as the encoder takes them from a codec without latency, keeping the
+   * queue full, which measures the overhead of the encoder itself.
+   */
+  @Test
+  public void testThroughput() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(MAX_QUEUE_SIZE, MAX_QUEUE_SIZE);
+    final ThetaHardwareVideoEncoderTest.RecordingCallback callback =
+        new ThetaHardwareVideoEncoderTest.RecordingCallback(false /* keepFrames */);
+    final ThetaHardwareVideoEncoder encoder =
+        ThetaHardwareVideoEncoderTest.createEncoder(codec, MAX_QUEUE_SIZE, MAX_QUEUE_SIZE);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    int encodedCount = 0;
+    final long startNs = System.nanoTime();
+    for (int i = 0; i < FRAMES; ++i) {
+      // Room for the frame in the queue.
+      callback.waitForFrames(encodedCount - MAX_QUEUE_SIZE + 1);
+      if (encode(encoder, i) == VideoCodecStatus.OK) {
+        ++encodedCount;
+      }
+    }
+    callback.waitForFrames(encodedCount);
+    final long elapsedNs = System.nanoTime() - startNs;
+
+    System.out.println(String.format("Throughput %dx%d: %d frames in %d ms, %.0f fps, %.0f MB/s",
+        WIDTH, HEIGHT, FRAMES, TimeUnit.NANOSECONDS.toMillis(elapsedNs),
+        encodedCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNs,
+        encodedCount * (double) data.length * 1000 / elapsedNs));
+    System.out.println(encoder.getQueueController());
+
+    assertEquals(FRAMES, encodedCount);
+    finish(encoder, codec);
+  }
+
+  /**
+   * Encodes frames at the input frame rate into a codec with latency, which measures the frames
+   * dropped while the queue size adapts and the latency of each stage.
+   */
+  @Test
+  public void testRealtime() throws InterruptedException {
+    final FakeMediaCodecWrapper codec =
+        new FakeMediaCodecWrapper(MAX_QUEUE_SIZE, MAX_QUEUE_SIZE).setLatencyMs(LATENCY_MS);
+    final ThetaHardwareVideoEncoderTest.RecordingCallback callback =
+        new ThetaHardwareVideoEncoderTest.RecordingCallback(false /* keepFrames */);
+    final ThetaHardwareVideoEncoder encoder =
+        ThetaHardwareVideoEncoderTest.createEncoder(codec, 1, MAX_QUEUE_SIZE);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    final long frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / REALTIME_FRAMERATE;
+    int encodedCount = 0;
+    final long startNs = System.nanoTime();
+    for (int i = 0; i < REALTIME_FRAMES; ++i) {
+      final long sleepNs = startNs + i * frameIntervalNs - System.nanoTime();
+      if (sleepNs > 0) {
+        TimeUnit.NANOSECONDS.sleep(sleepNs);
+      }
+      if (encode(encoder, i) == VideoCodecStatus.OK) {
+        ++encodedCount;
+      }
+    }
+    callback.waitForFrames(encodedCount);
+
+    System.out.println(String.format("Real time %dx%d at %d fps, codec latency %d ms: %d frames,"
+            + " %.1f%% dropped",
+        WIDTH, HEIGHT, REALTIME_FRAMERATE, LATENCY_MS, REALTIME_FRAMES,
+        100.0 * (REALTIME_FRAMES - encodedCount) / REALTIME_FRAMES));
+    System.out.println(encoder.getQueueController());
+    final ThetaEncoderLatencyTracer latencyTracer = encoder.getLatencyTracer();
+    for (ThetaEncoderLatencyTracer.Stage stage : ThetaEncoderLatencyTracer.Stage.values()) {
+      System.out.println(stage + ": " + latencyTracer.getPercentiles(stage));
+    }
+
+    assertTrue(encodedCount > 0);
+    finish(encoder, codec);
+  }
+
+  private static VideoEncoder.Settings createSettings() {
+    return new VideoEncoder.Settings(1 /* numberOfCores */, WIDTH, HEIGHT,
+        5000 /* startBitrate */, REALTIME_FRAMERATE, 1 /* numberOfSimulcastStreams */,
+        false /* automaticResizeOn */);
+  }
+
+  private VideoCodecStatus encode(ThetaHardwareVideoEncoder encoder, int frameIndex) {
+    final VideoFrame frame =
+        new VideoFrame(new ThetaNV21Buffer(data, WIDTH, HEIGHT, null /* releaseCallback */),
+            0 /* rotation */, (frameIndex + 1) * ThetaHardwareVideoEncoderTest.FRAME_INTERVAL_NS);
+    final VideoCodecStatus status = encoder.encode(frame, encodeInfo);
+    frame.release();
+    return status;
+  }
+
+  // Checks that every output was matched and handed back, and releases the encoder.
+  private static void finish(ThetaHardwareVideoEncoder encoder, FakeMediaCodecWrapper codec) {
+    assertEquals(0, encoder.getUnmatchedOutputCount());
+    assertEquals(0, encoder.getOrphanedFrameCount());
+    assertEquals(VideoCodecStatus.OK, encoder.release());
+    assertTrue(codec.allOutputBuffersReleased());
+  }
+}
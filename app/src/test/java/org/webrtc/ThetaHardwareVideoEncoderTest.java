@@ -0,0 +1,536 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.webrtc.ThetaEncoderQueueController.DropReason.QUEUE_FULL;
+
+import android.media.MediaCodecInfo;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+
+/**
+ * Drives ThetaHardwareVideoEncoder through encode, output and release with FakeMediaCodecWrapper,
+ * with NV12 byte buffer input, in synchronous mode and, with FakeAsyncMediaCodecWrapper, in
+ * asynchronous mode.  The looper of the asynchronous mode runs on its own thread, as on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 28)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class ThetaHardwareVideoEncoderTest {
+  static final int WIDTH = 64;
+  static final int HEIGHT = 32;
+  static final int FRAMERATE = 30;
+  static final long FRAME_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1) / FRAMERATE;
+  private static final int BITRATE_KBPS = 1000;
+  private static final long TIMEOUT_MS = 5000;
+
+  /** Keeps what the encoder delivered; the images themselves are released after the callback. */
+  static class RecordingCallback implements VideoEncoder.Callback {
+    final List<Long> captureTimesNs = new ArrayList<>();
+    final List<EncodedImage.FrameType> frameTypes = new ArrayList<>();
+    final List<byte[]> frames = new ArrayList<>();
+    // NAL units of the kept frames, read during the callback as the index goes with the image.
+    final List<String> nalUnits = new ArrayList<>();
+    private final boolean keepFrames;
+
+    RecordingCallback(boolean keepFrames) {
+      this.keepFrames = keepFrames;
+    }
+
+    @Override
+    public synchronized void onEncodedFrame(
+        EncodedImage frame, VideoEncoder.CodecSpecificInfo info) {
+      captureTimesNs.add(frame.captureTimeNs);
+      frameTypes.add(frame.frameType);
+      if (keepFrames) {
+        final ByteBuffer buffer = frame.buffer.duplicate();
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        frames.add(data);
+        nalUnits.add(String.valueOf(((ThetaCodecSpecificInfo) info).nalUnits));
+      }
+      notifyAll();
+    }
+
+    /** Waits until |count| frames were delivered, and fails after TIMEOUT_MS. */
+    synchronized void waitForFrames(int count) throws InterruptedException {
+      final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+      while (captureTimesNs.size() < count) {
+        final long remainingNs = deadlineNs - System.nanoTime();
+        assertTrue("Got " + captureTimesNs.size() + " of " + count + " frames", remainingNs > 0);
+        TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+      }
+    }
+  }
+
+  private ThetaHardwareVideoEncoder encoder;
+
+  @After
+  public void tearDown() {
+    if (encoder != null) {
+      encoder.release();
+    }
+  }
+
+  /** Creates an NV12 byte buffer encoder on |codec| with the given encoder queue size bounds. */
+  static ThetaHardwareVideoEncoder createEncoder(
+      FakeMediaCodecWrapper codec, int minQueueSize, int maxQueueSize) {
+    return createEncoder(
+        codecName -> codec, minQueueSize, maxQueueSize, 0 /* stallFrameIntervals */);
+  }
+
+  /**
+   * Creates the encoder on codecs from |codecFactory|.  A stalled codec is recreated after
+   * |stallFrameIntervals| frame intervals without output, or never if 0.
+   */
+  static ThetaHardwareVideoEncoder createEncoder(MediaCodecWrapperFactory codecFactory,
+      int minQueueSize, int maxQueueSize, int stallFrameIntervals) {
+    return createEncoder(codecFactory,
+        codecName -> {
+          throw new IOException("Not in asynchronous mode");
+        },
+        false /* useAsyncCodecMode */, minQueueSize, maxQueueSize, stallFrameIntervals);
+  }
+
+  /** Creates the encoder in asynchronous mode, on codecs from |codecFactory|. */
+  static ThetaHardwareVideoEncoder createAsyncEncoder(
+      ThetaAsyncMediaCodecWrapperFactory codecFactory, int minQueueSize, int maxQueueSize) {
+    return createEncoder(
+        codecName -> {
+          throw new IOException("Not in synchronous mode");
+        },
+        codecFactory, true /* useAsyncCodecMode */, minQueueSize, maxQueueSize,
+        0 /* stallFrameIntervals */);
+  }
+
+  private static ThetaHardwareVideoEncoder createEncoder(MediaCodecWrapperFactory codecFactory,
+      ThetaAsyncMediaCodecWrapperFactory asyncCodecFactory, boolean useAsyncCodecMode,
+      int minQueueSize, int maxQueueSize, int stallFrameIntervals) {
+    return new ThetaHardwareVideoEncoder(codecFactory, asyncCodecFactory, "fake.encoder",
+        ThetaVideoCodecMimeType.H264, null /* surfaceColorFormat */,
+        MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+        Collections.emptyMap() /* params */, 0 /* avcMaxLevel */,
+        3600 /* keyFrameIntervalSec */, new ThetaKeyFrameScheduler(0, 0, 0),
+        new BaseBitrateAdjuster(), new ThetaEncoderQueueController(minQueueSize, maxQueueSize),
+        null /* sharedContext */, useAsyncCodecMode,
+        Collections.emptyList() /* prewarmSizes */, null /* simulcastScaler */,
+        Collections.emptyMap() /* decimatedFramerates */, 1 /* numberOfTemporalLayers */,
+        0 /* intraRefreshPeriodFrames */, Collections.emptyList() /* encodedFrameSinks */,
+        stallFrameIntervals);
+  }
+
+  static VideoEncoder.Settings createSettings() {
+    return createSettings(FRAMERATE);
+  }
+
+  static VideoEncoder.Settings createSettings(int framerate) {
+    return new VideoEncoder.Settings(1 /* numberOfCores */, WIDTH, HEIGHT, BITRATE_KBPS, framerate,
+        1 /* numberOfSimulcastStreams */, false /* automaticResizeOn */);
+  }
+
+  /** A camera frame with the timestamp of frame |frameIndex|. */
+  static VideoFrame createFrame(int frameIndex) {
+    final byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+    return new VideoFrame(new ThetaNV21Buffer(data, WIDTH, HEIGHT, null /* releaseCallback */),
+        0 /* rotation */, (frameIndex + 1) * FRAME_INTERVAL_NS);
+  }
+
+  private VideoCodecStatus encode(int frameIndex, EncodedImage.FrameType frameType) {
+    final VideoFrame frame = createFrame(frameIndex);
+    final VideoCodecStatus status = encoder.encode(
+        frame, new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[] {frameType}));
+    frame.release();
+    return status;
+  }
+
+  private VideoCodecStatus encode(int frameIndex) {
+    return encode(frameIndex, EncodedImage.FrameType.VideoFrameDelta);
+  }
+
+  // Encodes frames [|firstFrameIndex|, |endFrameIndex|) at |framerate|, as a camera delivers
+  // them, the first one a frame interval from now.
+  private void encodePaced(int firstFrameIndex, int endFrameIndex, int framerate)
+      throws InterruptedException {
+    final long frameIntervalNs = TimeUnit.SECONDS.toNanos(1) / framerate;
+    final long startNs = System.nanoTime();
+    for (int i = firstFrameIndex; i < endFrameIndex; ++i) {
+      final long sleepNs =
+          startNs + (i - firstFrameIndex + 1) * frameIntervalNs - System.nanoTime();
+      if (sleepNs > 0) {
+        TimeUnit.NANOSECONDS.sleep(sleepNs);
+      }
+      encode(i);
+    }
+  }
+
+  @Test
+  public void testDeliversFramesWithConfigOnKeyFrame() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4);
+    final RecordingCallback callback = new RecordingCallback(true /* keepFrames */);
+    encoder = createEncoder(codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(VideoCodecStatus.OK, encode(i));
+      callback.waitForFrames(i + 1);
+    }
+
+    for (int i = 0; i < 10; ++i) {
+      assertEquals((i + 1) * FRAME_INTERVAL_NS, (long) callback.captureTimesNs.get(i));
+    }
+    assertEquals(EncodedImage.FrameType.VideoFrameKey, callback.frameTypes.get(0));
+    // SPS and PPS, then the IDR slice.
+    final byte[] keyFrame = callback.frames.get(0);
+    assertEquals(0x67, keyFrame[4]);
+    assertEquals(0x65, keyFrame[keyFrame.length - 64 + 4]);
+    assertEquals(EncodedImage.FrameType.VideoFrameDelta, callback.frameTypes.get(1));
+    assertEquals(0x41, callback.frames.get(1)[4]);
+    assertEquals("ThetaNalUnitIndex{7@4+4, 8@12+2, 5@18+60}", callback.nalUnits.get(0));
+    assertEquals("ThetaNalUnitIndex{1@4+60}", callback.nalUnits.get(1));
+
+    assertEquals(VideoCodecStatus.OK, encoder.release());
+    encoder = null;
+    assertTrue(codec.isReleased());
+    // 10 frames and the config frame.
+    assertEquals(11, codec.getReleasedOutputCount());
+    assertTrue(codec.allOutputBuffersReleased());
+  }
+
+  @Test
+  public void testNalUnitIndexStaysWithRetainedImage() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4);
+    // The first two images are retained, which also holds their output buffers.
+    final List<EncodedImage> images = new ArrayList<>();
+    final List<ThetaNalUnitIndex> indices = new ArrayList<>();
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */) {
+      @Override
+      public synchronized void onEncodedFrame(
+          EncodedImage frame, VideoEncoder.CodecSpecificInfo info) {
+        if (images.size() < 2) {
+          frame.retain();
+          images.add(frame);
+        }
+        indices.add(((ThetaCodecSpecificInfo) info).nalUnits);
+        super.onEncodedFrame(frame, info);
+      }
+    };
+    encoder = createEncoder(codec, 2, 2);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(VideoCodecStatus.OK, encode(i));
+      callback.waitForFrames(i + 1);
+    }
+
+    // The retained images keep the indices of their own frames, which later frames do not reuse.
+    assertEquals("ThetaNalUnitIndex{7@4+4, 8@12+2, 5@18+60}", indices.get(0).toString());
+    assertEquals("ThetaNalUnitIndex{1@4+60}", indices.get(1).toString());
+    for (int i = 2; i < 10; ++i) {
+      assertFalse(indices.get(i) == indices.get(0) || indices.get(i) == indices.get(1));
+    }
+    for (EncodedImage image : images) {
+      image.release();
+    }
+
+    // Released indices are reused.
+    assertEquals(VideoCodecStatus.OK, encode(10));
+    callback.waitForFrames(11);
+    assertTrue(indices.subList(0, 10).contains(indices.get(10)));
+  }
+
+  @Test
+  public void testRequestedKeyFrame() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    assertEquals(VideoCodecStatus.OK, encode(0));
+    assertEquals(VideoCodecStatus.OK, encode(1));
+    assertEquals(VideoCodecStatus.OK, encode(2, EncodedImage.FrameType.VideoFrameKey));
+    callback.waitForFrames(3);
+
+    assertEquals(EncodedImage.FrameType.VideoFrameKey, callback.frameTypes.get(0));
+    assertEquals(EncodedImage.FrameType.VideoFrameDelta, callback.frameTypes.get(1));
+    assertEquals(EncodedImage.FrameType.VideoFrameKey, callback.frameTypes.get(2));
+    assertEquals(1, encoder.getKeyFrameScheduler().getEmittedCount());
+  }
+
+  @Test
+  public void testMatchesReorderedOutputsByTimestamp() throws InterruptedException {
+    final FakeMediaCodecWrapper codec =
+        new FakeMediaCodecWrapper(8, 8).setLatencyMs(20).setReorder(true);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 8, 8);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    for (int i = 0; i < 6; ++i) {
+      assertEquals(VideoCodecStatus.OK, encode(i));
+    }
+    callback.waitForFrames(6);
+
+    final List<Long> outputTimesUs = codec.getOutputPresentationTimesUs();
+    assertTrue(!outputTimesUs.equals(codec.getQueuedPresentationTimesUs()));
+    for (int i = 0; i < 6; ++i) {
+      // The codec sees the capture time rounded to microseconds.
+      assertEquals((long) outputTimesUs.get(i), (callback.captureTimesNs.get(i) + 500) / 1000);
+    }
+    assertEquals(0, encoder.getUnmatchedOutputCount());
+    assertEquals(0, encoder.getOrphanedFrameCount());
+  }
+
+  @Test
+  public void testOutputBuffersChanged() throws InterruptedException {
+    final FakeMediaCodecWrapper codec =
+        new FakeMediaCodecWrapper(4, 4).setOutputBuffersChangedAfter(3);
+    final RecordingCallback callback = new RecordingCallback(true /* keepFrames */);
+    encoder = createEncoder(codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    for (int i = 0; i < 8; ++i) {
+      assertEquals(VideoCodecStatus.OK, encode(i));
+      callback.waitForFrames(i + 1);
+    }
+
+    // Frames after the change are read from the new buffers.
+    assertEquals(0x41, callback.frames.get(7)[4]);
+    assertEquals(VideoCodecStatus.OK, encoder.release());
+    encoder = null;
+    assertTrue(codec.allOutputBuffersReleased());
+  }
+
+  @Test
+  public void testQueueInputFailure() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4).setFailQueueInputAt(2);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    assertEquals(VideoCodecStatus.OK, encode(0));
+    assertEquals(VideoCodecStatus.OK, encode(1));
+    assertEquals(VideoCodecStatus.ERROR, encode(2));
+    assertEquals(VideoCodecStatus.OK, encode(3));
+    callback.waitForFrames(3);
+
+    assertEquals(2 * FRAME_INTERVAL_NS, (long) callback.captureTimesNs.get(1));
+    assertEquals(4 * FRAME_INTERVAL_NS, (long) callback.captureTimesNs.get(2));
+    // The failed frame was taken out of the frame metadata.
+    assertEquals(0, encoder.getUnmatchedOutputCount());
+    assertEquals(0, encoder.getOrphanedFrameCount());
+  }
+
+  @Test
+  public void testDequeueInputFailure() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4).setFailDequeueInputAt(1);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    assertEquals(VideoCodecStatus.OK, encode(0));
+    assertEquals(VideoCodecStatus.ERROR, encode(1));
+    assertEquals(VideoCodecStatus.OK, encode(2));
+    callback.waitForFrames(2);
+
+    assertEquals(3 * FRAME_INTERVAL_NS, (long) callback.captureTimesNs.get(1));
+    // The frame never reached the codec, so it left nothing in the frame metadata.
+    assertEquals(0, encoder.getUnmatchedOutputCount());
+    assertEquals(0, encoder.getOrphanedFrameCount());
+  }
+
+  @Test
+  public void testDequeueOutputFailure() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4).setFailDequeueOutputAt(1);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    // The output thread keeps going, and the output is taken by the next call.
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(VideoCodecStatus.OK, encode(i));
+      callback.waitForFrames(i + 1);
+    }
+    for (int i = 0; i < 3; ++i) {
+      assertEquals((i + 1) * FRAME_INTERVAL_NS, (long) callback.captureTimesNs.get(i));
+    }
+  }
+
+  @Test
+  public void testConfigureFailure() {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4).setConfigureError(
+        FakeMediaCodecWrapper.createCodecException(false /* recoverable */));
+    encoder = createEncoder(codec, 4, 4);
+
+    assertEquals(VideoCodecStatus.FALLBACK_SOFTWARE,
+        encoder.initEncode(createSettings(), new RecordingCallback(false /* keepFrames */)));
+    // Released although no output thread was started to release it.
+    assertTrue(codec.isReleased());
+  }
+
+  @Test
+  public void testRecreatesCodecAfterRecoverableError() throws InterruptedException {
+    final FakeAsyncMediaCodecWrapper failing = new FakeAsyncMediaCodecWrapper(4, 4).setErrorAfter(
+        2, FakeMediaCodecWrapper.createCodecException(true /* recoverable */));
+    final FakeAsyncMediaCodecWrapper replacement = new FakeAsyncMediaCodecWrapper(4, 4);
+    final List<FakeAsyncMediaCodecWrapper> codecs =
+        new ArrayList<>(Arrays.asList(failing, replacement));
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createAsyncEncoder(codecName -> codecs.remove(0), 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    assertEquals(VideoCodecStatus.OK, encode(0));
+    assertEquals(VideoCodecStatus.OK, encode(1));
+    callback.waitForFrames(2);
+    // The error is handled by the next encode() after it was reported.
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    int frameIndex = 2;
+    while (!failing.isReleased()) {
+      assertTrue("The failed codec was not released", System.nanoTime() < deadlineNs);
+      encode(frameIndex++);
+      Thread.sleep(10);
+    }
+    assertEquals(VideoCodecStatus.OK, encode(frameIndex));
+
+    // The replacement takes the frames from then on, starting with a key frame.
+    callback.waitForFrames(3);
+    assertTrue(replacement.isStarted());
+    assertEquals(EncodedImage.FrameType.VideoFrameKey, callback.frameTypes.get(2));
+  }
+
+  @Test
+  public void testFallsBackAfterFatalError() throws InterruptedException {
+    final FakeAsyncMediaCodecWrapper codec = new FakeAsyncMediaCodecWrapper(4, 4).setErrorAfter(
+        1, FakeMediaCodecWrapper.createCodecException(false /* recoverable */));
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createAsyncEncoder(codecName -> codec, 4, 4);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    assertEquals(VideoCodecStatus.OK, encode(0));
+    callback.waitForFrames(1);
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    int frameIndex = 1;
+    while (encode(frameIndex++) != VideoCodecStatus.FALLBACK_SOFTWARE) {
+      assertTrue("The error was not handled", System.nanoTime() < deadlineNs);
+      Thread.sleep(10);
+    }
+    assertTrue(codec.isReleased());
+  }
+
+  @Test
+  public void testDropsFramesWhenCodecFallsBehind() throws InterruptedException {
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(8, 8).setLatencyMs(500);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 2, 2);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    int encodedCount = 0;
+    for (int i = 0; i < 10; ++i) {
+      if (encode(i) == VideoCodecStatus.OK) {
+        ++encodedCount;
+      }
+    }
+    callback.waitForFrames(encodedCount);
+
+    final long droppedCount = encoder.getQueueController().getDropCount(
+        ThetaEncoderQueueController.DropReason.QUEUE_FULL);
+    assertEquals(2, encodedCount);
+    assertEquals(10 - encodedCount, droppedCount);
+    assertEquals(0, encoder.getOrphanedFrameCount());
+  }
+
+  @Test
+  public void testGrowsQueueForCodecPipeline() throws InterruptedException {
+    // At 50 fps, a turnaround of 3.1 frame intervals needs 4 frames in the codec.  The frame
+    // before them is out 18 ms before the next one comes, which leaves room for test jitter.
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(8, 8).setLatencyMs(62);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 2, 6);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(50), callback));
+    final ThetaEncoderQueueController queueController = encoder.getQueueController();
+
+    encodePaced(0, 200, 50);
+    final long droppedCount = queueController.getDropCount(QUEUE_FULL);
+    encodePaced(200, 350, 50);
+
+    assertTrue(queueController.toString(), queueController.getQueueSize() >= 4);
+    assertEquals(queueController.toString(), droppedCount,
+        queueController.getDropCount(QUEUE_FULL));
+  }
+
+  @Test
+  public void testDoesNotGrowQueueForSlowCodec() throws InterruptedException {
+    // Takes 1.5 frame intervals per frame, so that more frames in the codec only wait longer.
+    final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(8, 8).setProcessingMs(15);
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codec, 2, 6);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(100), callback));
+    final ThetaEncoderQueueController queueController = encoder.getQueueController();
+
+    encodePaced(0, 500, 100);
+
+    // At most one frame above the minimum, while a growth is tried.
+    assertTrue(queueController.toString(), queueController.getQueueSize() <= 3);
+    assertTrue(queueController.getDropCount(QUEUE_FULL) > 0);
+  }
+
+  @Test
+  public void testRecreatesStalledCodec() throws InterruptedException {
+    final List<FakeMediaCodecWrapper> codecs = new ArrayList<>();
+    final RecordingCallback callback = new RecordingCallback(false /* keepFrames */);
+    encoder = createEncoder(codecName -> {
+      final FakeMediaCodecWrapper codec = new FakeMediaCodecWrapper(4, 4);
+      // The first codec never produces output.
+      codec.setStalled(codecs.isEmpty());
+      codecs.add(codec);
+      return codec;
+    }, 4, 4, 3 /* stallFrameIntervals */);
+    assertEquals(VideoCodecStatus.OK, encoder.initEncode(createSettings(), callback));
+
+    assertEquals(VideoCodecStatus.OK, encode(0));
+    final long stallTimeoutMs = encoder.getStallWatchdog().getStallTimeoutMs();
+    Thread.sleep(stallTimeoutMs + 100);
+    // The stalled codec hangs in stop(), which must not hold up the new codec.
+    final long recoveryStartNs = System.nanoTime();
+    assertEquals(VideoCodecStatus.OK, encode(1));
+    callback.waitForFrames(1);
+    final long recoveryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recoveryStartNs);
+
+    assertTrue("Recovered in " + recoveryMs + " ms", recoveryMs < stallTimeoutMs);
+    assertEquals(2, codecs.size());
+    assertFalse(codecs.get(0).isReleased());
+    assertEquals(2 * FRAME_INTERVAL_NS, (long) callback.captureTimesNs.get(0));
+    assertEquals(EncodedImage.FrameType.VideoFrameKey, callback.frameTypes.get(0));
+    assertEquals(1, encoder.getStallWatchdog().getStallCount());
+    assertEquals(1, encoder.getStallWatchdog().getRecoveredCount());
+    assertTrue(encoder.getStallWatchdog().getLastRecoveryMs() < 2 * stallTimeoutMs);
+
+    // Once stop() returns, the output thread of the stalled codec releases it.
+    codecs.get(0).setStalled(false);
+    final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    while (!codecs.get(0).isReleased()) {
+      assertTrue("Stalled codec not released", System.nanoTime() < deadlineNs);
+      Thread.sleep(10);
+    }
+  }
+}
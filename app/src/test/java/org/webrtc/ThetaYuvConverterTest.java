@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks the single pass conversions against the I420 references, on a plain JVM. */
+public class ThetaYuvConverterTest {
+  // Includes sizes where the chroma planes are not a multiple of the bytes converted at a time.
+  private static final int[][] SIZES = {{2, 2}, {6, 2}, {10, 6}, {64, 32}, {1920, 960}};
+
+  private final ThetaYuvConverter converter = new ThetaYuvConverter();
+
+  @Test
+  public void testNv21ToNv12() {
+    for (int[] size : SIZES) {
+      for (boolean direct : new boolean[] {false, true}) {
+        final int width = size[0];
+        final int height = size[1];
+        final byte[] nv21 = createNv21(width, height);
+        final ByteBuffer expected = allocate(nv21.length, false);
+        ThetaYuvConverter.i420ToNv12(plane(nv21, width, height, 0), width,
+            plane(nv21, width, height, 1), width / 2, plane(nv21, width, height, 2), width / 2,
+            expected, width, height);
+
+        final ByteBuffer actual = allocate(nv21.length, direct);
+        converter.nv21ToNv12(nv21, width, height, actual);
+
+        assertConverted(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testNv21ToI420() {
+    for (int[] size : SIZES) {
+      for (boolean direct : new boolean[] {false, true}) {
+        final int width = size[0];
+        final int height = size[1];
+        final byte[] nv21 = createNv21(width, height);
+        final ByteBuffer expected = allocate(nv21.length, false);
+        ThetaYuvConverter.i420Copy(plane(nv21, width, height, 0), width,
+            plane(nv21, width, height, 1), width / 2, plane(nv21, width, height, 2), width / 2,
+            expected, width, height);
+
+        final ByteBuffer actual = allocate(nv21.length, direct);
+        converter.nv21ToI420(nv21, width, height, actual);
+
+        assertConverted(expected, actual);
+      }
+    }
+  }
+
+  private static byte[] createNv21(int width, int height) {
+    final byte[] nv21 = new byte[width * height * 3 / 2];
+    new Random(width * 31 + height).nextBytes(nv21);
+    return nv21;
+  }
+
+  // Plane |index| (Y, U, V) of the I420 frame with the same pixels as |nv21|.
+  private static ByteBuffer plane(byte[] nv21, int width, int height, int index) {
+    final int ySize = width * height;
+    if (index == 0) {
+      return ByteBuffer.wrap(nv21, 0, ySize).slice();
+    }
+    final byte[] plane = new byte[ySize / 4];
+    for (int i = 0; i < plane.length; ++i) {
+      // NV21 chroma is V/U pairs.
+      plane[i] = nv21[ySize + 2 * i + (index == 1 ? 1 : 0)];
+    }
+    return ByteBuffer.wrap(plane);
+  }
+
+  private static ByteBuffer allocate(int capacity, boolean direct) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  private static void assertConverted(ByteBuffer expected, ByteBuffer actual) {
+    assertEquals(expected.capacity(), actual.position());
+    expected.flip();
+    actual.flip();
+    assertEquals(expected, actual);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Indexes the NAL units of an H.264 key frame, as the encoder does for every frame output.
+ *
+ * The frame is SPS, PPS and four IDR slices of random payload without start code emulation.  The
+ * sizes are those of a frame at 8 and 30 Mbps and 30 fps.  parse() reuses one index, as the encoder
+ * does once images are released; parseNewIndex() allocates an index per frame, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThetaNalUnitIndexBenchmark {
+  private static final byte[] SPS_PPS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1f, 0, 0, 0, 1, 0x68, 0x4e};
+  private static final int SLICES = 4;
+
+  @Param({"33333", "125000"})
+  public int frameSize;
+
+  private final ThetaNalUnitIndex nalUnits = new ThetaNalUnitIndex();
+  private ByteBuffer frame;
+
+  @Setup
+  public void setUp() {
+    final byte[] data = new byte[frameSize];
+    new Random(0).nextBytes(data);
+    System.arraycopy(SPS_PPS, 0, data, 0, SPS_PPS.length);
+    final int sliceSize = (frameSize - SPS_PPS.length) / SLICES;
+    for (int i = 0; i < SLICES; ++i) {
+      final int start = SPS_PPS.length + i * sliceSize;
+      data[start] = 0;
+      data[start + 1] = 0;
+      data[start + 2] = 1;
+      data[start + 3] = 0x65;
+      // Emulation prevention, as in a real slice.
+      for (int j = start + 6; j < start + sliceSize; ++j) {
+        if (data[j - 2] == 0 && data[j - 1] == 0 && (data[j] & 0xff) <= 3) {
+          data[j] = 3;
+        }
+      }
+    }
+    frame = ByteBuffer.allocateDirect(frameSize);
+    frame.put(data);
+    frame.flip();
+
+    nalUnits.parse(frame, ThetaVideoCodecMimeType.H264);
+    if (nalUnits.getCount() != 2 + SLICES) {
+      throw new IllegalStateException("Unexpected frame: " + nalUnits);
+    }
+  }
+
+  @Benchmark
+  public ThetaNalUnitIndex parse() {
+    nalUnits.parse(frame, ThetaVideoCodecMimeType.H264);
+    return nalUnits;
+  }
+
+  @Benchmark
+  public ThetaNalUnitIndex parseNewIndex() {
+    final ThetaNalUnitIndex index = new ThetaNalUnitIndex();
+    index.parse(frame, ThetaVideoCodecMimeType.H264);
+    return index;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2017 The WebRTC project authors. All Rights Reserved.
+ *
+ *  Use of this source code is governed by a BSD-style license
+ *  that can be found in the LICENSE file in the root of the source
+ *  tree. An additional intellectual property rights grant can be found
+ *  in the file PATENTS.  All contributing project authors may
+ *  be found in the AUTHORS file in the root of the source tree.
+ */
+
+package org.webrtc;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fills a MediaCodec input buffer from an NV21 camera frame, at the sizes of the shooting modes.
+ *
+ * The single pass conversions used by ThetaHardwareVideoEncoder are compared with the two pass
+ * path they replaced: NV21 to I420 as NV21Buffer.toI420() does, then I420 to the codec layout.  On
+ * a device both passes of that path run in libyuv with NEON, which a plain JVM cannot run, so the
+ * second pass is done by Java references instead and the results only bound the gain:
+ * twoPassNv12() uses ThetaYuvConverter.i420ToNv12(), which moves a byte at a time, and
+ * twoPassNv12Bulk() interleaves a row at a time in an array, closer to the memory traffic of the
+ * native code.  twoPassI420() copies rows in bulk, as libyuv does.
+ *
+ * The I420 and codec buffers are direct, as MediaCodec buffers are, or on the heap with
+ * |buffer| = heap, to tell the cost of direct buffer access from that of the conversion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThetaYuvConverterBenchmark {
+  @Param({"640x320", "1024x512", "1920x960", "3840x1920"})
+  public String size;
+
+  @Param({"direct", "heap"})
+  public String buffer;
+
+  private final ThetaYuvConverter converter = new ThetaYuvConverter();
+  private int width;
+  private int height;
+  private byte[] nv21;
+  private ByteBuffer i420;
+  private ByteBuffer dst;
+  private byte[] rowU;
+  private byte[] rowV;
+  private byte[] rowUv;
+
+  @Setup
+  public void setUp() {
+    final String[] dimensions = size.split("x");
+    width = Integer.parseInt(dimensions[0]);
+    height = Integer.parseInt(dimensions[1]);
+    final int frameSize = width * height * 3 / 2;
+    nv21 = new byte[frameSize];
+    new Random(0).nextBytes(nv21);
+    i420 = allocate(frameSize);
+    dst = allocate(frameSize);
+    rowU = new byte[width / 2];
+    rowV = new byte[width / 2];
+    rowUv = new byte[width];
+  }
+
+  @Benchmark
+  public ByteBuffer nv21ToNv12() {
+    dst.clear();
+    converter.nv21ToNv12(nv21, width, height, dst);
+    return dst;
+  }
+
+  @Benchmark
+  public ByteBuffer nv21ToI420() {
+    dst.clear();
+    converter.nv21ToI420(nv21, width, height, dst);
+    return dst;
+  }
+
+  @Benchmark
+  public ByteBuffer twoPassNv12() {
+    toI420();
+    dst.clear();
+    ThetaYuvConverter.i420ToNv12(plane(0), width, plane(width * height), width / 2,
+        plane(width * height * 5 / 4), width / 2, dst, width, height);
+    return dst;
+  }
+
+  @Benchmark
+  public ByteBuffer twoPassNv12Bulk() {
+    toI420();
+    dst.clear();
+    final int ySize = width * height;
+    final ByteBuffer y = plane(0);
+    y.limit(ySize);
+    dst.put(y);
+    final ByteBuffer u = plane(ySize);
+    final ByteBuffer v = plane(ySize * 5 / 4);
+    for (int row = 0; row < height / 2; ++row) {
+      u.get(rowU);
+      v.get(rowV);
+      for (int i = 0; i < rowU.length; ++i) {
+        rowUv[2 * i] = rowU[i];
+        rowUv[2 * i + 1] = rowV[i];
+      }
+      dst.put(rowUv);
+    }
+    return dst;
+  }
+
+  @Benchmark
+  public ByteBuffer twoPassI420() {
+    toI420();
+    dst.clear();
+    ThetaYuvConverter.i420Copy(plane(0), width, plane(width * height), width / 2,
+        plane(width * height * 5 / 4), width / 2, dst, width, height);
+    return dst;
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    return "heap".equals(buffer) ? ByteBuffer.allocate(capacity)
+                                 : ByteBuffer.allocateDirect(capacity);
+  }
+
+  // The first pass, into the I420 buffer NV21Buffer.toI420() would allocate.
+  private void toI420() {
+    i420.clear();
+    converter.nv21ToI420(nv21, width, height, i420);
+  }
+
+  // The plane of the I420 buffer at |offset|, as returned by VideoFrame.I420Buffer.getDataY() etc.
+  private ByteBuffer plane(int offset) {
+    final ByteBuffer plane = i420.duplicate();
+    plane.position(offset);
+    return plane.slice();
+  }
+}